@@ -5,10 +5,6 @@
 package ts4.ts4_core.moa.clustering;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.util.Arrays;
 
 import org.apache.commons.cli.CommandLine;
@@ -23,6 +19,8 @@ import org.apache.log4j.Logger;
 import moa.options.FileOption;
 import moa.streams.clustering.FileStream;
 import ts4.ts4_core.moa.clusterers.streamkm.StreamKM;
+import ts4.ts4_core.tweets.util.ClusterMembers;
+import ts4.ts4_core.tweets.util.ClusterShard;
 import weka.core.DenseInstance;
 
 public class MoaStreaming {
@@ -88,6 +86,7 @@ public class MoaStreaming {
 			streamKM.setModelContext(stream.getHeader());
 			streamKM.prepareForUse();
 			
+			int first = cnt;
 			while (stream.hasMoreInstances()){
 				DenseInstance trainInst = new DenseInstance(stream.nextInstance()); 
 				streamKM.trainOnInstanceImpl(trainInst);
@@ -102,14 +101,15 @@ public class MoaStreaming {
 				centers[i] = streamKM.getClusteringResult().get(i).getCenter();
 			}
 			
-			try {
-				ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(outputPath + "/" + inputFile.getName()));
-				oos.writeObject(centers);
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();  
-			} catch (IOException e) {
-				e.printStackTrace();
+			// Assign every instance of the file to its nearest center, numbered from the first of the file
+			ClusterMembers.Builder clusters = new ClusterMembers.Builder(clusterNums);
+			stream.restart();
+			int doc = first;
+			while (stream.hasMoreInstances()) {
+				double[] vector = Arrays.copyOf(stream.nextInstance().toDoubleArray(), dimension);
+				clusters.add(doc ++, ClusterShard.nearest(vector, centers));
 			}
+			ClusterShard.write(new File(outputPath + "/" + inputFile.getName()), centers, dimension, clusters.build());
 		}
 		LOG.info("Total " + cnt + " processed");
 	}
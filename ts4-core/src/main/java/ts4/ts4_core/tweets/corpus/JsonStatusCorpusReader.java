@@ -33,23 +33,32 @@ import cc.twittertools.corpus.data.JsonStatusBlockReader;
  * through all blocks, in sorted lexicographic order of the files.
  */
 public class JsonStatusCorpusReader implements StatusStream {
+  public static final FileFilter GZ_FILTER = new FileFilter() {
+    public boolean accept(File path) {
+      return path.getName().endsWith(".gz") ? true : false;
+    }
+  };
+
   private final File[] files;
   private int nextFile = 0;
   private JsonStatusBlockReader currentBlock = null;
   private String curFileName;
 
   public JsonStatusCorpusReader(File file) throws IOException {
+    this(file, GZ_FILTER);
+  }
+
+  /**
+   * Reads only the blocks accepted by the given filter.
+   */
+  public JsonStatusCorpusReader(File file, FileFilter filter) throws IOException {
     Preconditions.checkNotNull(file);
 
     if (!file.isDirectory()) {
       throw new IOException("Expecting " + file + " to be a directory!");
     }
 
-    files = file.listFiles(new FileFilter() {
-      public boolean accept(File path) {
-        return path.getName().endsWith(".gz") ? true : false;
-      }
-    });
+    files = file.listFiles(filter);
     Arrays.sort(files);
 
     if (files.length == 0) {
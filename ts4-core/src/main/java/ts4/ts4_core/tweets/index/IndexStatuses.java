@@ -32,6 +32,7 @@ import org.apache.lucene.index.FieldInfo.IndexOptions;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Version;
@@ -96,9 +97,9 @@ public class IndexStatuses {
     options.addOption(OptionBuilder.withArgName("dir").hasArg()
         .withDescription("index location").create(INDEX_OPTION));
     options.addOption(OptionBuilder.withArgName("file").hasArg()
-        .withDescription("file with deleted tweetids").create(DELETES_OPTION));
+        .withDescription("file with deleted tweetids; GenerateStatisticsFromIndex does not support the index").create(DELETES_OPTION));
     options.addOption(OptionBuilder.withArgName("id").hasArg()
-        .withDescription("max id").create(MAX_ID_OPTION));
+        .withDescription("max id; GenerateStatisticsFromIndex does not support the index").create(MAX_ID_OPTION));
 
     CommandLine cmdline = null;
     CommandLineParser parser = new GnuParser();
@@ -177,6 +178,9 @@ public class IndexStatuses {
     Directory dir = FSDirectory.open(new File(indexPath));
     IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_43, IndexStatuses.ANALYZER);
     config.setOpenMode(OpenMode.CREATE);
+    // Only merge adjacent segments, so doc ids stay in corpus order for GenerateStatisticsFromIndex.
+    // Statuses skipped below shift that order, which GenerateStatisticsFromIndex then rejects.
+    config.setMergePolicy(new LogByteSizeMergePolicy());
 
     IndexWriter writer = new IndexWriter(dir, config);
     int cnt = 0;
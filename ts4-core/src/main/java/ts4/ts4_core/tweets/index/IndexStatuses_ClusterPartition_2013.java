@@ -6,11 +6,7 @@
 
 package ts4.ts4_core.tweets.index;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStreamReader;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -42,6 +38,7 @@ import org.apache.lucene.util.Version;
 import cc.twittertools.corpus.data.Status;
 import cc.twittertools.index.TweetAnalyzer;
 import ts4.ts4_core.tweets.corpus.JsonStatusCorpusReader;
+import ts4.ts4_core.tweets.util.ClusterShard;
 
 /**
  * Reference implementation for indexing statuses.
@@ -204,20 +201,7 @@ public class IndexStatuses_ClusterPartition_2013 {
 					// Find hourly cluster assignments and store in a map
 					clusterAssignHourly = new HashMap<Integer, Integer>();
 					try {
-						File[] files = new File(kmeansClusterPath + "/clusterassign-d" + dimension + "-hour" + hour + "-trial1").listFiles();
-						Arrays.sort(files);
-						for (File f : files) {
-							if (f.getName().startsWith("part")) {
-								BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(f.getPath())));
-								String line;
-								while((line = br.readLine()) != null) {
-									line = line.substring(1, line.length() - 1);
-									String[] indexmap = line.split(",");
-									clusterAssignHourly.put(Integer.parseInt(indexmap[0]), Integer.parseInt(indexmap[1]));
-								}
-								br.close();
-							}
-						}
+						ClusterShard.readAssignments(kmeansClusterPath, dimension, "hour" + hour, "1", clusterAssignHourly);
 					} catch(Exception e){
 						System.out.println("File not found");
 					}
@@ -248,20 +232,7 @@ public class IndexStatuses_ClusterPartition_2013 {
 					// Find daily cluster assignments and store in a map
 					clusterAssignDaily = new HashMap<Integer, Integer>();
 					try {
-						File[] files = new File(kmeansClusterPath + "/clusterassign-d" + dimension + "-day" + day + "-trial1").listFiles();
-						Arrays.sort(files);
-						for (File f : files) {
-							if (f.getName().startsWith("part")) {
-								BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(f.getPath())));
-								String line;
-								while((line = br.readLine()) != null) {
-									line = line.substring(1, line.length() - 1);
-									String[] indexmap = line.split(",");
-									clusterAssignDaily.put(Integer.parseInt(indexmap[0]), Integer.parseInt(indexmap[1]));
-								}
-								br.close();
-							}
-						}
+						ClusterShard.readAssignments(kmeansClusterPath, dimension, "day" + day, "1", clusterAssignDaily);
 					} catch(Exception e){
 						System.out.println("File not found");
 					}
@@ -0,0 +1,132 @@
+package ts4.ts4_core.tweets.search;
+
+/**
+ * Ranks the clusters of each time slice by cosine similarity of their centers to a query vector.
+ * The centers of a slice are normalized once and kept as one row-major float matrix, so ranking a
+ * set of topics against a slice is a matrix product, computed in blocks of topics and centers that
+ * stay in cache. Only the best clusters are selected, best first; ties go to the lower cluster.
+ * Ranks past the number of clusters of a slice are 0. Read-only once built.
+ */
+public class CentroidRouter {
+	private static final int BLOCK = 32;
+
+	private final int dimension;
+	private final float[][] centers;
+	private final int[] counts;
+
+	/**
+	 * Centers of each slice's clusters; a slice may be null or have no clusters.
+	 */
+	public CentroidRouter(double[][][] centers, int dimension) {
+		this.dimension = dimension;
+		this.centers = new float[centers.length][];
+		this.counts = new int[centers.length];
+		for (int s = 0; s < centers.length; s ++) {
+			counts[s] = centers[s] == null ? 0 : centers[s].length;
+			this.centers[s] = new float[counts[s] * dimension];
+			for (int c = 0; c < counts[s]; c ++) {
+				normalize(centers[s][c], dimension, this.centers[s], c * dimension);
+			}
+		}
+	}
+
+	/**
+	 * The top best clusters of every slice for every query, indexed by slice and then query.
+	 */
+	public int[][][] route(double[][] queries, int top) {
+		float[] normalized = new float[queries.length * dimension];
+		for (int q = 0; q < queries.length; q ++) {
+			normalize(queries[q], dimension, normalized, q * dimension);
+		}
+		int[][][] routes = new int[centers.length][queries.length][];
+		float[] scores = new float[0];
+		for (int s = 0; s < centers.length; s ++) {
+			int n = counts[s];
+			if (scores.length < queries.length * n) {
+				scores = new float[queries.length * n];
+			}
+			multiply(normalized, queries.length, centers[s], n, dimension, scores);
+			for (int q = 0; q < queries.length; q ++) {
+				routes[s][q] = select(scores, q * n, n, top);
+			}
+		}
+		return routes;
+	}
+
+	/**
+	 * The top best clusters of one slice for one query.
+	 */
+	public int[] route(int slice, double[] query, int top) {
+		float[] normalized = new float[dimension];
+		normalize(query, dimension, normalized, 0);
+		float[] scores = new float[counts[slice]];
+		multiply(normalized, 1, centers[slice], counts[slice], dimension, scores);
+		return select(scores, 0, counts[slice], top);
+	}
+
+	/**
+	 * Writes vector scaled to unit length into row offset of matrix; a zero vector is left as zeros.
+	 */
+	static void normalize(double[] vector, int dimension, float[] matrix, int offset) {
+		double length = 0;
+		for (int j = 0; j < dimension; j ++) {
+			length += vector[j] * vector[j];
+		}
+		length = Math.sqrt(length);
+		if (length == 0) {
+			return;
+		}
+		for (int j = 0; j < dimension; j ++) {
+			matrix[offset + j] = (float) (vector[j] / length);
+		}
+	}
+
+	/**
+	 * scores[q * numCenters + c] = queries row q . centers row c, in blocks of BLOCK rows of each.
+	 */
+	static void multiply(float[] queries, int numQueries, float[] centers, int numCenters, int dimension, float[] scores) {
+		for (int qBlock = 0; qBlock < numQueries; qBlock += BLOCK) {
+			int qEnd = Math.min(qBlock + BLOCK, numQueries);
+			for (int cBlock = 0; cBlock < numCenters; cBlock += BLOCK) {
+				int cEnd = Math.min(cBlock + BLOCK, numCenters);
+				for (int q = qBlock; q < qEnd; q ++) {
+					int qOffset = q * dimension;
+					for (int c = cBlock; c < cEnd; c ++) {
+						scores[q * numCenters + c] = dot(queries, qOffset, centers, c * dimension, dimension);
+					}
+				}
+			}
+		}
+	}
+
+	static float dot(float[] a, int aOffset, float[] b, int bOffset, int dimension) {
+		float sum = 0;
+		for (int j = 0; j < dimension; j ++) {
+			sum += a[aOffset + j] * b[bOffset + j];
+		}
+		return sum;
+	}
+
+	/**
+	 * Clusters of the top best of the n scores from offset, by insertion into the ranks kept so far.
+	 */
+	static int[] select(float[] scores, int offset, int n, int top) {
+		int[] result = new int[top];
+		float[] best = new float[Math.min(top, n)];
+		int kept = 0;
+		for (int c = 0; c < n; c ++) {
+			float score = scores[offset + c];
+			if (kept == best.length && (kept == 0 || !(score > best[kept - 1]))) {
+				continue;
+			}
+			int i = kept < best.length ? kept ++ : kept - 1;
+			for (; i > 0 && score > best[i - 1]; i --) {
+				best[i] = best[i - 1];
+				result[i] = result[i - 1];
+			}
+			best[i] = score;
+			result[i] = c;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,102 @@
+package ts4.ts4_core.tweets.search;
+
+import java.io.File;
+import java.io.IOException;
+
+import ts4.ts4_core.tweets.util.ClusterMembers;
+import ts4.ts4_core.tweets.util.ClusterShard;
+import ts4.ts4_core.tweets.util.ForwardIndex;
+
+/**
+ * Cluster assignments of the daily and hourly slices, as read by the query runners from
+ * ClusterShard files or Spark part files. The members of every cluster are kept in tweet id order,
+ * so the members up to a query time are a prefix of the cluster and the rest are never visited (see
+ * ClusterIndex).
+ */
+public class ClusterAssignments {
+	/**
+	 * Reads the "(doc,cluster)" lines of the part files of a clusterassign directory into the
+	 * members of each of numClusters clusters, renumbered into the doc order of index and sorted
+	 * by tweet id.
+	 */
+	public static ClusterMembers read(String path, int numClusters, ForwardIndex index) throws IOException {
+		ClusterMembers.Builder builder = new ClusterMembers.Builder(numClusters);
+		ClusterShard.readTextAssignments(path, builder);
+		ClusterMembers clusters = builder.build();
+		clusters.renumber(index);
+		clusters.sortById(index);
+		return clusters;
+	}
+
+	/**
+	 * Reads the centers and members of a kmeans slice such as "day3" or "hour27", from its
+	 * ClusterShard if there is one and otherwise from its clustercenters and clusterassign part
+	 * files, into the first rows of centers and the members of each of numClusters clusters.
+	 * Members are renumbered into the doc order of index and sorted by tweet id.
+	 */
+	public static ClusterMembers readSlice(String kmeansClusterPath, int dimension, String slice, String trial, double[][] centers, int numClusters, ForwardIndex index) throws IOException {
+		readCenters(kmeansClusterPath, dimension, slice, trial, centers);
+		return readMembers(kmeansClusterPath, dimension, slice, trial, numClusters, index);
+	}
+
+	/**
+	 * Reads the centers of a kmeans slice, as readSlice does, into the first rows of centers.
+	 */
+	public static void readCenters(String kmeansClusterPath, int dimension, String slice, String trial, double[][] centers) throws IOException {
+		File file = ClusterShard.kmeansFile(kmeansClusterPath, dimension, slice, trial);
+		if (file.exists()) {
+			ClusterShard.map(file).readCenters(centers);
+		} else {
+			ClusterShard.readTextCenters(kmeansClusterPath + "/clustercenters-d" + dimension + "-" + slice + "-trial" + trial, centers);
+		}
+	}
+
+	/**
+	 * Reads the members of a kmeans slice, as readSlice does.
+	 */
+	public static ClusterMembers readMembers(String kmeansClusterPath, int dimension, String slice, String trial, int numClusters, ForwardIndex index) throws IOException {
+		File file = ClusterShard.kmeansFile(kmeansClusterPath, dimension, slice, trial);
+		if (file.exists()) {
+			ClusterMembers clusters = ClusterShard.map(file).readMembers(numClusters);
+			clusters.renumber(index);
+			clusters.sortById(index);
+			return clusters;
+		}
+		return read(kmeansClusterPath + "/clusterassign-d" + dimension + "-" + slice + "-trial" + trial, numClusters, index);
+	}
+
+	/**
+	 * Members of the kmeans slices of a granularity, "day" or "hour", keyed by slice from 0, read
+	 * by readMembers the first time a search asks for them and kept within budget bytes; 0 keeps
+	 * them all. A slice with neither a shard nor assignments has numClusters empty clusters; a
+	 * slice that fails to read is not kept, and the failure is thrown to the search.
+	 */
+	public static ShardCache<ClusterMembers> cache(final String kmeansClusterPath, final int dimension, final String granularity, final String trial, final int numClusters, final ForwardIndex index, long budget) {
+		return new ShardCache<ClusterMembers>(budget) {
+			protected ClusterMembers load(long key) throws IOException {
+				String slice = granularity + (key + 1);
+				if (!ClusterShard.kmeansFile(kmeansClusterPath, dimension, slice, trial).exists()
+						&& !new File(kmeansClusterPath + "/clusterassign-d" + dimension + "-" + slice + "-trial" + trial).isDirectory()) {
+					System.out.println("File not found");
+					return new ClusterMembers(numClusters);
+				}
+				return readMembers(kmeansClusterPath, dimension, slice, trial, numClusters, index);
+			}
+
+			protected long sizeOf(ClusterMembers members) {
+				return members.getBytes();
+			}
+		};
+	}
+
+	/**
+	 * Last hour searched by any topic; slices after it need not be read.
+	 */
+	public static int lastHour(int[] days, int[] hours) {
+		int last = 0;
+		for (int t = 0; t < days.length; t ++) {
+			last = Math.max(last, 24 * days[t] + hours[t]);
+		}
+		return last;
+	}
+}
@@ -0,0 +1,234 @@
+package ts4.ts4_core.tweets.search;
+
+import java.util.Arrays;
+
+import ts4.ts4_core.tweets.util.ClusterMembers;
+import ts4.ts4_core.tweets.util.ForwardIndex;
+import ts4.ts4_core.tweets.util.GenerateStatistics;
+
+/**
+ * Inverted index over the members of one cluster. Members keep the order of the cluster assignment,
+ * which must be by increasing tweet id (see ClusterAssignments), and are addressed by their
+ * position in it; their tweet ids and norms are copied out of the forward index. The members up to
+ * a query time are thus a prefix, found by binary search. Each distinct term of the cluster has a
+ * posting list of (member position, tf) in increasing member order, so scoring touches only the
+ * postings of the query terms. Each list also keeps its largest tf and the norm of its shortest
+ * member, which bound a term's score contribution in the cluster. Read-only once built.
+ */
+public class ClusterIndex {
+	private final int[] docs;
+	private final long[] ids;
+	private final byte[] norms;
+	private final int[] terms;
+	private final int[] offsets;
+	private final int[] postingDocs;
+	private final int[] postingTf;
+	private final int[] maxTf;
+	private final byte[] shortestNorms;
+
+	private ClusterIndex(int[] docs, long[] ids, byte[] norms, int[] terms, int[] offsets, int[] postingDocs, int[] postingTf, int[] maxTf, byte[] shortestNorms) {
+		this.docs = docs;
+		this.ids = ids;
+		this.norms = norms;
+		this.terms = terms;
+		this.offsets = offsets;
+		this.postingDocs = postingDocs;
+		this.postingTf = postingTf;
+		this.maxTf = maxTf;
+		this.shortestNorms = shortestNorms;
+	}
+
+	/**
+	 * Inverts the postings of the members of a cluster, which must be in tweet id order.
+	 */
+	public static ClusterIndex build(ForwardIndex index, ClusterMembers members, int cluster) {
+		int size = members.size(cluster);
+		int[] docs = new int[size];
+		long[] ids = new long[size];
+		byte[] norms = new byte[size];
+		int total = 0;
+		for (int d = 0; d < size; d ++) {
+			docs[d] = members.get(cluster, d);
+			ids[d] = index.getId(docs[d]);
+			if (d > 0 && ids[d] < ids[d - 1]) {
+				throw new IllegalArgumentException("Cluster members not in tweet id order at " + docs[d]);
+			}
+			norms[d] = index.getNorm(docs[d]);
+			total += index.getTermCount(docs[d]);
+		}
+
+		// Postings of all members in member order, then grouped by term with a stable counting pass
+		int[] allTerms = new int[total];
+		int[] allDocs = new int[total];
+		int[] allTf = new int[total];
+		int[] docTerms = new int[index.getMaxTermCount()];
+		int[] docTf = new int[index.getMaxTermCount()];
+		int p = 0;
+		for (int d = 0; d < size; d ++) {
+			int n = index.read(docs[d], docTerms, docTf);
+			for (int j = 0; j < n; j ++) {
+				allTerms[p] = docTerms[j];
+				allDocs[p] = d;
+				allTf[p ++] = docTf[j];
+			}
+		}
+
+		int[] sorted = Arrays.copyOf(allTerms, total);
+		Arrays.sort(sorted);
+		int numTerms = 0;
+		for (int k = 0; k < total; k ++) {
+			if (k == 0 || sorted[k] != sorted[k - 1]) {
+				sorted[numTerms ++] = sorted[k];
+			}
+		}
+		int[] terms = Arrays.copyOf(sorted, numTerms);
+		int[] offsets = new int[numTerms + 1];
+		int[] slot = new int[total];
+		for (int k = 0; k < total; k ++) {
+			slot[k] = Arrays.binarySearch(terms, allTerms[k]);
+			offsets[slot[k] + 1] ++;
+		}
+		for (int t = 0; t < numTerms; t ++) {
+			offsets[t + 1] += offsets[t];
+		}
+		int[] fill = Arrays.copyOf(offsets, numTerms);
+		int[] postingDocs = new int[total];
+		int[] postingTf = new int[total];
+		for (int k = 0; k < total; k ++) {
+			int q = fill[slot[k]] ++;
+			postingDocs[q] = allDocs[k];
+			postingTf[q] = allTf[k];
+		}
+
+		int[] maxTf = new int[numTerms];
+		byte[] shortestNorms = new byte[numTerms];
+		for (int t = 0; t < numTerms; t ++) {
+			shortestNorms[t] = norms[postingDocs[offsets[t]]];
+			for (int q = offsets[t]; q < offsets[t + 1]; q ++) {
+				maxTf[t] = Math.max(maxTf[t], postingTf[q]);
+				if (GenerateStatistics.decodeNormValue(norms[postingDocs[q]]) < GenerateStatistics.decodeNormValue(shortestNorms[t])) {
+					shortestNorms[t] = norms[postingDocs[q]];
+				}
+			}
+		}
+		return new ClusterIndex(docs, ids, norms, terms, offsets, postingDocs, postingTf, maxTf, shortestNorms);
+	}
+
+	/**
+	 * Number of members.
+	 */
+	public int size() {
+		return docs.length;
+	}
+
+	/**
+	 * Bytes held by the arrays of the index.
+	 */
+	public long getBytes() {
+		return 4L * (docs.length + terms.length + offsets.length + postingDocs.length + postingTf.length + maxTf.length)
+				+ 8L * ids.length + norms.length + shortestNorms.length;
+	}
+
+	/**
+	 * Doc ordinal of the member at a position.
+	 */
+	public int getDoc(int d) {
+		return docs[d];
+	}
+
+	public long getId(int d) {
+		return ids[d];
+	}
+
+	public byte getNorm(int d) {
+		return norms[d];
+	}
+
+	/**
+	 * Number of members whose tweet id is at most maxId.
+	 */
+	public int countUpTo(long maxId) {
+		int lo = 0;
+		int hi = ids.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (ids[mid] <= maxId) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Number of members at positions lo to hi - 1 whose tweet id is at most maxId.
+	 */
+	public int countUpTo(long maxId, int lo, int hi) {
+		return Math.max(0, Math.min(hi, countUpTo(maxId)) - lo);
+	}
+
+	/**
+	 * Index of a term's posting list, or a negative value if no member contains the term.
+	 */
+	public int findTerm(int termId) {
+		return Arrays.binarySearch(terms, termId);
+	}
+
+	public int getPostingsStart(int k) {
+		return offsets[k];
+	}
+
+	public int getPostingsEnd(int k) {
+		return offsets[k + 1];
+	}
+
+	/**
+	 * First posting of list k whose member position is at least d.
+	 */
+	public int findPosting(int k, int d) {
+		return findPosting(k, d, offsets[k]);
+	}
+
+	/**
+	 * Same, searching from posting from on.
+	 */
+	public int findPosting(int k, int d, int from) {
+		int lo = from;
+		int hi = offsets[k + 1];
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (postingDocs[mid] < d) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Member position of a posting.
+	 */
+	public int getPostingDoc(int p) {
+		return postingDocs[p];
+	}
+
+	public int getPostingTf(int p) {
+		return postingTf[p];
+	}
+
+	/**
+	 * Largest tf of list k.
+	 */
+	public int getMaxTf(int k) {
+		return maxTf[k];
+	}
+
+	/**
+	 * Norm byte of the shortest member in list k.
+	 */
+	public byte getShortestNorm(int k) {
+		return shortestNorms[k];
+	}
+}
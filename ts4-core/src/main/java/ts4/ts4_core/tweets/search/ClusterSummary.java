@@ -0,0 +1,294 @@
+/* Per-cluster summaries written alongside the kmeans cluster assignments of every day and hour of a trial,
+ * read from its binary cluster shards or its clusterassign part files; streaming trials are not summarized
+ * Run: sh target/appassembler/bin/ClusterSummary -stats {statsPath} -kmeansclusters {kmeansclustersPath} -dimension {dimension} -partition {partitionNum} -trial {trial}
+ */
+package ts4.ts4_core.tweets.search;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.log4j.Logger;
+
+import ts4.ts4_core.tweets.util.ClusterMembers;
+import ts4.ts4_core.tweets.util.ClusterShard;
+import ts4.ts4_core.tweets.util.ForwardIndex;
+import ts4.ts4_core.tweets.util.GenerateStatistics;
+
+/**
+ * Summary of one cluster: member count, smallest and largest tweet id, and for each distinct term
+ * its largest tf and the norm byte of its shortest member. These bound the query likelihood
+ * contribution of the term for any query cf, so a whole cluster whose members cannot make a hit
+ * is skipped without reading them (see QueryLikelihoodScorer.canHit). The summaries of a slice
+ * are stored as SUMMARY in its clusterassign directory, next to the part files, after the number
+ * of clusters and the member count of each, by which they are matched to the members searched.
+ */
+public class ClusterSummary {
+	private static final Logger LOG = Logger.getLogger(ClusterSummary.class);
+
+	public static final String SUMMARY = "summary.bin";
+	public static final int MAGIC = 0x54533443;	// "TS4C"
+	public static final int VERSION = 1;
+
+	private static final String STATS_OPTION = "stats";
+	private static final String KMEANS_CLUSTER_OPTION = "kmeansclusters";
+	private static final String DIMENSION = "dimension";
+	private static final String PARTITION = "partition";
+	private static final String TRIAL = "trial";
+
+	private final int size;
+	private final long minId;
+	private final long maxId;
+	private final int[] terms;
+	private final int[] maxTf;
+	private final byte[] shortestNorms;
+
+	private ClusterSummary(int size, long minId, long maxId, int[] terms, int[] maxTf, byte[] shortestNorms) {
+		this.size = size;
+		this.minId = minId;
+		this.maxId = maxId;
+		this.terms = terms;
+		this.maxTf = maxTf;
+		this.shortestNorms = shortestNorms;
+	}
+
+	/**
+	 * Summarizes the members of a cluster.
+	 */
+	public static ClusterSummary build(ForwardIndex index, ClusterMembers members, int cluster) {
+		int size = members.size(cluster);
+		long minId = Long.MAX_VALUE;
+		long maxId = Long.MIN_VALUE;
+		int total = 0;
+		for (int d = 0; d < size; d ++) {
+			long id = index.getId(members.get(cluster, d));
+			minId = Math.min(minId, id);
+			maxId = Math.max(maxId, id);
+			total += index.getTermCount(members.get(cluster, d));
+		}
+
+		int[] allTerms = new int[total];
+		int[] allTf = new int[total];
+		byte[] allNorms = new byte[total];
+		int[] docTerms = new int[index.getMaxTermCount()];
+		int[] docTf = new int[index.getMaxTermCount()];
+		int p = 0;
+		for (int d = 0; d < size; d ++) {
+			int n = index.read(members.get(cluster, d), docTerms, docTf);
+			byte norm = index.getNorm(members.get(cluster, d));
+			for (int j = 0; j < n; j ++) {
+				allTerms[p] = docTerms[j];
+				allTf[p] = docTf[j];
+				allNorms[p ++] = norm;
+			}
+		}
+
+		int[] sorted = Arrays.copyOf(allTerms, total);
+		Arrays.sort(sorted);
+		int numTerms = 0;
+		for (int k = 0; k < total; k ++) {
+			if (k == 0 || sorted[k] != sorted[k - 1]) {
+				sorted[numTerms ++] = sorted[k];
+			}
+		}
+		int[] terms = Arrays.copyOf(sorted, numTerms);
+		int[] maxTf = new int[numTerms];
+		byte[] shortestNorms = new byte[numTerms];
+		for (int k = 0; k < total; k ++) {
+			int t = Arrays.binarySearch(terms, allTerms[k]);
+			if (maxTf[t] == 0 || GenerateStatistics.decodeNormValue(allNorms[k]) < GenerateStatistics.decodeNormValue(shortestNorms[t])) {
+				shortestNorms[t] = allNorms[k];
+			}
+			maxTf[t] = Math.max(maxTf[t], allTf[k]);
+		}
+		return new ClusterSummary(size, minId, maxId, terms, maxTf, shortestNorms);
+	}
+
+	/**
+	 * Number of members.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public long getMinId() {
+		return minId;
+	}
+
+	public long getMaxId() {
+		return maxId;
+	}
+
+	/**
+	 * Index of a term, or a negative value if no member contains it.
+	 */
+	public int findTerm(int termId) {
+		return Arrays.binarySearch(terms, termId);
+	}
+
+	/**
+	 * Largest tf of term k.
+	 */
+	public int getMaxTf(int k) {
+		return maxTf[k];
+	}
+
+	/**
+	 * Norm byte of the shortest member containing term k.
+	 */
+	public byte getShortestNorm(int k) {
+		return shortestNorms[k];
+	}
+
+	/**
+	 * Whether summaries were built from these members: one per cluster, of as many members.
+	 */
+	public static boolean matches(ClusterSummary[] summaries, ClusterMembers members) {
+		if (summaries.length != members.getNumClusters()) {
+			return false;
+		}
+		for (int c = 0; c < summaries.length; c ++) {
+			if (summaries[c].size != members.size(c)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the summaries of the clusters of a slice.
+	 */
+	public static void write(File file, ClusterSummary[] summaries) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(summaries.length);
+		for (ClusterSummary summary : summaries) {
+			out.writeInt(summary.size);
+		}
+		for (ClusterSummary summary : summaries) {
+			out.writeLong(summary.minId);
+			out.writeLong(summary.maxId);
+			out.writeInt(summary.terms.length);
+			for (int k = 0; k < summary.terms.length; k ++) {
+				out.writeInt(summary.terms[k]);
+				out.writeInt(summary.maxTf[k]);
+				out.writeByte(summary.shortestNorms[k]);
+			}
+		}
+		out.close();
+	}
+
+	/**
+	 * Reads the summaries of the clusters of a slice.
+	 */
+	public static ClusterSummary[] read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException(file + " is not a cluster summary of this version, rebuild it with ClusterSummary");
+			}
+			int[] sizes = new int[in.readInt()];
+			for (int c = 0; c < sizes.length; c ++) {
+				sizes[c] = in.readInt();
+			}
+			ClusterSummary[] summaries = new ClusterSummary[sizes.length];
+			for (int c = 0; c < summaries.length; c ++) {
+				long minId = in.readLong();
+				long maxId = in.readLong();
+				int numTerms = in.readInt();
+				int[] terms = new int[numTerms];
+				int[] maxTf = new int[numTerms];
+				byte[] shortestNorms = new byte[numTerms];
+				for (int k = 0; k < numTerms; k ++) {
+					terms[k] = in.readInt();
+					maxTf[k] = in.readInt();
+					shortestNorms[k] = in.readByte();
+				}
+				summaries[c] = new ClusterSummary(sizes[c], minId, maxId, terms, maxTf, shortestNorms);
+			}
+			return summaries;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Summaries stored in a clusterassign directory, or null if there are none.
+	 */
+	public static ClusterSummary[] readIfExists(String path) throws IOException {
+		File file = new File(path, SUMMARY);
+		return file.exists() ? read(file) : null;
+	}
+
+	@SuppressWarnings("static-access")
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("statistics location").create(STATS_OPTION));
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("kmeans cluster centers and assignments").create(KMEANS_CLUSTER_OPTION));
+		options.addOption(OptionBuilder.withArgName("arg").hasArg()
+				.withDescription("dimension").create(DIMENSION));
+		options.addOption(OptionBuilder.withArgName("arg").hasArg()
+				.withDescription("partition number").create(PARTITION));
+		options.addOption(OptionBuilder.withArgName("arg").hasArg()
+				.withDescription("trial").create(TRIAL));
+
+		CommandLine cmdline = null;
+		CommandLineParser parser = new GnuParser();
+		try {
+			cmdline = parser.parse(options, args);
+		} catch (ParseException exp) {
+			System.err.println("Error parsing command line: " + exp.getMessage());
+			System.exit(-1);
+		}
+
+		if (!cmdline.hasOption(STATS_OPTION) || !cmdline.hasOption(KMEANS_CLUSTER_OPTION) || !cmdline.hasOption(DIMENSION) || !cmdline.hasOption(PARTITION) || !cmdline.hasOption(TRIAL)) {
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp(ClusterSummary.class.getName(), options);
+			System.exit(-1);
+		}
+
+		String statsPath = cmdline.getOptionValue(STATS_OPTION);
+		String kmeansClusterPath = cmdline.getOptionValue(KMEANS_CLUSTER_OPTION);
+		int dimension = Integer.parseInt(cmdline.getOptionValue(DIMENSION));
+		int partitionNum = Integer.parseInt(cmdline.getOptionValue(PARTITION));
+		String trial = cmdline.getOptionValue(TRIAL);
+
+		ForwardIndex index = ForwardIndex.load(statsPath);
+		int numSlices = 0;
+		for (String granularity : new String[] { "day", "hour" }) {
+			for (int i = 1; ; i ++) {
+				String slice = granularity + i;
+				File dir = new File(kmeansClusterPath, "clusterassign-d" + dimension + "-" + slice + "-trial" + trial);
+				if (!ClusterShard.kmeansFile(kmeansClusterPath, dimension, slice, trial).exists() && !dir.isDirectory()) {
+					break;
+				}
+				ClusterMembers clusters = ClusterAssignments.readMembers(kmeansClusterPath, dimension, slice, trial, partitionNum, index);
+				ClusterSummary[] summaries = new ClusterSummary[partitionNum];
+				for (int j = 0; j < partitionNum; j ++) {
+					summaries[j] = build(index, clusters, j);
+				}
+				dir.mkdirs();
+				write(new File(dir, SUMMARY), summaries);
+				numSlices ++;
+			}
+		}
+		LOG.info("Total " + numSlices + " slices summarized");
+	}
+}
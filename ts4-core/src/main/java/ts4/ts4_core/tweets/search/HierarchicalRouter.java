@@ -0,0 +1,452 @@
+package ts4.ts4_core.tweets.search;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Two-level version of CentroidRouter for long archives. The normalized centers of all clusters of
+ * all slices are themselves clustered by spherical k-means into super-centers, each with the range
+ * of slices its members come from. A query is compared with the super-centers first, and only the
+ * centers under the best few super-centers overlapping the slices it searches are compared with it.
+ * In each slice, those clusters are ranked first by their own similarity, and the others after them
+ * by the similarity of their super-center; ties go to the lower cluster, and ranks past the number
+ * of clusters of a slice are 0. The number of similarities computed per query thus grows with the
+ * number of super-centers and the size of those probed, rather than with the length of the archive.
+ * Probing every super-center ranks as CentroidRouter does. Read-only once built.
+ *
+ * The super-centers and the assignment of the centers to them are kept in a file next to the
+ * shards (see open), with a checksum of the centers of each slice; centers of slices that changed
+ * or were added since are assigned to the nearest kept super-center instead of clustering again.
+ */
+public class HierarchicalRouter {
+	private static final Logger LOG = Logger.getLogger(HierarchicalRouter.class);
+
+	public static final int MAGIC = 0x54533448;	// "TS4H"
+	public static final int VERSION = 1;
+
+	private static final int ITERATIONS = 10;
+	private static final int ROWS = 1024;
+
+	private final int dimension;
+	// Normalized centers of all slices, slice after slice, and the rows of each slice
+	private final float[] rows;
+	private final int[] sliceStarts;
+	private final int[] groupOf;
+	private final float[] groupCenters;
+	private final int numGroups;
+	private final int[] groupStarts;
+	private final int[] groupRows;
+	private final int[] firstSlices;
+	private final int[] lastSlices;
+
+	private HierarchicalRouter(float[] rows, int[] sliceStarts, int dimension, float[] groupCenters, int[] groupOf) {
+		this.rows = rows;
+		this.sliceStarts = sliceStarts;
+		this.dimension = dimension;
+		this.groupCenters = groupCenters;
+		this.numGroups = groupCenters.length / dimension;
+		this.groupOf = groupOf;
+
+		// Rows of each group in row order, hence in slice order, and the slices they span
+		int numRows = groupOf.length;
+		int numSlices = sliceStarts.length - 1;
+		groupStarts = new int[numGroups + 1];
+		for (int m = 0; m < numRows; m ++) {
+			groupStarts[groupOf[m] + 1] ++;
+		}
+		for (int g = 0; g < numGroups; g ++) {
+			groupStarts[g + 1] += groupStarts[g];
+		}
+		int[] fill = Arrays.copyOf(groupStarts, numGroups);
+		groupRows = new int[numRows];
+		for (int m = 0; m < numRows; m ++) {
+			groupRows[fill[groupOf[m]] ++] = m;
+		}
+		firstSlices = new int[numGroups];
+		lastSlices = new int[numGroups];
+		Arrays.fill(firstSlices, Integer.MAX_VALUE);
+		Arrays.fill(lastSlices, -1);
+		for (int s = 0; s < numSlices; s ++) {
+			for (int m = sliceStarts[s]; m < sliceStarts[s + 1]; m ++) {
+				firstSlices[groupOf[m]] = Math.min(firstSlices[groupOf[m]], s);
+				lastSlices[groupOf[m]] = Math.max(lastSlices[groupOf[m]], s);
+			}
+		}
+	}
+
+	/**
+	 * Centers of each slice's clusters, a slice may be null or have no clusters, grouped under at
+	 * most groups super-centers by spherical k-means.
+	 */
+	public static HierarchicalRouter build(double[][][] centers, int dimension, int groups) {
+		int[] sliceStarts = sliceStarts(centers);
+		float[] rows = normalize(centers, sliceStarts, dimension);
+		int numRows = sliceStarts[centers.length];
+
+		// Spherical k-means, seeded with rows spread evenly over the archive
+		int numGroups = Math.max(1, Math.min(groups, numRows));
+		float[] groupCenters = new float[numGroups * dimension];
+		for (int g = 0; g < numGroups && numRows > 0; g ++) {
+			System.arraycopy(rows, (int) ((long) g * numRows / numGroups) * dimension, groupCenters, g * dimension, dimension);
+		}
+		int[] groupOf = new int[numRows];
+		for (int it = 0; it < ITERATIONS; it ++) {
+			assign(rows, groupCenters, dimension, groupOf, 0, numRows);
+			double[][] sums = new double[numGroups][dimension];
+			for (int m = 0; m < numRows; m ++) {
+				for (int j = 0; j < dimension; j ++) {
+					sums[groupOf[m]][j] += rows[m * dimension + j];
+				}
+			}
+			for (int g = 0; g < numGroups; g ++) {
+				double length = 0;
+				for (int j = 0; j < dimension; j ++) {
+					length += sums[g][j] * sums[g][j];
+				}
+				// A group left without members keeps its center
+				if (length > 0) {
+					CentroidRouter.normalize(sums[g], dimension, groupCenters, g * dimension);
+				}
+			}
+		}
+		assign(rows, groupCenters, dimension, groupOf, 0, numRows);
+		return new HierarchicalRouter(rows, sliceStarts, dimension, groupCenters, groupOf);
+	}
+
+	/**
+	 * File of the super-centers of a granularity such as "day" or "hour", in the directory of its
+	 * shards.
+	 */
+	public static File file(String path, int dimension, String granularity, String trial, int groups) {
+		return new File(path, "supercenters-d" + dimension + "-" + granularity + "-g" + groups + "-trial" + trial);
+	}
+
+	/**
+	 * As build, reusing the super-centers kept in file when it holds as many of the same dimension:
+	 * slices whose centers are unchanged keep their assignment, and the others are assigned to the
+	 * nearest super-center. The file is written when missing or when any slice was assigned anew;
+	 * a failure to write it is logged.
+	 */
+	public static HierarchicalRouter open(File file, double[][][] centers, int dimension, int groups) {
+		int[] sliceStarts = sliceStarts(centers);
+		float[] rows = normalize(centers, sliceStarts, dimension);
+		long[] checksums = checksums(rows, sliceStarts, dimension);
+		int numRows = sliceStarts[centers.length];
+		int numGroups = Math.max(1, Math.min(groups, numRows));
+
+		HierarchicalRouter router = null;
+		boolean changed = true;
+		if (file.exists()) {
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20));
+				try {
+					if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+						throw new IOException(file + " is not a super-center file");
+					}
+					if (in.readInt() == dimension && in.readInt() == numGroups) {
+						float[] groupCenters = new float[numGroups * dimension];
+						for (int k = 0; k < groupCenters.length; k ++) {
+							groupCenters[k] = in.readFloat();
+						}
+						// Slices of the file in order, each with its row count, checksum and groups
+						int numKept = in.readInt();
+						int[] groupOf = new int[numRows];
+						int assigned = 0;
+						for (int s = 0; s < numKept; s ++) {
+							int n = in.readInt();
+							long checksum = in.readLong();
+							int[] kept = new int[n];
+							for (int i = 0; i < n; i ++) {
+								kept[i] = in.readInt();
+							}
+							if (s < centers.length && n == sliceStarts[s + 1] - sliceStarts[s] && checksum == checksums[s]) {
+								System.arraycopy(kept, 0, groupOf, sliceStarts[s], n);
+							} else if (s < centers.length) {
+								assign(rows, groupCenters, dimension, groupOf, sliceStarts[s], sliceStarts[s + 1]);
+								assigned ++;
+							}
+						}
+						if (numKept < centers.length) {
+							assign(rows, groupCenters, dimension, groupOf, sliceStarts[numKept], numRows);
+							assigned += centers.length - numKept;
+						}
+						changed = assigned > 0 || numKept != centers.length;
+						LOG.info("Read super-centers from " + file + ", " + assigned + " slices assigned anew");
+						router = new HierarchicalRouter(rows, sliceStarts, dimension, groupCenters, groupOf);
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				LOG.warn("Cannot read super-centers from " + file + ", clustering again: " + e);
+			}
+		}
+		if (router == null) {
+			router = build(centers, dimension, groups);
+		}
+		if (changed) {
+			try {
+				router.write(file, checksums);
+			} catch (IOException e) {
+				LOG.warn("Cannot write super-centers to " + file + ": " + e);
+			}
+		}
+		return router;
+	}
+
+	private void write(File file, long[] checksums) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(dimension);
+			out.writeInt(numGroups);
+			for (int k = 0; k < groupCenters.length; k ++) {
+				out.writeFloat(groupCenters[k]);
+			}
+			int numSlices = sliceStarts.length - 1;
+			out.writeInt(numSlices);
+			for (int s = 0; s < numSlices; s ++) {
+				out.writeInt(sliceStarts[s + 1] - sliceStarts[s]);
+				out.writeLong(checksums[s]);
+				for (int m = sliceStarts[s]; m < sliceStarts[s + 1]; m ++) {
+					out.writeInt(groupOf[m]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static int[] sliceStarts(double[][][] centers) {
+		int[] sliceStarts = new int[centers.length + 1];
+		for (int s = 0; s < centers.length; s ++) {
+			sliceStarts[s + 1] = sliceStarts[s] + (centers[s] == null ? 0 : centers[s].length);
+		}
+		return sliceStarts;
+	}
+
+	private static float[] normalize(double[][][] centers, int[] sliceStarts, int dimension) {
+		float[] rows = new float[sliceStarts[centers.length] * dimension];
+		for (int s = 0; s < centers.length; s ++) {
+			for (int m = sliceStarts[s]; m < sliceStarts[s + 1]; m ++) {
+				CentroidRouter.normalize(centers[s][m - sliceStarts[s]], dimension, rows, m * dimension);
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * CRC32 of the normalized centers of each slice.
+	 */
+	private static long[] checksums(float[] rows, int[] sliceStarts, int dimension) {
+		long[] checksums = new long[sliceStarts.length - 1];
+		CRC32 crc = new CRC32();
+		for (int s = 0; s < checksums.length; s ++) {
+			ByteBuffer bytes = ByteBuffer.allocate(4 * (sliceStarts[s + 1] - sliceStarts[s]) * dimension);
+			bytes.asFloatBuffer().put(rows, sliceStarts[s] * dimension, (sliceStarts[s + 1] - sliceStarts[s]) * dimension);
+			crc.reset();
+			crc.update(bytes.array());
+			checksums[s] = crc.getValue();
+		}
+		return checksums;
+	}
+
+	/**
+	 * Assigns rows from to to - 1 to their most similar super-center, ROWS rows at a time.
+	 */
+	private static void assign(float[] rows, float[] groupCenters, int dimension, int[] groupOf, int from, int to) {
+		int numGroups = groupCenters.length / dimension;
+		float[] scores = new float[ROWS * numGroups];
+		float[] block = new float[ROWS * dimension];
+		for (int lo = from; lo < to; lo += ROWS) {
+			int n = Math.min(ROWS, to - lo);
+			System.arraycopy(rows, lo * dimension, block, 0, n * dimension);
+			CentroidRouter.multiply(block, n, groupCenters, numGroups, dimension, scores);
+			for (int r = 0; r < n; r ++) {
+				int best = 0;
+				for (int g = 1; g < numGroups; g ++) {
+					if (scores[r * numGroups + g] > scores[r * numGroups + best]) {
+						best = g;
+					}
+				}
+				groupOf[lo + r] = best;
+			}
+		}
+	}
+
+	/**
+	 * Number of super-centers.
+	 */
+	public int getNumGroups() {
+		return numGroups;
+	}
+
+	/**
+	 * Super-center of a cluster of a slice.
+	 */
+	int getGroup(int slice, int cluster) {
+		return groupOf[sliceStarts[slice] + cluster];
+	}
+
+	/**
+	 * Unit-length center of a super-center.
+	 */
+	float[] getGroupCenter(int g) {
+		return Arrays.copyOfRange(groupCenters, g * dimension, (g + 1) * dimension);
+	}
+
+	/**
+	 * The top best clusters of the slices from[q] to to[q] - 1 for each query q, probing its probe
+	 * best super-centers, indexed by slice and then query as CentroidRouter.route; slices a query
+	 * does not search are null. Only the ranks kept are selected: the probed clusters of a slice by
+	 * insertion, then the others of the slice by walking the super-centers best first.
+	 */
+	public int[][][] route(double[][] queries, int[] from, int[] to, int probe, int top) {
+		int numSlices = sliceStarts.length - 1;
+		int[][][] routes = new int[numSlices][queries.length][];
+		int maxSize = 0;
+		for (int s = 0; s < numSlices; s ++) {
+			maxSize = Math.max(maxSize, sliceStarts[s + 1] - sliceStarts[s]);
+		}
+		float[] query = new float[dimension];
+		float[] groupScores = new float[numGroups];
+		float[] probeScores = new float[numGroups];
+		long[] groupOrder = new long[numGroups];
+		float[] scores = new float[groupOf.length];
+		int[] stamps = new int[groupOf.length];
+		int[] probed = new int[groupOf.length];
+		int[] candidates = new int[maxSize];
+		float[] best = new float[top];
+		for (int q = 0; q < queries.length; q ++) {
+			Arrays.fill(query, 0);
+			CentroidRouter.normalize(queries[q], dimension, query, 0);
+			CentroidRouter.multiply(query, 1, groupCenters, numGroups, dimension, groupScores);
+			for (int g = 0; g < numGroups; g ++) {
+				probeScores[g] = overlaps(g, from[q], to[q]) ? groupScores[g] : Float.NEGATIVE_INFINITY;
+			}
+
+			// Similarities of the rows under the probed super-centers, within the slices searched
+			int firstRow = sliceStarts[from[q]];
+			int lastRow = sliceStarts[to[q]];
+			int numProbed = 0;
+			for (int g : CentroidRouter.select(probeScores, 0, numGroups, Math.min(probe, numGroups))) {
+				if (!overlaps(g, from[q], to[q])) {
+					continue;
+				}
+				int start = lowerBound(groupRows, groupStarts[g], groupStarts[g + 1], firstRow);
+				for (int i = start; i < groupStarts[g + 1] && groupRows[i] < lastRow; i ++) {
+					int m = groupRows[i];
+					scores[m] = CentroidRouter.dot(query, 0, rows, m * dimension, dimension);
+					stamps[m] = q + 1;
+					probed[numProbed ++] = m;
+				}
+			}
+			Arrays.sort(probed, 0, numProbed);
+
+			// Super-centers by decreasing similarity, ties to the lower one
+			for (int g = 0; g < numGroups; g ++) {
+				groupOrder[g] = key(groupScores[g], g);
+			}
+			Arrays.sort(groupOrder);
+
+			int p = 0;
+			for (int s = from[q]; s < to[q]; s ++) {
+				int start = sliceStarts[s];
+				int end = sliceStarts[s + 1];
+				int size = Math.min(top, end - start);
+				int[] route = new int[top];
+				int kept = 0;
+
+				// Probed clusters of the slice, in cluster order, by their own similarity
+				for (; p < numProbed && probed[p] < end; p ++) {
+					float score = scores[probed[p]];
+					if (kept == size && (kept == 0 || !(score > best[kept - 1]))) {
+						continue;
+					}
+					int i = kept < size ? kept ++ : kept - 1;
+					for (; i > 0 && score > best[i - 1]; i --) {
+						best[i] = best[i - 1];
+						route[i] = route[i - 1];
+					}
+					best[i] = score;
+					route[i] = probed[p] - start;
+				}
+
+				// Then the others, a run of equally similar super-centers at a time in cluster order
+				for (int i = 0; i < numGroups && kept < size; ) {
+					float score = groupScores[(int) (groupOrder[i] & 0x3FFFFFFF)];
+					int runEnd = i + 1;
+					while (runEnd < numGroups && groupScores[(int) (groupOrder[runEnd] & 0x3FFFFFFF)] == score) {
+						runEnd ++;
+					}
+					int n = 0;
+					for (; i < runEnd; i ++) {
+						int g = (int) (groupOrder[i] & 0x3FFFFFFF);
+						if (!overlaps(g, s, s + 1)) {
+							continue;
+						}
+						int taken = 0;
+						for (int r = lowerBound(groupRows, groupStarts[g], groupStarts[g + 1], start); r < groupStarts[g + 1] && groupRows[r] < end && taken < size - kept; r ++) {
+							if (stamps[groupRows[r]] != q + 1) {
+								candidates[n ++] = groupRows[r] - start;
+								taken ++;
+							}
+						}
+					}
+					Arrays.sort(candidates, 0, n);
+					for (int k = 0; k < n && kept < size; k ++) {
+						route[kept ++] = candidates[k];
+					}
+				}
+				routes[s][q] = route;
+			}
+		}
+		return routes;
+	}
+
+	/**
+	 * Whether super-center g has clusters in the slices from to to - 1, not just around them.
+	 */
+	private boolean overlaps(int g, int from, int to) {
+		if (firstSlices[g] >= to || lastSlices[g] < from) {
+			return false;
+		}
+		int r = lowerBound(groupRows, groupStarts[g], groupStarts[g + 1], sliceStarts[from]);
+		return r < groupStarts[g + 1] && groupRows[r] < sliceStarts[to];
+	}
+
+	/**
+	 * Sorts by decreasing score, then by cluster.
+	 */
+	private static long key(float score, int cluster) {
+		// -0 and 0 are equal scores
+		int bits = Float.floatToIntBits(score + 0.0f);
+		int ascending = bits ^ ((bits >> 31) & 0x7FFFFFFF);
+		long descending = (~ascending ^ 0x80000000) & 0xFFFFFFFFL;
+		return (descending << 30) | cluster;
+	}
+
+	private static int lowerBound(int[] values, int lo, int hi, int value) {
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (values[mid] < value) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+}
@@ -0,0 +1,199 @@
+package ts4.ts4_core.tweets.search;
+
+import java.util.Arrays;
+
+import ts4.ts4_core.tweets.util.ClusterMembers;
+import ts4.ts4_core.tweets.util.ForwardIndex;
+
+/**
+ * Impact-ordered inverted index over the members of one shard, for score-at-a-time search. The
+ * Dirichlet contribution log(1 + tf / (mu * p(t|C))) + log(mu / (|d| + mu)) of each posting is
+ * computed against a fixed reference collection model, rather than the cf up till each query, and
+ * quantized to an impact from 1 to MAX_IMPACT in steps of a fixed size; postings that contribute
+ * nothing positive are dropped, as are those of the out-of-vocabulary term 0. The postings of each
+ * term are grouped into segments of equal impact in decreasing impact order, each segment in
+ * increasing member order. Members keep their tweet id order. Read-only once built.
+ */
+public class ImpactIndex {
+	public static final int MAX_IMPACT = 255;
+
+	private final long[] ids;
+	private final int[] terms;
+	private final int[] segmentOffsets;
+	private final int[] segmentImpacts;
+	private final int[] postingOffsets;
+	private final int[] postingDocs;
+
+	private ImpactIndex(long[] ids, int[] terms, int[] segmentOffsets, int[] segmentImpacts, int[] postingOffsets, int[] postingDocs) {
+		this.ids = ids;
+		this.terms = terms;
+		this.segmentOffsets = segmentOffsets;
+		this.segmentImpacts = segmentImpacts;
+		this.postingOffsets = postingOffsets;
+		this.postingDocs = postingDocs;
+	}
+
+	/**
+	 * Quantizes the postings of the members of a cluster, in tweet id order. refMuProb holds
+	 * mu * p(t|C) of the reference model by term id, prior the length prior by norm byte, and step
+	 * the contribution of one impact level.
+	 */
+	public static ImpactIndex build(ForwardIndex index, ClusterMembers members, int cluster, float[] refMuProb, double[] prior, double step) {
+		int size = members.size(cluster);
+		long[] ids = new long[size];
+		int total = 0;
+		for (int d = 0; d < size; d ++) {
+			ids[d] = index.getId(members.get(cluster, d));
+			total += index.getTermCount(members.get(cluster, d));
+		}
+
+		// Impacts of all postings in member order, then grouped by term with a stable counting pass
+		int[] allTerms = new int[total];
+		int[] allDocs = new int[total];
+		int[] allImpacts = new int[total];
+		int[] docTerms = new int[index.getMaxTermCount()];
+		int[] docTf = new int[index.getMaxTermCount()];
+		int p = 0;
+		for (int d = 0; d < size; d ++) {
+			int n = index.read(members.get(cluster, d), docTerms, docTf);
+			double docPrior = prior[index.getNorm(members.get(cluster, d)) & 0xFF];
+			for (int j = 0; j < n; j ++) {
+				if (docTerms[j] <= 0 || docTerms[j] >= refMuProb.length) {
+					continue;
+				}
+				double contribution = Math.log(1 + docTf[j] / refMuProb[docTerms[j]]) + docPrior;
+				if (contribution <= 0) {
+					continue;
+				}
+				allTerms[p] = docTerms[j];
+				allDocs[p] = d;
+				allImpacts[p ++] = (int) Math.min(MAX_IMPACT, Math.ceil(contribution / step));
+			}
+		}
+		total = p;
+
+		int[] sorted = Arrays.copyOf(allTerms, total);
+		Arrays.sort(sorted);
+		int numTerms = 0;
+		for (int k = 0; k < total; k ++) {
+			if (k == 0 || sorted[k] != sorted[k - 1]) {
+				sorted[numTerms ++] = sorted[k];
+			}
+		}
+		int[] terms = Arrays.copyOf(sorted, numTerms);
+		int[] termOffsets = new int[numTerms + 1];
+		int[] slot = new int[total];
+		for (int k = 0; k < total; k ++) {
+			slot[k] = Arrays.binarySearch(terms, allTerms[k]);
+			termOffsets[slot[k] + 1] ++;
+		}
+		for (int t = 0; t < numTerms; t ++) {
+			termOffsets[t + 1] += termOffsets[t];
+		}
+		int[] fill = Arrays.copyOf(termOffsets, numTerms);
+		int[] byTerm = new int[total];
+		for (int k = 0; k < total; k ++) {
+			byTerm[fill[slot[k]] ++] = k;
+		}
+
+		// Within each term, a stable counting pass by decreasing impact, one segment per impact
+		int[] segmentOffsets = new int[numTerms + 1];
+		int[] segmentImpacts = new int[total];
+		int[] postingOffsets = new int[total + 1];
+		int[] postingDocs = new int[total];
+		int[] counts = new int[MAX_IMPACT + 1];
+		int[] levelFill = new int[MAX_IMPACT + 1];
+		int numSegments = 0;
+		for (int t = 0; t < numTerms; t ++) {
+			segmentOffsets[t] = numSegments;
+			Arrays.fill(counts, 0);
+			for (int q = termOffsets[t]; q < termOffsets[t + 1]; q ++) {
+				counts[allImpacts[byTerm[q]]] ++;
+			}
+			int pos = termOffsets[t];
+			for (int level = MAX_IMPACT; level >= 1; level --) {
+				if (counts[level] > 0) {
+					segmentImpacts[numSegments] = level;
+					postingOffsets[numSegments ++] = pos;
+					levelFill[level] = pos;
+					pos += counts[level];
+				}
+			}
+			for (int q = termOffsets[t]; q < termOffsets[t + 1]; q ++) {
+				postingDocs[levelFill[allImpacts[byTerm[q]]] ++] = allDocs[byTerm[q]];
+			}
+		}
+		segmentOffsets[numTerms] = numSegments;
+		postingOffsets[numSegments] = total;
+		return new ImpactIndex(ids, terms, segmentOffsets, Arrays.copyOf(segmentImpacts, numSegments), Arrays.copyOf(postingOffsets, numSegments + 1), postingDocs);
+	}
+
+	/**
+	 * Number of members.
+	 */
+	public int size() {
+		return ids.length;
+	}
+
+	/**
+	 * Bytes held by the arrays of the index.
+	 */
+	public long getBytes() {
+		return 8L * ids.length + 4L * (terms.length + segmentOffsets.length + segmentImpacts.length + postingOffsets.length + postingDocs.length);
+	}
+
+	public long getId(int d) {
+		return ids[d];
+	}
+
+	/**
+	 * Number of members whose tweet id is at most maxId.
+	 */
+	public int countUpTo(long maxId) {
+		int lo = 0;
+		int hi = ids.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (ids[mid] <= maxId) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Index of a term's segments, or a negative value if no member contains the term.
+	 */
+	public int findTerm(int termId) {
+		return Arrays.binarySearch(terms, termId);
+	}
+
+	public int getSegmentsStart(int k) {
+		return segmentOffsets[k];
+	}
+
+	public int getSegmentsEnd(int k) {
+		return segmentOffsets[k + 1];
+	}
+
+	public int getSegmentImpact(int s) {
+		return segmentImpacts[s];
+	}
+
+	public int getPostingsStart(int s) {
+		return postingOffsets[s];
+	}
+
+	public int getPostingsEnd(int s) {
+		return postingOffsets[s + 1];
+	}
+
+	/**
+	 * Member position of a posting.
+	 */
+	public int getPostingDoc(int p) {
+		return postingDocs[p];
+	}
+}
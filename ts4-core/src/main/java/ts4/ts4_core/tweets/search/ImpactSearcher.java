@@ -0,0 +1,426 @@
+package ts4.ts4_core.tweets.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import ts4.ts4_core.tweets.util.ClusterMembers;
+import ts4.ts4_core.tweets.util.ForwardIndex;
+import ts4.ts4_core.tweets.util.GenerateStatistics;
+import ts4.ts4_core.tweets.util.TermStatistics;
+
+/**
+ * Score-at-a-time selective search over impact-ordered shards, an approximate alternative to
+ * SelectiveSearcher. Shards are selected as there, but scored with the quantized impacts of
+ * ImpactIndex, computed against the collection frequencies of the whole index rather than those
+ * up till the query. For each cutoff, the segments of the query terms in all selected shards are
+ * processed in decreasing order of impact times the term's count in the query, adding to one
+ * accumulator per member, until the postings processed reach the budget. Members up to the query
+ * time with a positive accumulator are then ranked by it. With no budget every posting is
+ * processed, and the ranking is that of the quantized scores. Segments are listed by weighted
+ * impact as shards are selected and accumulators are hashed by member, so with a budget a cutoff
+ * costs about the budget rather than the shards selected; without one, each cutoff only adds
+ * the postings of the shards it selects.
+ * Impact indexes are built the first time a shard is selected, once even when topics are searched
+ * concurrently, and kept in ShardCaches within a budget, as the cluster indexes of SelectiveSearcher
+ * are; members are read through ShardCaches too.
+ */
+public class ImpactSearcher {
+	private final ForwardIndex index;
+	private final ShardCache<ClusterMembers> indexes_days;
+	private final ShardCache<ClusterMembers> indexes_hours;
+	private final ShardCache<ImpactIndex> impacts_days;
+	private final ShardCache<ImpactIndex> impacts_hours;
+	private final float[] refMuProb;
+	private final double[] prior;
+	private final double step;
+	private final int numResults;
+	private final int budget;
+
+	/**
+	 * Members of each (day, cluster) and (hour, cluster) shard as doc ordinals in tweet id order,
+	 * as for SelectiveSearcher. Impacts are quantized against the term frequencies of termStats.
+	 * budget is the number of postings processed per cutoff before it stops; 0 processes them all.
+	 */
+	public ImpactSearcher(ForwardIndex index, ClusterMembers[] indexesDays, ClusterMembers[] indexesHours, TermStatistics termStats, float mu, int numResults, int budget) {
+		this(index, indexesDays == null ? null : ShardCache.of(indexesDays), ShardCache.of(indexesHours), termStats, mu, numResults, budget, 0);
+	}
+
+	/**
+	 * Members of each day and hour as the caches load them, keyed by slice. The impact indexes of
+	 * days and of hours are each kept within impactBudget bytes, or
+	 * SelectiveSearcher.DEFAULT_CLUSTER_BUDGET if 0.
+	 */
+	public ImpactSearcher(ForwardIndex index, ShardCache<ClusterMembers> indexesDays, ShardCache<ClusterMembers> indexesHours, TermStatistics termStats, float mu, int numResults, int budget, long impactBudget) {
+		this.index = index;
+		this.indexes_days = indexesDays;
+		this.indexes_hours = indexesHours;
+		if (impactBudget <= 0) {
+			impactBudget = SelectiveSearcher.DEFAULT_CLUSTER_BUDGET;
+		}
+		this.impacts_days = impactCache(indexesDays, impactBudget);
+		this.impacts_hours = impactCache(indexesHours, impactBudget);
+		this.numResults = numResults;
+		this.budget = budget;
+
+		int vocab = termStats.getVocabSize();
+		long totalTerms = 0;
+		for (int id = 1; id <= vocab; id ++) {
+			totalTerms += termStats.getFreq(id);
+		}
+		// A term's tf in a doc is at most its cf, which bounds the contribution of its postings
+		refMuProb = new float[vocab + 1];
+		double maxContribution = 0;
+		for (int id = 1; id <= vocab; id ++) {
+			refMuProb[id] = mu * (float) (termStats.getFreq(id) + 1) / (totalTerms + 1);
+			if (termStats.getFreq(id) > 0) {
+				maxContribution = Math.max(maxContribution, Math.log(1 + termStats.getFreq(id) / refMuProb[id]));
+			}
+		}
+		prior = new double[256];
+		for (int i = 0; i < 256; i ++) {
+			prior[i] = Math.log(mu / (GenerateStatistics.decodeNormValue((byte) i) + mu));
+		}
+		// The largest contribution any posting can have maps to MAX_IMPACT
+		step = (maxContribution > 0 ? maxContribution : 1) / ImpactIndex.MAX_IMPACT;
+	}
+
+	/**
+	 * Impact indexes keyed by slice << 32 | cluster, built from the members of the slice.
+	 */
+	private ShardCache<ImpactIndex> impactCache(final ShardCache<ClusterMembers> indexes, long budget) {
+		return new ShardCache<ImpactIndex>(budget) {
+			protected ImpactIndex load(long key) {
+				return ImpactIndex.build(index, indexes.get(key >>> 32), (int) key, refMuProb, prior, step);
+			}
+
+			protected long sizeOf(ImpactIndex impact) {
+				return impact.getBytes();
+			}
+		};
+	}
+
+	/**
+	 * Hits, misses and evictions of the member and impact index caches.
+	 */
+	public String getCacheStats() {
+		String stats = "hourly members: " + indexes_hours + "; hourly impact indexes: " + impacts_hours;
+		if (indexes_days != null) {
+			stats += "; daily members: " + indexes_days + "; daily impact indexes: " + impacts_days;
+		}
+		return stats;
+	}
+
+	/**
+	 * Searches days full days and then hours hours of the next day, up to queryTime, as
+	 * SelectiveSearcher.search does: returns the top N of each cutoff from 1 to top, highest score
+	 * first, and sets selectedSizes[k - 1] to the number of docs selected up to cutoff k.
+	 */
+	public PairOfLongFloat[][] search(int[] queryTerms, long queryTime, int days, int hours, int[][] partitions, int top, int[] selectedSizes) {
+		// Distinct query terms, weighted by their count in the query
+		int[] sorted = Arrays.copyOf(queryTerms, queryTerms.length);
+		Arrays.sort(sorted);
+		int numTerms = 0;
+		int[] terms = new int[sorted.length];
+		int[] weights = new int[sorted.length];
+		for (int i = 0; i < sorted.length; i ++) {
+			if (sorted[i] <= 0 || sorted[i] >= refMuProb.length) {
+				continue;
+			}
+			if (numTerms > 0 && terms[numTerms - 1] == sorted[i]) {
+				weights[numTerms - 1] ++;
+			} else {
+				terms[numTerms] = sorted[i];
+				weights[numTerms ++] = 1;
+			}
+		}
+
+		int maxWeight = 0;
+		for (int t = 0; t < numTerms; t ++) {
+			maxWeight = Math.max(maxWeight, weights[t]);
+		}
+		Segments segments = new Segments(ImpactIndex.MAX_IMPACT * maxWeight);
+		Accumulators acc = new Accumulators(budget);
+
+		// The final hour is selected at every cutoff, and ranks after the other shards
+		int finalHour = 24 * days + hours;
+		ClusterMembers finalMembers = indexes_hours.get(finalHour - 1);
+		int finalSize = 0;
+		for (int partition = 0; partition < finalMembers.getNumClusters(); partition ++) {
+			if (startsAfter(finalMembers, partition, queryTime)) {
+				continue;
+			}
+			ImpactIndex shard = getImpacts(impacts_hours, finalHour - 1, partition);
+			finalSize += segments.addShard(shard, shard.countUpTo(queryTime), true, terms, weights, numTerms);
+		}
+
+		PairOfLongFloat[][] results = new PairOfLongFloat[top][];
+		int selectedSize = 0;
+		for (int topIdx = 1; topIdx <= top; topIdx ++) {
+			int partitionInd = 0;
+			for (int day = 1; day <= days; day ++) {
+				ImpactIndex shard = getImpacts(impacts_days, day - 1, partitions[partitionInd ++][topIdx - 1]);
+				selectedSize += segments.addShard(shard, shard.countUpTo(queryTime), false, terms, weights, numTerms);
+			}
+			for (int hour = 24 * days + 1; hour <= 24 * days + hours - 1; hour ++) {
+				ImpactIndex shard = getImpacts(impacts_hours, hour - 1, partitions[partitionInd ++][topIdx - 1]);
+				selectedSize += segments.addShard(shard, shard.countUpTo(queryTime), false, terms, weights, numTerms);
+			}
+			selectedSize += finalSize;
+			selectedSizes[topIdx - 1] = selectedSize;
+			results[topIdx - 1] = scoreAtATime(segments, acc);
+		}
+		return results;
+	}
+
+	/**
+	 * A search to run on a pool; selectedSizes is filled when it completes.
+	 */
+	public Callable<PairOfLongFloat[][]> task(final int[] queryTerms, final long queryTime, final int days, final int hours, final int[][] partitions, final int top, final int[] selectedSizes) {
+		return new Callable<PairOfLongFloat[][]>() {
+			public PairOfLongFloat[][] call() {
+				return search(queryTerms, queryTime, days, hours, partitions, top, selectedSizes);
+			}
+		};
+	}
+
+	/**
+	 * Ranks the members of the shards selected so far by their accumulators. With a budget the
+	 * accumulators are computed anew, processing segments from the highest weighted impact until
+	 * the budget is spent, so a cutoff costs the budget and not the shards selected. Without one
+	 * every posting counts, and only the segments added since the last cutoff are processed.
+	 */
+	private PairOfLongFloat[] scoreAtATime(Segments segments, Accumulators acc) {
+		if (budget > 0) {
+			acc.clear();
+			long processed = 0;
+			levels:
+			for (int level = segments.maxLevel; level >= 1; level --) {
+				for (int list = 0; list < 2; list ++) {
+					int[] items = segments.items[list][level];
+					for (int i = 0; i < segments.sizes[list][level]; i += 2) {
+						if (processed >= budget) {
+							break levels;
+						}
+						processed += process(segments, items[i], items[i + 1], level, acc);
+					}
+				}
+			}
+		} else {
+			for (int level = segments.maxLevel; level >= 1; level --) {
+				for (int list = 0; list < 2; list ++) {
+					int[] items = segments.items[list][level];
+					for (int i = segments.processed[list][level]; i < segments.sizes[list][level]; i += 2) {
+						process(segments, items[i], items[i + 1], level, acc);
+					}
+					segments.processed[list][level] = segments.sizes[list][level];
+				}
+			}
+		}
+
+		// Accumulators in shard and member order, as the exhaustive search adds its hits
+		long[] keys = acc.sortedKeys();
+		TopNScoredLongs topN = new TopNScoredLongs(numResults);
+		for (long key : keys) {
+			float score = (float) (acc.get(key) * step);
+			if (score > topN.threshold()) {
+				int order = (int) (key >>> 32);
+				ImpactIndex shard = order >= FINAL_ORDER ? segments.finalShards.get(order - FINAL_ORDER) : segments.shards.get(order);
+				topN.add(shard.getId((int) key), score);
+			}
+		}
+		return topN.extractAll();
+	}
+
+	/**
+	 * Adds the postings of a segment of members up to the query time to their accumulators,
+	 * returning the number of postings it holds.
+	 */
+	private static int process(Segments segments, int shardOrder, int seg, int weightedImpact, Accumulators acc) {
+		ImpactIndex shard = shardOrder >= FINAL_ORDER ? segments.finalShards.get(shardOrder - FINAL_ORDER) : segments.shards.get(shardOrder);
+		int count = shardOrder >= FINAL_ORDER ? segments.finalCounts[shardOrder - FINAL_ORDER] : segments.counts[shardOrder];
+		int start = shard.getPostingsStart(seg);
+		int end = shard.getPostingsEnd(seg);
+		for (int p = start; p < end; p ++) {
+			int d = shard.getPostingDoc(p);
+			if (d >= count) {
+				// Docs are in increasing order within a segment
+				break;
+			}
+			acc.add(((long) shardOrder << 32) | d, weightedImpact);
+		}
+		return end - start;
+	}
+
+	/**
+	 * Whether no member of a cluster is up to the query time.
+	 */
+	private boolean startsAfter(ClusterMembers members, int partition, long queryTime) {
+		return members.isEmpty(partition) || index.getId(members.get(partition, 0)) > queryTime;
+	}
+
+	private static ImpactIndex getImpacts(ShardCache<ImpactIndex> impacts, int slice, int partition) {
+		return impacts.get(((long) slice << 32) | partition);
+	}
+
+	/**
+	 * Order of the first shard of the final hour, after those selected at cutoffs.
+	 */
+	private static final int FINAL_ORDER = 1 << 30;
+
+	/**
+	 * Segments of the query terms in the selected shards, listed by weighted impact level: in
+	 * each level, those of shards selected at cutoffs in selection order, then those of the
+	 * final hour, each shard's in term order. This is the order a stable sort by decreasing
+	 * weighted impact of the shards in selection order would give, built as shards are added.
+	 */
+	private static class Segments {
+		private final int maxLevel;
+		private final List<ImpactIndex> shards = new ArrayList<ImpactIndex>();
+		private final List<ImpactIndex> finalShards = new ArrayList<ImpactIndex>();
+		private int[] counts = new int[16];
+		private int[] finalCounts = new int[16];
+		// (shard order, segment) pairs by list (selected, final) and level
+		private final int[][][] items;
+		private final int[][] sizes;
+		private final int[][] processed;
+
+		private Segments(int maxLevel) {
+			this.maxLevel = maxLevel;
+			items = new int[2][maxLevel + 1][];
+			sizes = new int[2][maxLevel + 1];
+			processed = new int[2][maxLevel + 1];
+		}
+
+		/**
+		 * Adds a shard with count members up to the query time, returning count.
+		 */
+		private int addShard(ImpactIndex shard, int count, boolean isFinal, int[] terms, int[] weights, int numTerms) {
+			int order;
+			if (isFinal) {
+				order = FINAL_ORDER + finalShards.size();
+				finalShards.add(shard);
+				if (finalShards.size() > finalCounts.length) {
+					finalCounts = Arrays.copyOf(finalCounts, 2 * finalCounts.length);
+				}
+				finalCounts[finalShards.size() - 1] = count;
+			} else {
+				order = shards.size();
+				shards.add(shard);
+				if (shards.size() > counts.length) {
+					counts = Arrays.copyOf(counts, 2 * counts.length);
+				}
+				counts[shards.size() - 1] = count;
+			}
+			if (count == 0) {
+				return 0;
+			}
+			int list = isFinal ? 1 : 0;
+			for (int t = 0; t < numTerms; t ++) {
+				int k = shard.findTerm(terms[t]);
+				if (k < 0) {
+					continue;
+				}
+				for (int seg = shard.getSegmentsStart(k); seg < shard.getSegmentsEnd(k); seg ++) {
+					int level = weights[t] * shard.getSegmentImpact(seg);
+					int[] levelItems = items[list][level];
+					if (levelItems == null) {
+						levelItems = items[list][level] = new int[8];
+					} else if (sizes[list][level] == levelItems.length) {
+						levelItems = items[list][level] = Arrays.copyOf(levelItems, 2 * levelItems.length);
+					}
+					levelItems[sizes[list][level] ++] = order;
+					levelItems[sizes[list][level] ++] = seg;
+				}
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Accumulators of the members touched, by shard order << 32 | member, in an open-addressing
+	 * table sized by the postings processed rather than the members selected.
+	 */
+	private static class Accumulators {
+		private long[] keys;
+		private int[] values;
+		private long[] touched;
+		private int[] touchedSlots;
+		private int size = 0;
+
+		private Accumulators(int budget) {
+			int capacity = 1024;
+			while (budget > 0 && capacity < 2L * budget && capacity < (1 << 30)) {
+				capacity <<= 1;
+			}
+			keys = new long[capacity];
+			Arrays.fill(keys, -1);
+			values = new int[capacity];
+			touched = new long[capacity / 2];
+			touchedSlots = new int[capacity / 2];
+		}
+
+		private int slot(long key) {
+			int mask = keys.length - 1;
+			int i = (int) ((key * 0x9E3779B97F4A7C15L) >>> 33) & mask;
+			while (keys[i] != -1 && keys[i] != key) {
+				i = (i + 1) & mask;
+			}
+			return i;
+		}
+
+		private void add(long key, int value) {
+			int i = slot(key);
+			if (keys[i] == -1) {
+				if (size == touched.length) {
+					grow();
+					i = slot(key);
+				}
+				keys[i] = key;
+				touchedSlots[size] = i;
+				touched[size ++] = key;
+			}
+			values[i] += value;
+		}
+
+		private int get(long key) {
+			int i = slot(key);
+			return keys[i] == -1 ? 0 : values[i];
+		}
+
+		private void grow() {
+			long[] oldKeys = keys;
+			int[] oldValues = values;
+			keys = new long[2 * oldKeys.length];
+			Arrays.fill(keys, -1);
+			values = new int[keys.length];
+			for (int j = 0; j < oldKeys.length; j ++) {
+				if (oldKeys[j] != -1) {
+					int i = slot(oldKeys[j]);
+					keys[i] = oldKeys[j];
+					values[i] = oldValues[j];
+				}
+			}
+			touched = Arrays.copyOf(touched, keys.length / 2);
+			touchedSlots = new int[touched.length];
+			for (int j = 0; j < size; j ++) {
+				touchedSlots[j] = slot(touched[j]);
+			}
+		}
+
+		private void clear() {
+			for (int j = 0; j < size; j ++) {
+				keys[touchedSlots[j]] = -1;
+				values[touchedSlots[j]] = 0;
+			}
+			size = 0;
+		}
+
+		private long[] sortedKeys() {
+			long[] sorted = Arrays.copyOf(touched, size);
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+}
@@ -0,0 +1,473 @@
+package ts4.ts4_core.tweets.search;
+
+import java.util.Arrays;
+import java.util.List;
+
+import ts4.ts4_core.tweets.util.GenerateStatistics;
+
+/**
+ * Dirichlet-smoothed query likelihood over forward index postings, with cf up till the query time.
+ * Per query, the term ids are sorted once and mu * p(t|C) is precomputed per term; the length prior
+ * log(mu / (|d| + mu)) is tabulated for the 256 norm bytes. A doc is scored by a merge join of its
+ * sorted term ids against the sorted query terms, then summed in query term order, so scores are
+ * bit-identical to the loops it replaces. A cluster is scored doc at a time over the posting lists
+ * of its inverted index with MaxScore pruning: each query term's contribution is bounded by the
+ * list's largest tf and shortest member, the terms whose bounds together cannot make a hit are
+ * only probed for members found through the other terms, and members whose bound cannot make a
+ * hit are not scored. Given a top N to add hits to, the bar for a hit rises with its threshold as
+ * hits are found. Hits are exactly those of scoring every member. Holds per-query state and
+ * cursors; use one instance per thread. Several queries can also share one walk over the
+ * postings of a cluster, see collect(ClusterIndex, QueryLikelihoodScorer[], long[]).
+ */
+public class QueryLikelihoodScorer {
+	private final float mu;
+	private final double[] prior;
+
+	private int numTerms;
+	private int[] queryTerms = new int[0];
+	private int[] sortedTerms = new int[0];
+	private int[] sortedPos = new int[0];
+	private float[] muProb = new float[0];
+	private int[] matchTf = new int[0];
+
+	private int[] listTerms = new int[0];
+	private int[] lists = new int[0];
+	private int[] cursors = new int[0];
+	private int[] listEnds = new int[0];
+	private int[] listTf = new int[0];
+	private double[] bounds = new double[0];
+	private double[] boundSums = new double[0];
+	private int numHits;
+	private long[] hitIds = new long[0];
+	private float[] hitScores = new float[0];
+
+	public QueryLikelihoodScorer(float mu) {
+		this.mu = mu;
+		prior = new double[256];
+		for (int i = 0; i < 256; i ++) {
+			prior[i] = Math.log(mu / (GenerateStatistics.decodeNormValue((byte) i) + mu));
+		}
+	}
+
+	/**
+	 * A scorer for the same query as another, with its own cursors.
+	 */
+	public QueryLikelihoodScorer(QueryLikelihoodScorer other) {
+		mu = other.mu;
+		prior = other.prior;
+		numTerms = other.numTerms;
+		queryTerms = Arrays.copyOf(other.queryTerms, numTerms);
+		sortedTerms = Arrays.copyOf(other.sortedTerms, numTerms);
+		sortedPos = Arrays.copyOf(other.sortedPos, numTerms);
+		muProb = Arrays.copyOf(other.muProb, numTerms);
+		matchTf = new int[numTerms];
+	}
+
+	/**
+	 * Sets the query from a line of the cf file: cf of each query term, then the total term count.
+	 */
+	public void setQuery(int[] termIds, List<Long> cf) {
+		long[] termCf = new long[termIds.length];
+		for (int t = 0; t < termIds.length; t ++) {
+			termCf[t] = cf.get(t);
+		}
+		setQuery(termIds, termCf, cf.get(termIds.length));
+	}
+
+	public void setQuery(int[] termIds, long[] cf, long totalTerms) {
+		numTerms = termIds.length;
+		if (sortedTerms.length < numTerms) {
+			queryTerms = new int[numTerms];
+			sortedTerms = new int[numTerms];
+			sortedPos = new int[numTerms];
+			muProb = new float[numTerms];
+			matchTf = new int[numTerms];
+		}
+		for (int t = 0; t < numTerms; t ++) {
+			queryTerms[t] = termIds[t];
+			float prob = (float)(cf[t] + 1) / (totalTerms + 1);
+			muProb[t] = mu * prob;
+
+			// Insertion sort by term id, remembering each term's position in the query
+			int j = t - 1;
+			while (j >= 0 && sortedTerms[j] > termIds[t]) {
+				sortedTerms[j + 1] = sortedTerms[j];
+				sortedPos[j + 1] = sortedPos[j];
+				j --;
+			}
+			sortedTerms[j + 1] = termIds[t];
+			sortedPos[j + 1] = t;
+		}
+	}
+
+	public int getNumTerms() {
+		return numTerms;
+	}
+
+	/**
+	 * Scores a doc given its postings sorted by term id and its norm byte; 0 if no query term occurs.
+	 */
+	public float score(int[] docTerms, int[] docTf, int n, byte norm) {
+		boolean matched = false;
+		int j = 0;
+		for (int k = 0; k < numTerms; k ++) {
+			int term = sortedTerms[k];
+			while (j < n && docTerms[j] < term) {
+				j ++;
+			}
+			if (j < n && docTerms[j] == term) {
+				matchTf[sortedPos[k]] = docTf[j];
+				matched = true;
+			} else {
+				matchTf[sortedPos[k]] = 0;
+			}
+		}
+		if (!matched) {
+			return 0.0F;
+		}
+
+		float score = 0.0F;
+		double docPrior = prior[norm & 0xFF];
+		for (int t = 0; t < numTerms; t ++) {
+			if (matchTf[t] > 0) {
+				score += Math.log(1 + matchTf[t] / muProb[t]);
+				score += docPrior;
+			}
+		}
+		return score;
+	}
+
+	/**
+	 * Scores the members of a cluster with tweet id at most maxId and adds those with a positive
+	 * score to topN, in member order. Returns the number of members with tweet id at most maxId.
+	 */
+	public int score(ClusterIndex cluster, long maxId, TopNScoredLongs topN) {
+		return collect(cluster, maxId, 0, cluster.size(), topN.threshold(), topN);
+	}
+
+	/**
+	 * Scores the members of a cluster with tweet id at most maxId and keeps those with a positive
+	 * score as the hits, in member order. Returns the number of members with tweet id at most maxId.
+	 */
+	public int collect(ClusterIndex cluster, long maxId) {
+		return collect(cluster, maxId, 0, cluster.size(), Float.NEGATIVE_INFINITY);
+	}
+
+	/**
+	 * Same for the members at positions lo to hi - 1, keeping only hits scoring above minScore.
+	 */
+	public int collect(ClusterIndex cluster, long maxId, int lo, int hi, float minScore) {
+		return collect(cluster, maxId, lo, hi, minScore, null);
+	}
+
+	/**
+	 * Same, also adding each hit to running as it is found. Members scoring below running's
+	 * threshold are then neither scored nor kept: the N hits it holds beat them in any top N these
+	 * hits and they are all added to. running must hold only such hits, if any.
+	 */
+	public int collect(ClusterIndex cluster, long maxId, int lo, int hi, float minScore, TopNScoredLongs running) {
+		// Members past maxId form a suffix and are never visited
+		int count = cluster.countUpTo(maxId, lo, hi);
+		hi = lo + count;
+		numHits = 0;
+		if (count == 0) {
+			return 0;
+		}
+		if (hitIds.length < count) {
+			hitIds = new long[count];
+			hitScores = new float[count];
+		}
+		if (lists.length < numTerms) {
+			listTerms = new int[numTerms];
+			lists = new int[numTerms];
+			cursors = new int[numTerms];
+			listEnds = new int[numTerms];
+			listTf = new int[numTerms];
+			bounds = new double[numTerms];
+			boundSums = new double[numTerms + 1];
+		}
+
+		// Posting list and contribution bound of each query term present, by increasing bound
+		int numLists = 0;
+		double magnitude = 0;
+		for (int t = 0; t < numTerms; t ++) {
+			int k = cluster.findTerm(queryTerms[t]);
+			if (k < 0) {
+				continue;
+			}
+			double tfBound = Math.log(1 + cluster.getMaxTf(k) / muProb[t]);
+			double priorBound = prior[cluster.getShortestNorm(k) & 0xFF];
+			magnitude += Math.abs(tfBound) + Math.abs(priorBound);
+			// A negative bound is taken as 0, as a member need not contain the term
+			double bound = Math.max(0, tfBound + priorBound);
+			int i = numLists ++;
+			while (i > 0 && bounds[i - 1] > bound) {
+				listTerms[i] = listTerms[i - 1];
+				lists[i] = lists[i - 1];
+				bounds[i] = bounds[i - 1];
+				i --;
+			}
+			listTerms[i] = t;
+			lists[i] = k;
+			bounds[i] = bound;
+		}
+
+		// A hit scores above theta, or at least running's threshold. Bounds are kept that far apart to
+		// cover float rounding of scores. The first numProbed lists cannot make a hit by themselves,
+		// so only the others are walked; more of them are only probed as theta rises.
+		double theta = Math.max(Math.max(minScore, 0.0F), running == null ? Float.NEGATIVE_INFINITY : running.threshold());
+		double slack = 1e-4 * (1 + magnitude);
+		boundSums[0] = 0;
+		for (int i = 0; i < numLists; i ++) {
+			boundSums[i + 1] = boundSums[i] + bounds[i];
+		}
+		int numProbed = 0;
+		while (numProbed < numLists && boundSums[numProbed + 1] + slack <= theta) {
+			numProbed ++;
+		}
+		if (numProbed == numLists) {
+			return count;
+		}
+		for (int i = 0; i < numLists; i ++) {
+			cursors[i] = lo == 0 ? cluster.getPostingsStart(lists[i]) : cluster.findPosting(lists[i], lo);
+			listEnds[i] = cluster.getPostingsEnd(lists[i]);
+		}
+
+		while (true) {
+			int d = hi;
+			for (int i = numProbed; i < numLists; i ++) {
+				if (cursors[i] < listEnds[i]) {
+					d = Math.min(d, cluster.getPostingDoc(cursors[i]));
+				}
+			}
+			if (d >= hi) {
+				break;
+			}
+
+			double docPrior = prior[cluster.getNorm(d) & 0xFF];
+			double bound = boundSums[numProbed];
+			for (int i = numProbed; i < numLists; i ++) {
+				listTf[i] = 0;
+				if (cursors[i] < listEnds[i] && cluster.getPostingDoc(cursors[i]) == d) {
+					listTf[i] = cluster.getPostingTf(cursors[i] ++);
+					bound += Math.log(1 + listTf[i] / muProb[listTerms[i]]) + docPrior;
+				}
+			}
+			for (int i = numProbed - 1; i >= 0 && bound + slack > theta; i --) {
+				bound -= bounds[i];
+				listTf[i] = 0;
+				cursors[i] = cluster.findPosting(lists[i], d, cursors[i]);
+				if (cursors[i] < listEnds[i] && cluster.getPostingDoc(cursors[i]) == d) {
+					listTf[i] = cluster.getPostingTf(cursors[i]);
+					bound += Math.log(1 + listTf[i] / muProb[listTerms[i]]) + docPrior;
+				}
+			}
+			if (bound + slack <= theta) {
+				continue;
+			}
+
+			// Exact score, summed in query term order
+			for (int t = 0; t < numTerms; t ++) {
+				matchTf[t] = 0;
+			}
+			for (int i = 0; i < numLists; i ++) {
+				matchTf[listTerms[i]] = listTf[i];
+			}
+			float score = 0.0F;
+			for (int t = 0; t < numTerms; t ++) {
+				if (matchTf[t] > 0) {
+					score += Math.log(1 + matchTf[t] / muProb[t]);
+					score += docPrior;
+				}
+			}
+			if (score > 0 && score > minScore && (running == null || score >= running.threshold())) {
+				hitIds[numHits] = cluster.getId(d);
+				hitScores[numHits ++] = score;
+				if (running != null) {
+					running.add(cluster.getId(d), score);
+					if (running.threshold() > theta) {
+						theta = running.threshold();
+						while (numProbed < numLists && boundSums[numProbed + 1] + slack <= theta) {
+							numProbed ++;
+						}
+						if (numProbed == numLists) {
+							break;
+						}
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Whether a member of a cluster with this summary could score above both 0 and minScore: the sum
+	 * of the positive term bounds, from each term's largest tf and shortest member, is compared as
+	 * collect compares a member's bound.
+	 */
+	public boolean canHit(ClusterSummary summary, float minScore) {
+		double bound = 0;
+		double magnitude = 0;
+		for (int t = 0; t < numTerms; t ++) {
+			int k = summary.findTerm(queryTerms[t]);
+			if (k < 0) {
+				continue;
+			}
+			double tfBound = Math.log(1 + summary.getMaxTf(k) / muProb[t]);
+			double priorBound = prior[summary.getShortestNorm(k) & 0xFF];
+			magnitude += Math.abs(tfBound) + Math.abs(priorBound);
+			bound += Math.max(0, tfBound + priorBound);
+		}
+		return bound + 1e-4 * (1 + magnitude) > Math.max(minScore, 0.0F);
+	}
+
+	/**
+	 * Number of hits of the last collect.
+	 */
+	public int getNumHits() {
+		return numHits;
+	}
+
+	public long getHitId(int h) {
+		return hitIds[h];
+	}
+
+	public float getHitScore(int h) {
+		return hitScores[h];
+	}
+
+	/**
+	 * Scores the members of a cluster for several queries, walking the posting list of each of
+	 * their distinct terms once. Postings are bucketed by member; each member is then scored for
+	 * every query with a matching term, summing in that query's term order. Returns for each query
+	 * the hits and count collect(cluster, maxIds[q]) would give.
+	 */
+	static ShardHits[] collect(ClusterIndex cluster, QueryLikelihoodScorer[] scorers, long[] maxIds) {
+		int numQueries = scorers.length;
+
+		// Members up to each query's time are a prefix; only the longest one is visited
+		ShardHits[] hits = new ShardHits[numQueries];
+		int size = 0;
+		for (int q = 0; q < numQueries; q ++) {
+			hits[q] = new ShardHits();
+			hits[q].count = cluster.countUpTo(maxIds[q]);
+			size = Math.max(size, hits[q].count);
+		}
+		if (size == 0) {
+			return hits;
+		}
+
+		// Distinct terms of the queries, and the queries containing each
+		int total = 0;
+		for (QueryLikelihoodScorer scorer : scorers) {
+			total += scorer.numTerms;
+		}
+		int[] terms = new int[total];
+		int filled = 0;
+		for (QueryLikelihoodScorer scorer : scorers) {
+			System.arraycopy(scorer.queryTerms, 0, terms, filled, scorer.numTerms);
+			filled += scorer.numTerms;
+		}
+		Arrays.sort(terms);
+		int distinct = 0;
+		for (int k = 0; k < total; k ++) {
+			if (k == 0 || terms[k] != terms[k - 1]) {
+				terms[distinct ++] = terms[k];
+			}
+		}
+		int[] termQueryStart = new int[distinct + 1];
+		int[] termQueries = new int[total];
+		int[] seen = new int[distinct];
+		Arrays.fill(seen, -1);
+		for (int q = 0; q < numQueries; q ++) {
+			for (int t = 0; t < scorers[q].numTerms; t ++) {
+				int u = Arrays.binarySearch(terms, 0, distinct, scorers[q].queryTerms[t]);
+				if (seen[u] != q) {
+					seen[u] = q;
+					termQueryStart[u + 1] ++;
+				}
+			}
+		}
+		for (int u = 0; u < distinct; u ++) {
+			termQueryStart[u + 1] += termQueryStart[u];
+		}
+		int[] fill = Arrays.copyOf(termQueryStart, distinct);
+		Arrays.fill(seen, -1);
+		for (int q = 0; q < numQueries; q ++) {
+			for (int t = 0; t < scorers[q].numTerms; t ++) {
+				int u = Arrays.binarySearch(terms, 0, distinct, scorers[q].queryTerms[t]);
+				if (seen[u] != q) {
+					seen[u] = q;
+					termQueries[fill[u] ++] = q;
+				}
+			}
+		}
+
+		// Postings of those terms, bucketed by member
+		int[] lists = new int[distinct];
+		int[] docStart = new int[size + 1];
+		for (int u = 0; u < distinct; u ++) {
+			lists[u] = cluster.findTerm(terms[u]);
+			if (lists[u] >= 0) {
+				for (int p = cluster.getPostingsStart(lists[u]); p < cluster.getPostingsEnd(lists[u]) && cluster.getPostingDoc(p) < size; p ++) {
+					docStart[cluster.getPostingDoc(p) + 1] ++;
+				}
+			}
+		}
+		for (int d = 0; d < size; d ++) {
+			docStart[d + 1] += docStart[d];
+		}
+		int[] matchTerms = new int[docStart[size]];
+		int[] matchFreqs = new int[docStart[size]];
+		int[] next = Arrays.copyOf(docStart, size);
+		for (int u = 0; u < distinct; u ++) {
+			if (lists[u] >= 0) {
+				for (int p = cluster.getPostingsStart(lists[u]); p < cluster.getPostingsEnd(lists[u]) && cluster.getPostingDoc(p) < size; p ++) {
+					int m = next[cluster.getPostingDoc(p)] ++;
+					matchTerms[m] = terms[u];
+					matchFreqs[m] = cluster.getPostingTf(p);
+				}
+			}
+		}
+
+		int[] marked = new int[numQueries];
+		Arrays.fill(marked, -1);
+		int[] touchedQueries = new int[numQueries];
+		for (int d = 0; d < size; d ++) {
+			if (docStart[d] == docStart[d + 1]) {
+				continue;
+			}
+			int numTouched = 0;
+			for (int m = docStart[d]; m < docStart[d + 1]; m ++) {
+				int u = Arrays.binarySearch(terms, 0, distinct, matchTerms[m]);
+				for (int j = termQueryStart[u]; j < termQueryStart[u + 1]; j ++) {
+					if (marked[termQueries[j]] != d) {
+						marked[termQueries[j]] = d;
+						touchedQueries[numTouched ++] = termQueries[j];
+					}
+				}
+			}
+			for (int j = 0; j < numTouched; j ++) {
+				int q = touchedQueries[j];
+				if (d >= hits[q].count) {
+					continue;
+				}
+				QueryLikelihoodScorer scorer = scorers[q];
+				float score = 0.0F;
+				for (int t = 0; t < scorer.numTerms; t ++) {
+					for (int m = docStart[d]; m < docStart[d + 1]; m ++) {
+						if (matchTerms[m] == scorer.queryTerms[t]) {
+							score += Math.log(1 + matchFreqs[m] / scorer.muProb[t]);
+							score += scorer.prior[cluster.getNorm(d) & 0xFF];
+							break;
+						}
+					}
+				}
+				if (score > 0) {
+					hits[q].add(cluster.getId(d), score);
+				}
+			}
+		}
+		return hits;
+	}
+}
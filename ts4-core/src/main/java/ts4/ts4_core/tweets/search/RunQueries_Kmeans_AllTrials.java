@@ -1,7 +1,7 @@
 /* Run queries on kmeans results daily with cf up till the query time with trials together
- * Run: sh target/appassembler/bin/RunQueries_Kmeans -index {indexPath} -stats {statsPath} -cf {queryCfPath}
+ * Run: sh target/appassembler/bin/RunQueries_Kmeans -index {indexPath} -stats {statsPath} [-cf {queryCfPath}]
  *   	-kmeansclusters {kmeansclustersPath} -dayhours {dayFile} [-hourly true] -dimension {dimension} -partition {partitionNum} [-top {N}]
- * 		-queries {queriesPath} -queriesvector {queryVectorPath} -trial {trial} -output {outputPath} -perctpath {perctOutputPath}
+ * 		-queries {queriesPath} -queriesvector {queryVectorPath} -trial {trial} -output {outputPath} -perctpath {perctOutputPath} [-threads {N}] [-chunk {docs}] [-batch] [-impact {postings}] [-supercenters {N} [-probe {N}]]
  */
 package ts4.ts4_core.tweets.search;
 
@@ -15,9 +15,10 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -33,6 +34,9 @@ import org.apache.lucene.util.Version;
 import cc.twittertools.index.TweetAnalyzer;
 import cc.twittertools.search.TrecTopic;
 import cc.twittertools.search.TrecTopicSet;
+import ts4.ts4_core.tweets.util.CollectionFrequencyIndex;
+import ts4.ts4_core.tweets.util.ClusterMembers;
+import ts4.ts4_core.tweets.util.ForwardIndex;
 import ts4.ts4_core.tweets.util.TermStatistics;
 import ts4.ts4_core.tweets.util.TweetParser;
 
@@ -53,9 +57,15 @@ public class RunQueries_Kmeans_AllTrials {
 	private static final String QUERIES_VECTOR_OPTION = "queriesvector";
 	private static final String TRIAL = "trial";
 	private static final String OUTPUT_OPTION = "output";
+	private static final String THREADS_OPTION = "threads";
+	private static final String CHUNK_OPTION = "chunk";
+	private static final String BATCH_OPTION = "batch";
+	private static final String IMPACT_OPTION = "impact";
+	private static final String SUPERCENTERS_OPTION = "supercenters";
+	private static final String PROBE_OPTION = "probe";
 	private static final String PERCT_OUTPUT_OPTION = "perctpath";
 
-	@SuppressWarnings({ "static-access", "unchecked" })
+	@SuppressWarnings("static-access")
 	public static void main(String[] args) throws Exception {
 		float mu = 2500.0f;
 		int numResults = 1000;
@@ -67,7 +77,7 @@ public class RunQueries_Kmeans_AllTrials {
 		options.addOption(OptionBuilder.withArgName("path").hasArg()
 				.withDescription("statistics location").create(STATS_OPTION));
 		options.addOption(OptionBuilder.withArgName("path").hasArg()
-				.withDescription("query cf file").create(CF_OPTION));
+				.withDescription("query cf file, computed from the statistics if omitted").create(CF_OPTION));
 		options.addOption(OptionBuilder.withArgName("path").hasArg()
 				.withDescription("kmeans cluster centers path").create(KMEANS_CLUSTER_OPTION));
 		options.addOption(OptionBuilder.withArgName("file").hasArg()
@@ -88,6 +98,17 @@ public class RunQueries_Kmeans_AllTrials {
 				.withDescription("trial").create(TRIAL));
 		options.addOption(OptionBuilder.withArgName("file").hasArg()
 				.withDescription("output location").create(OUTPUT_OPTION));
+		options.addOption(OptionBuilder.withArgName("num").hasArg()
+				.withDescription("number of topics searched in parallel").create(THREADS_OPTION));
+		options.addOption(OptionBuilder.withArgName("docs").hasArg()
+				.withDescription("also split each topic's clusters into chunks of this many docs searched in parallel").create(CHUNK_OPTION));
+		options.addOption(OptionBuilder.withDescription("score each selected cluster once for all topics selecting it").create(BATCH_OPTION));
+		options.addOption(OptionBuilder.withArgName("postings").hasArg()
+				.withDescription("score at a time over impact-ordered clusters, stopping after this many postings per cutoff (0 for all)").create(IMPACT_OPTION));
+		options.addOption(OptionBuilder.withArgName("num").hasArg()
+				.withDescription("group the cluster centers of all slices under this many super-centers to route queries, kept next to the shards for later runs").create(SUPERCENTERS_OPTION));
+		options.addOption(OptionBuilder.withArgName("num").hasArg()
+				.withDescription("number of super-centers probed per query, 1 if omitted").create(PROBE_OPTION));
 		options.addOption(OptionBuilder.withArgName("file").hasArg()
 				.withDescription("perct output location").create(PERCT_OUTPUT_OPTION));
 
@@ -100,7 +121,7 @@ public class RunQueries_Kmeans_AllTrials {
 			System.exit(-1);
 		}
 
-		if (!cmdline.hasOption(INDEX_OPTION) || !cmdline.hasOption(STATS_OPTION) || !cmdline.hasOption(CF_OPTION) || !cmdline.hasOption(KMEANS_CLUSTER_OPTION) || !cmdline.hasOption(DAYHOURS_OPTION) || !cmdline.hasOption(DIMENSION) || !cmdline.hasOption(PARTITION) || !cmdline.hasOption(QUERIES_OPTION) || !cmdline.hasOption(QUERIES_VECTOR_OPTION) || !cmdline.hasOption(TRIAL) || !cmdline.hasOption(OUTPUT_OPTION) || !cmdline.hasOption(PERCT_OUTPUT_OPTION)) {
+		if (!cmdline.hasOption(INDEX_OPTION) || !cmdline.hasOption(STATS_OPTION) || !cmdline.hasOption(KMEANS_CLUSTER_OPTION) || !cmdline.hasOption(DAYHOURS_OPTION) || !cmdline.hasOption(DIMENSION) || !cmdline.hasOption(PARTITION) || !cmdline.hasOption(QUERIES_OPTION) || !cmdline.hasOption(QUERIES_VECTOR_OPTION) || !cmdline.hasOption(TRIAL) || !cmdline.hasOption(OUTPUT_OPTION) || !cmdline.hasOption(PERCT_OUTPUT_OPTION)) {
 			HelpFormatter formatter = new HelpFormatter();
 			formatter.printHelp(RunQueries_Kmeans_AllTrials.class.getName(), options);
 			System.exit(-1);
@@ -118,6 +139,13 @@ public class RunQueries_Kmeans_AllTrials {
 		String queryVectorPath = cmdline.getOptionValue(QUERIES_VECTOR_OPTION);
 		int trial = Integer.parseInt(cmdline.getOptionValue(TRIAL));
 		String outputPath = cmdline.getOptionValue(OUTPUT_OPTION);
+		int threads = cmdline.hasOption(THREADS_OPTION) ? Integer.parseInt(cmdline.getOptionValue(THREADS_OPTION)) : 1;
+		int chunkSize = cmdline.hasOption(CHUNK_OPTION) ? Integer.parseInt(cmdline.getOptionValue(CHUNK_OPTION)) : 0;
+		boolean impact = cmdline.hasOption(IMPACT_OPTION);
+		int budget = impact ? Integer.parseInt(cmdline.getOptionValue(IMPACT_OPTION)) : 0;
+		boolean batch = cmdline.hasOption(BATCH_OPTION) && !impact;
+		int superCenters = cmdline.hasOption(SUPERCENTERS_OPTION) ? Integer.parseInt(cmdline.getOptionValue(SUPERCENTERS_OPTION)) : 0;
+		int probe = cmdline.hasOption(PROBE_OPTION) ? Integer.parseInt(cmdline.getOptionValue(PROBE_OPTION)) : 1;
 		String perctOutputPath = cmdline.getOptionValue(PERCT_OUTPUT_OPTION);
 
 		// Read in index
@@ -132,139 +160,34 @@ public class RunQueries_Kmeans_AllTrials {
 
 		// Read in stats
 		LOG.info("Reading term statistics from file");
-		BufferedReader br_stats = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/stats.txt")));
-		int numDoc = Integer.parseInt(br_stats.readLine());
-		br_stats.close();
-
-		int[][] terms = new int[numDoc][];
-		int[][] tf = new int[numDoc][];
-		long[] ids = new long[numDoc];
-		int[] docLengthOrdered = new int[numDoc];
-		float[] docLengthEncoded = new float[numDoc];
-		try {
-			BufferedReader brTerms = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/doc_id.txt")));
-			String s;
-			int i = 0;
-			while((s = brTerms.readLine()) != null) {
-				ids[i ++] = Long.valueOf(s);
-			}
-			try {
-				brTerms.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
-		try {
-			BufferedReader brLength = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/doc_length_ordered.txt")));
-			String s;
-			int i = 0;
-			while((s = brLength.readLine()) != null) {
-				docLengthOrdered[i ++] = Integer.valueOf(s);
-			}
-			try {
-				brLength.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
-		try {
-			BufferedReader brLength = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/doc_length_encoded.txt")));
-			String s;
-			int i = 0;
-			while((s = brLength.readLine()) != null) {
-				docLengthEncoded[i ++] = Float.valueOf(s);
-			}
-			try {
-				brLength.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
-		try {
-			BufferedReader brTerms = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/all_terms_ordered.txt")));
-			String s;
-			int i = 0;
-			int j = 0;
-			terms[0] = new int[docLengthOrdered[0]];
-			while((s = brTerms.readLine()) != null) {
-				while (j == docLengthOrdered[i] || docLengthOrdered[i] == 0) {
-					i ++;
-					j = 0;
-					terms[i] = new int[docLengthOrdered[i]];
-				}
-				terms[i][j ++] = Integer.valueOf(s);
-			}
-			try {
-				brTerms.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
-		try {
-			BufferedReader brTerms = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/all_terms_tf.txt")));
-			String s;
-			int i = 0;
-			int j = 0;
-			tf[0] = new int[docLengthOrdered[0]];
-			while((s = brTerms.readLine()) != null) {
-				while (j == docLengthOrdered[i] || docLengthOrdered[i] == 0) {
-					i ++;
-					j = 0;
-					tf[i] = new int[docLengthOrdered[i]];
-				}
-				tf[i][j ++] = Integer.valueOf(s);
-			}
-			try {
-				brTerms.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
+		ForwardIndex index = ForwardIndex.load(statsPath);
 		LOG.info("Finished reading term statistics from file");
 
 		// Read in cf file
 		int queryCount = 0;
 		List<List<Long>> cf = new ArrayList<List<Long>>();
-		try {
-			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(cfPath)));
-			String line;
-			while((line = br.readLine()) != null) {
-				cf.add(new ArrayList<Long>());
-				String[] tokens = line.split(" ");
-				for (String token : tokens) {
-					cf.get(queryCount).add(Long.parseLong(token));
-				}
-				queryCount ++;
-			}
+		if (cfPath != null) {
 			try {
-				br.close();
-			} catch (IOException e) {
+				BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(cfPath)));
+				String line;
+				while((line = br.readLine()) != null) {
+					cf.add(new ArrayList<Long>());
+					String[] tokens = line.split(" ");
+					for (String token : tokens) {
+						cf.get(queryCount).add(Long.parseLong(token));
+					}
+					queryCount ++;
+				}
+				try {
+					br.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			} catch (FileNotFoundException e) {
 				e.printStackTrace();
+			} catch (IOException e1) {
+				e1.printStackTrace();
 			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e1) {
-			e1.printStackTrace();
 		}
 
 		TrecTopicSet topics = TrecTopicSet.fromFile(new File(queryPath));
@@ -272,6 +195,10 @@ public class RunQueries_Kmeans_AllTrials {
 		for (@SuppressWarnings("unused") TrecTopic topic : topics) {
 			topicTotal ++;
 		}
+		if (cfPath == null) {
+			LOG.info("Computing query cf from the collection frequency index");
+			cf = CollectionFrequencyIndex.open(statsPath, index).getQueryCf(topics, termStats, ANALYZER);
+		}
 
 		// Read in dayhours File
 		int[] days = new int[topicTotal];
@@ -300,71 +227,42 @@ public class RunQueries_Kmeans_AllTrials {
 			e1.printStackTrace();
 		}
 		
+		// Slices after the last hour searched by any topic are not read
+		int lastHour = ClusterAssignments.lastHour(days, hours);
+
 		// Count days
 		int DAYS = 0;
+		int shardHours = 0;
 		try {
 			File[] files = new File(kmeansClusterPath).listFiles();
 			for (File file : files) {
 				if (file.getName().startsWith("clustercenters-d" + dimension + "-hour") && file.getName().endsWith("trial1")) {
 					DAYS ++;
+				} else if (file.getName().startsWith("clustershard-d" + dimension + "-hour") && file.getName().endsWith("trial1")) {
+					shardHours ++;
 				}
 			}
 		} catch(Exception e){
 			System.out.println("File not found");
 		}
-		DAYS /= 24;
+		DAYS = Math.max(DAYS, shardHours) / 24;
 
 		for (int trialIdx = 1; trialIdx <= trial; trialIdx ++) {
 			LOG.info("Trial " + trialIdx);
 			// Read in cluster centers and assignments
 			LOG.info("Reading cluster centers and assignments from file");
 			double[][][] centers_days = new double[DAYS][partitionNum][dimension];
-			List<Integer>[][] indexes_days = (ArrayList<Integer>[][])new ArrayList[DAYS][partitionNum];
+			ClusterMembers[] indexes_days = new ClusterMembers[DAYS];
+			ClusterSummary[][] summaries_days = new ClusterSummary[DAYS][];
 			if (!cmdline.hasOption(HOURS_OPTION)) {
 				for (int i = 0; i < DAYS; i ++) {
-					for (int j = 0; j < partitionNum; j ++) {
-						indexes_days[i][j] = new ArrayList<Integer>();
-					}
+					indexes_days[i] = new ClusterMembers(partitionNum);
 				}
-				for (int i = 1; i <= DAYS; i ++) {
-					int ind = 0;
+				for (int i = 1; i <= Math.min(DAYS, lastHour / 24); i ++) {
 					try {
-						File[] files = new File(kmeansClusterPath + "/clustercenters-d" + dimension + "-day" + i + "-trial" + trialIdx).listFiles();
-						Arrays.sort(files);
-						for (File file : files) {
-							if (file.getName().startsWith("part")) {
-								BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file.getPath())));
-								String line;
-								while((line = br.readLine()) != null) {
-									line = line.substring(1, line.length() - 1);
-									int j = 0;
-									String[] vector = line.split(",");
-									for (String coor : vector) {
-										centers_days[i - 1][ind][j ++] = Double.parseDouble(coor);
-									}
-									ind ++;
-								}
-								br.close();
-							}
-						}
-					} catch(Exception e){
-						System.out.println("File not found");
-					}
-					try {
-						File[] files = new File(kmeansClusterPath + "/clusterassign-d" + dimension + "-day" + i + "-trial" + trialIdx).listFiles();
-						Arrays.sort(files);
-						for (File file : files) {
-							if (file.getName().startsWith("part")) {
-								BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file.getPath())));
-								String line;
-								while((line = br.readLine()) != null) {
-									line = line.substring(1, line.length() - 1);
-									String[] indexmap = line.split(",");
-									indexes_days[i - 1][Integer.parseInt(indexmap[1])].add(Integer.parseInt(indexmap[0]));
-								}
-								br.close();
-							}
-						}
+						String assignPath = kmeansClusterPath + "/clusterassign-d" + dimension + "-day" + i + "-trial" + trialIdx;
+						indexes_days[i - 1] = ClusterAssignments.readSlice(kmeansClusterPath, dimension, "day" + i, String.valueOf(trialIdx), centers_days[i - 1], partitionNum, index);
+						summaries_days[i - 1] = ClusterSummary.readIfExists(assignPath);
 					} catch(Exception e){
 						System.out.println("File not found");
 					}
@@ -372,56 +270,24 @@ public class RunQueries_Kmeans_AllTrials {
 			}
 
 			double[][][] centers_hours = new double[DAYS * 24][partitionNum][dimension];
-			List<Integer>[][] indexes_hours = (ArrayList<Integer>[][])new ArrayList[DAYS * 24][partitionNum];
+			ClusterMembers[] indexes_hours = new ClusterMembers[DAYS * 24];
+			ClusterSummary[][] summaries_hours = new ClusterSummary[DAYS * 24][];
 			for (int i = 0; i < DAYS * 24; i ++) {
-				for (int j = 0; j < partitionNum; j ++) {
-					indexes_hours[i][j] = new ArrayList<Integer>();
-				}
+				indexes_hours[i] = new ClusterMembers(partitionNum);
 			}
-			for (int i = 1; i <= DAYS * 24; i ++) {
-				int ind = 0;
-				try {
-					File[] files = new File(kmeansClusterPath + "/clustercenters-d" + dimension + "-hour" + i + "-trial" + trialIdx).listFiles();
-					Arrays.sort(files);
-					for (File file : files) {
-						if (file.getName().startsWith("part")) {
-							BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file.getPath())));
-							String line;
-							while((line = br.readLine()) != null) {
-								line = line.substring(1, line.length() - 1);
-								int j = 0;
-								String[] vector = line.split(",");
-								for (String coor : vector) {
-									centers_hours[i - 1][ind][j ++] = Double.parseDouble(coor);
-								}
-								ind ++;
-							}
-							br.close();
-						}
-					}
-				} catch(Exception e){
-					System.out.println("File not found");
-				}
+			for (int i = 1; i <= Math.min(DAYS * 24, lastHour); i ++) {
 				try {
-					File[] files = new File(kmeansClusterPath + "/clusterassign-d" + dimension + "-hour" + i + "-trial" + trialIdx).listFiles();
-					Arrays.sort(files);
-					for (File file : files) {
-						if (file.getName().startsWith("part")) {
-							BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file.getPath())));
-							String line;
-							while((line = br.readLine()) != null) {
-								line = line.substring(1, line.length() - 1);
-								String[] indexmap = line.split(",");
-								indexes_hours[i - 1][Integer.parseInt(indexmap[1])].add(Integer.parseInt(indexmap[0]));
-							}
-							br.close();
-						}
-					}
+					String assignPath = kmeansClusterPath + "/clusterassign-d" + dimension + "-hour" + i + "-trial" + trialIdx;
+					indexes_hours[i - 1] = ClusterAssignments.readSlice(kmeansClusterPath, dimension, "hour" + i, String.valueOf(trialIdx), centers_hours[i - 1], partitionNum, index);
+					summaries_hours[i - 1] = ClusterSummary.readIfExists(assignPath);
 				} catch(Exception e){
 					System.out.println("File not found");
 				}
 			}
 			LOG.info("Finished reading cluster centers and assignments from file");
+			SelectiveSearcher searcher = new SelectiveSearcher(index, indexes_days, indexes_hours, numResults, chunkSize);
+			searcher.setSummaries(summaries_days, summaries_hours);
+			ImpactSearcher impactSearcher = impact ? new ImpactSearcher(index, indexes_days, indexes_hours, termStats, mu, numResults, budget) : null;
 
 			LOG.info("Running queries");
 			double[][] queryVector = new double[topicTotal][dimension];
@@ -440,23 +306,43 @@ public class RunQueries_Kmeans_AllTrials {
 			} catch(Exception e){
 				System.out.println("File not found");
 			}
+			// Rank the clusters of the slices searched by each topic, through super-centers if any
+			int[][][] routes_days;
+			int[][][] routes_hours;
+			if (superCenters > 0) {
+				int[] firstDays = new int[topicTotal];
+				int[] firstHours = new int[topicTotal];
+				int[] lastHours = new int[topicTotal];
+				for (int t = 0; t < topicTotal; t ++) {
+					firstHours[t] = 24 * days[t];
+					lastHours[t] = 24 * days[t] + hours[t];
+				}
+				routes_days = HierarchicalRouter.open(HierarchicalRouter.file(kmeansClusterPath, dimension, "day", String.valueOf(trialIdx), superCenters), centers_days, dimension, superCenters).route(queryVector, firstDays, days, probe, top);
+				routes_hours = HierarchicalRouter.open(HierarchicalRouter.file(kmeansClusterPath, dimension, "hour", String.valueOf(trialIdx), superCenters), centers_hours, dimension, superCenters).route(queryVector, firstHours, lastHours, probe, top);
+			} else {
+				routes_days = new CentroidRouter(centers_days, dimension).route(queryVector, top);
+				routes_hours = new CentroidRouter(centers_hours, dimension).route(queryVector, top);
+			}
 
 			int topicCnt = 0;
 			double[] percentage = new double[partitionNum];
+			BufferedWriter[] bw = new BufferedWriter[top];
 			for (int topIdx = 1; topIdx <= top; topIdx ++) {
 				if (cmdline.hasOption(HOURS_OPTION)) {
-					File f = new File(outputPath + "/glove_d" + dimension + "_mean_hourly_top" + topIdx + "_trial" + trialIdx + ".txt");
-					if (f.exists()) {
-						f.delete();
-					}
+					bw[topIdx - 1] = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/glove_d" + dimension + "_mean_hourly_top" + topIdx + "_trial" + trialIdx + ".txt", true)));
 				} else {
-					File f = new File(outputPath + "/glove_d" + dimension + "_mean_daily_top" + topIdx + "_trial" + trialIdx + ".txt");
-					if (f.exists()) {
-						f.delete();
-					}
+					bw[topIdx - 1] = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/glove_d" + dimension + "_mean_daily_top" + topIdx + "_trial" + trialIdx + ".txt", true)));
 				}
 			}
 			BufferedWriter bw_perct = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(perctOutputPath + "/d" + dimension + "-" + (cmdline.hasOption(HOURS_OPTION) ? "hourly" : "daily") + "-trial" + trialIdx + ".txt", true)));
+
+			// Topics are searched on a work-stealing pool, ahead of the writer which takes them in topic order
+			ExecutorService pool = new ForkJoinPool(threads);
+			List<Future<PairOfLongFloat[][]>> results = new ArrayList<Future<PairOfLongFloat[][]>>();
+			List<int[]> selectedSizes = new ArrayList<int[]>();
+			List<String> topicIds = new ArrayList<String>();
+			List<SelectiveSearcher.Topic> batchTopics = new ArrayList<SelectiveSearcher.Topic>();
+			int written = 0;
 			for (TrecTopic topic : topics) {
 				List<String> queryterms = TweetParser.parse(ANALYZER, topic.getQuery());
 				int[] qids = new int[queryterms.size()];
@@ -465,121 +351,48 @@ public class RunQueries_Kmeans_AllTrials {
 					qids[c] = termStats.getId(term);
 					c++;
 				}
+				QueryLikelihoodScorer scorer = new QueryLikelihoodScorer(mu);
+				scorer.setQuery(qids, cf.get(topicCnt));
 
 				int[][] partitions = new int[days[topicCnt] + hours[topicCnt]][partitionNum];
 				int partitionInd = 0;
 				for (int day = 1; day <= days[topicCnt]; day ++) {
-					partitions[partitionInd ++] = determinePartition(centers_days[day - 1], queryVector[topicCnt], 100);
+					partitions[partitionInd ++] = routes_days[day - 1][topicCnt];
 				}
 				for (int hour = 24 * days[topicCnt] + 1; hour <= 24 * days[topicCnt] + hours[topicCnt]; hour ++) {
-					partitions[partitionInd ++] = determinePartition(centers_hours[hour - 1], queryVector[topicCnt], 100);
+					partitions[partitionInd ++] = routes_hours[hour - 1][topicCnt];
 				}
 
 				int[] selectedSizeArr = new int[partitionNum];
-				int selectedSize = 0;
-				TopNScoredLongs topN = new TopNScoredLongs(numResults);
-				TopNScoredLongs prevTopN = new TopNScoredLongs(numResults);
-				for (int topIdx = 1; topIdx <= top; topIdx ++) {
-					BufferedWriter bw = null;
-					if (cmdline.hasOption(HOURS_OPTION)) {
-						bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/glove_d" + dimension + "_mean_hourly_top" + topIdx + "_trial" + trialIdx + ".txt", true)));
-					} else {
-						bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/glove_d" + dimension + "_mean_daily_top" + topIdx + "_trial" + trialIdx + ".txt", true)));
-					}
-					partitionInd = 0;
-					for (int day = 1; day <= days[topicCnt]; day ++) {
-						for (int idx = 0; idx < indexes_days[day - 1][partitions[partitionInd][topIdx - 1]].size(); idx ++) {
-							int i = indexes_days[day - 1][partitions[partitionInd][topIdx - 1]].get(idx);
-							if (ids[i] > topic.getQueryTweetTime()) {
-								continue;
-							}
-							selectedSize ++;
-							float score = 0.0F;
-							for (int t = 0; t < c; t++) {
-								float prob = (float)(cf.get(topicCnt).get(t) + 1) / (cf.get(topicCnt).get(c) + 1);
-								for (int j = 0; j < docLengthOrdered[i]; j ++) {
-									if (terms[i][j] == qids[t]) {
-										score += Math.log(1 + tf[i][j] / (mu * prob));
-										score += Math.log(mu / (docLengthEncoded[i] + mu));
-										break;
-									}
-								}
-							}
-							if (score > 0) {
-								prevTopN.add(ids[i], score);
-							}
-						}
-						partitionInd ++;
-					}
-					for (int hour = 24 * days[topicCnt] + 1; hour <= 24 * days[topicCnt] + hours[topicCnt] - 1; hour ++) {
-						for (int idx = 0; idx < indexes_hours[hour - 1][partitions[partitionInd][topIdx - 1]].size(); idx ++) {
-							int i = indexes_hours[hour - 1][partitions[partitionInd][topIdx - 1]].get(idx);
-							if (ids[i] > topic.getQueryTweetTime()) {
-								continue;
-							}
-							selectedSize ++;
-							float score = 0.0F;
-							for (int t = 0; t < c; t++) {
-								float prob = (float)(cf.get(topicCnt).get(t) + 1) / (cf.get(topicCnt).get(c) + 1);
-								for (int j = 0; j < docLengthOrdered[i]; j ++) {
-									if (terms[i][j] == qids[t]) {
-										score += Math.log(1 + tf[i][j] / (mu * prob));
-										score += Math.log(mu / (docLengthEncoded[i] + mu));
-										break;
-									}
-								}
-							}
-							if (score > 0) {
-								prevTopN.add(ids[i], score);
-							}
-						}
-						partitionInd ++;
-					}
-					TopNScoredLongs tempTopN = new TopNScoredLongs(numResults);
-					for (PairOfLongFloat pair : prevTopN.extractAll()) {
-						tempTopN.add(pair.getKey(), pair.getValue());
-						topN.add(pair.getKey(), pair.getValue());
-					}
-					int finalHour = 24 * days[topicCnt] + hours[topicCnt];
-					for (int partition = 0; partition < partitionNum; partition ++) {
-						for (int idx = 0; idx < indexes_hours[finalHour - 1][partition].size(); idx ++) {
-							int i = indexes_hours[finalHour - 1][partition].get(idx);
-							if (ids[i] > topic.getQueryTweetTime()) {
-								continue;
-							}
-							selectedSize ++;
-							float score = 0.0F;
-							for (int t = 0; t < c; t++) {
-								float prob = (float)(cf.get(topicCnt).get(t) + 1) / (cf.get(topicCnt).get(c) + 1);
-								for (int j = 0; j < docLengthOrdered[i]; j ++) {
-									if (terms[i][j] == qids[t]) {
-										score += Math.log(1 + tf[i][j] / (mu * prob));
-										score += Math.log(mu / (docLengthEncoded[i] + mu));
-										break;
-									}
-								}
-							}
-							if (score > 0) {
-								topN.add(ids[i], score);
-							}
-						}
-					}
-					selectedSizeArr[topIdx - 1] = selectedSize;
-
-					int count = 1;
-					for (PairOfLongFloat pair : topN.extractAll()) {
-						bw.write(String.format("%d Q0 %s %d %f kmeans", Integer.parseInt(topic.getId().substring(2)), pair.getKey(), count, pair.getValue()));
-						bw.newLine();
-						count ++;
-					}
-					prevTopN = tempTopN;
-					bw.close();
+				if (batch) {
+					batchTopics.add(new SelectiveSearcher.Topic(scorer, topic.getQueryTweetTime(), days[topicCnt], hours[topicCnt], partitions, selectedSizeArr));
+				} else if (impact) {
+					results.add(pool.submit(impactSearcher.task(qids, topic.getQueryTweetTime(), days[topicCnt], hours[topicCnt], partitions, top, selectedSizeArr)));
+				} else {
+					results.add(pool.submit(searcher.task(scorer, topic.getQueryTweetTime(), days[topicCnt], hours[topicCnt], partitions, top, selectedSizeArr)));
 				}
+				selectedSizes.add(selectedSizeArr);
+				topicIds.add(topic.getId());
 				topicCnt ++;
-				for (int topIdx = 1; topIdx <= top; topIdx ++) {
-					percentage[topIdx - 1] += (double)(selectedSizeArr[topIdx - 1]) / selectedSizeArr[partitionNum - 1];
+				if (!batch && topicCnt - written == 2 * threads) {
+					writeTopic(bw, percentage, topicIds.get(written), results.get(written).get(), selectedSizes.get(written), top, partitionNum);
+					results.set(written ++, null);
+				}
+			}
+			if (batch) {
+				PairOfLongFloat[][][] batchResults = pool.submit(searcher.batchTask(batchTopics, top)).get();
+				for (; written < topicCnt; written ++) {
+					writeTopic(bw, percentage, topicIds.get(written), batchResults[written], selectedSizes.get(written), top, partitionNum);
 				}
 			}
+			while (written < topicCnt) {
+				writeTopic(bw, percentage, topicIds.get(written), results.get(written).get(), selectedSizes.get(written), top, partitionNum);
+				results.set(written ++, null);
+			}
+			pool.shutdown();
+			for (int topIdx = 1; topIdx <= top; topIdx ++) {
+				bw[topIdx - 1].close();
+			}
 			for (int topIdx = 1; topIdx <= top; topIdx ++) {
 				bw_perct.write(topIdx + "\t" + (percentage[topIdx - 1] / topicCnt));
 				bw_perct.newLine();
@@ -588,34 +401,15 @@ public class RunQueries_Kmeans_AllTrials {
 		}
 	}
 
-	public static int[] determinePartition(double[][] centers, double[] queryVector, int top) {
-		List<ScoreIdPair> all = new ArrayList<ScoreIdPair>();
-		// Cosine similarity
-		for (int i = 0; i < centers.length; i ++) {
-			double similarity = 0;
-			double centerLength = 0;
-			double queryLength = 0;
-			double sum = 0;
-			for (int j = 0; j < queryVector.length; j ++) {
-				centerLength += centers[i][j] * centers[i][j];
-				queryLength += queryVector[j] * queryVector[j];
-				sum += centers[i][j] * queryVector[j];
-			}
-			similarity = sum / (Math.sqrt(centerLength) * Math.sqrt(queryLength));
-			all.add(new ScoreIdPair(similarity, i));
-		}
-		Collections.sort(all, new ScoreComparator());
-
-		int[] result = new int[top];
-		int count = 0;
-		for (ScoreIdPair pair : all) {
-			if (count < top) {
-				result[count] = pair.getIndex();
+	private static void writeTopic(BufferedWriter[] bw, double[] percentage, String topicId, PairOfLongFloat[][] results, int[] selectedSizeArr, int top, int partitionNum) throws IOException {
+		for (int topIdx = 1; topIdx <= top; topIdx ++) {
+			int count = 1;
+			for (PairOfLongFloat pair : results[topIdx - 1]) {
+				bw[topIdx - 1].write(String.format("%d Q0 %s %d %f kmeans", Integer.parseInt(topicId.substring(2)), pair.getKey(), count, pair.getValue()));
+				bw[topIdx - 1].newLine();
 				count ++;
-			} else {
-				break;
 			}
+			percentage[topIdx - 1] += (double)(selectedSizeArr[topIdx - 1]) / selectedSizeArr[partitionNum - 1];
 		}
-		return result;
 	}
 }
@@ -9,10 +9,6 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -42,7 +38,7 @@ import cc.twittertools.index.TweetAnalyzer;
 import cc.twittertools.index.IndexStatuses.StatusField;
 import cc.twittertools.search.TrecTopic;
 import cc.twittertools.search.TrecTopicSet;
-import edu.umd.cloud9.io.pair.PairOfLongFloat;
+import ts4.ts4_core.tweets.util.ClusterShard;
 
 public class RunQueries_Kmeans_ClusterPartition {
 	private static final Logger LOG = Logger.getLogger(RunQueries_Kmeans_ClusterPartition.class);
@@ -125,30 +121,18 @@ public class RunQueries_Kmeans_ClusterPartition {
 		// Read in cluster centers
 		LOG.info("Reading cluster centers from file");
 		double[][] centers = new double[partitionNum][dimension];
-		int ind = 0;
 		try {
-			File[] files = new File(kmeansClusterPath + "/clustercenters-d" + dimension + "-" + hourDayOption + "1-trial" + trial).listFiles();
-			Arrays.sort(files);
-			for (File file : files) {
-				if (file.getName().startsWith("part")) {
-					BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file.getPath())));
-					String line;
-					while((line = br.readLine()) != null) {
-						line = line.substring(1, line.length() - 1);
-						int j = 0;
-						String[] vector = line.split(",");
-						for (String coor : vector) {
-							centers[ind][j ++] = Double.parseDouble(coor);
-						}
-						ind ++;
-					}
-					br.close();
-				}
+			File shardFile = ClusterShard.kmeansFile(kmeansClusterPath, dimension, hourDayOption + "1", trial);
+			if (shardFile.exists()) {
+				ClusterShard.map(shardFile).readCenters(centers);
+			} else {
+				ClusterShard.readTextCenters(kmeansClusterPath + "/clustercenters-d" + dimension + "-" + hourDayOption + "1-trial" + trial, centers);
 			}
 		} catch(Exception e){
 			System.out.println("File not found");
 		}
 		LOG.info("Finished reading cluster centers from file");
+		CentroidRouter router = new CentroidRouter(new double[][][] { centers }, dimension);
 		
 		// Read in indexes
 		Similarity lgmodel = new LMDirichletSimilarity(2500.0f);
@@ -170,7 +154,7 @@ public class RunQueries_Kmeans_ClusterPartition {
 		
 		// Read in query vectors
 		double[][] queryVector = new double[topicTotal][dimension];
-		ind = 0;
+		int ind = 0;
 		try {
 			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(queryVectorPath)));
 			String line;
@@ -193,17 +177,17 @@ public class RunQueries_Kmeans_ClusterPartition {
 			int N = 6;
 			while (N-- > 0) {
 				int topicCnt = 0;
-				TopNFast[] topN = new TopNFast[topIdx];
+				TopNScoredLongs[] topN = new TopNScoredLongs[topIdx];
 				double total = 0;
 				for (TrecTopic topic : topics) {
 					for (int i = 0; i < topIdx; i ++) {
-						topN[i] = new TopNFast(numResults);
+						topN[i] = new TopNScoredLongs(numResults);
 					}
 					Query query = p.parse(topic.getQuery());
 					Filter filter = NumericRangeFilter.newLongRange(StatusField.ID.name, 0L, topic.getQueryTweetTime(), true, true);				
 
 					double startTime = System.currentTimeMillis();
-					int[] partition = determinePartition(centers, queryVector[topicCnt], topIdx);
+					int[] partition = router.route(0, queryVector[topicCnt], topIdx);
 					for (int i = 0; i < topIdx; i ++) {
 						TopDocs rs = searchers[partition[i]].search(query, filter, numResults);
 						for (ScoreDoc scoreDoc : rs.scoreDocs) {
@@ -212,16 +196,16 @@ public class RunQueries_Kmeans_ClusterPartition {
 						}
 					}
 					
-					TopNFast topN_merged = new TopNFast(numResults);
+					TopNScoredLongs topN_merged = new TopNScoredLongs(numResults);
 					for (int i = 0; i < topIdx; i ++) {
 						PairOfLongFloat[] scores = topN[i].extractAll();
 						for (int j = 0; j < scores.length; j ++) {
-							topN_merged.add(scores[j].getLeftElement(), scores[j].getRightElement());
+							topN_merged.add(scores[j].getKey(), scores[j].getValue());
 						}
 					}
 					int i = 1;
 					for (PairOfLongFloat pair : topN_merged.extractAll()) {
-					 	// System.out.println(String.format("%s Q0 %s %d %f %s", topic.getId(), pair.getLeftElement(), i, pair.getRightElement(), runtag));
+					 	// System.out.println(String.format("%s Q0 %s %d %f %s", topic.getId(), pair.getKey(), i, pair.getValue(), runtag));
 					 	i ++;
 					}
 					total += System.currentTimeMillis() - startTime;
@@ -234,35 +218,4 @@ public class RunQueries_Kmeans_ClusterPartition {
 			readers[i].close();
 		}
 	}
-
-	public static int[] determinePartition(double[][] centers, double[] queryVector, int top) {
-		List<ScoreIdPair> all = new ArrayList<ScoreIdPair>();
-		// Cosine similarity
-		for (int i = 0; i < centers.length; i ++) {
-			double similarity = 0;
-			double centerLength = 0;
-			double queryLength = 0;
-			double sum = 0;
-			for (int j = 0; j < queryVector.length; j ++) {
-				centerLength += centers[i][j] * centers[i][j];
-				queryLength += queryVector[j] * queryVector[j];
-				sum += centers[i][j] * queryVector[j];
-			}
-			similarity = sum / (Math.sqrt(centerLength) * Math.sqrt(queryLength));
-			all.add(new ScoreIdPair(similarity, i));
-		}
-		Collections.sort(all, new ScoreComparator());
-
-		int[] result = new int[top];
-		int count = 0;
-		for (ScoreIdPair pair : all) {
-			if (count < top) {
-				result[count] = pair.getIndex();
-				count ++;
-			} else {
-				break;
-			}
-		}
-		return result;
-	}
 }
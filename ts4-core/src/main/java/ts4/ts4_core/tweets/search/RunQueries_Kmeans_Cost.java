@@ -1,5 +1,5 @@
 /* Cost to run queries on kmeans results, cost refers to Jia and my paper
- * Run: sh target/appassembler/bin/RunQueries_Kmeans_Cost -index {indexPath} -stats {statsPath} -cf {queryCfPath}
+ * Run: sh target/appassembler/bin/RunQueries_Kmeans_Cost -index {indexPath} -stats {statsPath}
  *   	-kmeansclusters {kmeansclustersPath} -dayhours {dayFile} [-hourly true] -dimension {dimension} -partition {partitionNum} [-top {N}]
  * 		-queries {queriesPath} -queriesvector {queryVectorPath} -trial {trial}
  */
@@ -11,9 +11,6 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 
 import org.apache.commons.cli.CommandLine;
@@ -30,6 +27,8 @@ import org.apache.lucene.util.Version;
 import cc.twittertools.index.TweetAnalyzer;
 import cc.twittertools.search.TrecTopic;
 import cc.twittertools.search.TrecTopicSet;
+import ts4.ts4_core.tweets.util.ClusterMembers;
+import ts4.ts4_core.tweets.util.ForwardIndex;
 import ts4.ts4_core.tweets.util.TermStatistics;
 import ts4.ts4_core.tweets.util.TweetParser;
 
@@ -39,7 +38,6 @@ public class RunQueries_Kmeans_Cost {
 
 	private static final String INDEX_OPTION = "index";
 	private static final String STATS_OPTION = "stats";
-	private static final String CF_OPTION = "cf";
 	private static final String KMEANS_CLUSTER_OPTION = "kmeansclusters";
 	private static final String DAYHOURS_OPTION = "dayhours";
 	private static final String HOURS_OPTION = "hourly";
@@ -50,7 +48,7 @@ public class RunQueries_Kmeans_Cost {
 	private static final String QUERIES_VECTOR_OPTION = "queriesvector";
 	private static final String TRIAL = "trial";
 
-	@SuppressWarnings({ "static-access", "unchecked" })
+	@SuppressWarnings("static-access")
 	public static void main(String[] args) throws Exception {
 		Options options = new Options();
 
@@ -58,8 +56,6 @@ public class RunQueries_Kmeans_Cost {
 				.withDescription("index location").create(INDEX_OPTION));
 		options.addOption(OptionBuilder.withArgName("path").hasArg()
 				.withDescription("statistics location").create(STATS_OPTION));
-		options.addOption(OptionBuilder.withArgName("path").hasArg()
-				.withDescription("query cf file").create(CF_OPTION));
 		options.addOption(OptionBuilder.withArgName("path").hasArg()
 				.withDescription("kmeans cluster centers path").create(KMEANS_CLUSTER_OPTION));
 		options.addOption(OptionBuilder.withArgName("file").hasArg()
@@ -88,7 +84,7 @@ public class RunQueries_Kmeans_Cost {
 			System.exit(-1);
 		}
 
-		if (!cmdline.hasOption(INDEX_OPTION) || !cmdline.hasOption(STATS_OPTION) || !cmdline.hasOption(CF_OPTION) || !cmdline.hasOption(KMEANS_CLUSTER_OPTION) || !cmdline.hasOption(DAYHOURS_OPTION) || !cmdline.hasOption(DIMENSION) || !cmdline.hasOption(PARTITION) || !cmdline.hasOption(QUERIES_OPTION) || !cmdline.hasOption(QUERIES_VECTOR_OPTION) || !cmdline.hasOption(TRIAL)) {
+		if (!cmdline.hasOption(INDEX_OPTION) || !cmdline.hasOption(STATS_OPTION) || !cmdline.hasOption(KMEANS_CLUSTER_OPTION) || !cmdline.hasOption(DAYHOURS_OPTION) || !cmdline.hasOption(DIMENSION) || !cmdline.hasOption(PARTITION) || !cmdline.hasOption(QUERIES_OPTION) || !cmdline.hasOption(QUERIES_VECTOR_OPTION) || !cmdline.hasOption(TRIAL)) {
 			HelpFormatter formatter = new HelpFormatter();
 			formatter.printHelp(RunQueries_Kmeans_Cost.class.getName(), options);
 			System.exit(-1);
@@ -96,7 +92,6 @@ public class RunQueries_Kmeans_Cost {
 
 		String indexPath = cmdline.getOptionValue(INDEX_OPTION);
 		String statsPath = cmdline.getOptionValue(STATS_OPTION);
-		String cfPath = cmdline.getOptionValue(CF_OPTION);
 		String kmeansClusterPath = cmdline.getOptionValue(KMEANS_CLUSTER_OPTION);
 		String dayhoursPath = cmdline.getOptionValue(DAYHOURS_OPTION);
 		int dimension = Integer.parseInt(cmdline.getOptionValue(DIMENSION));
@@ -118,141 +113,11 @@ public class RunQueries_Kmeans_Cost {
 
 		// Read in stats
 		LOG.info("Reading term statistics from file");
-		BufferedReader br_stats = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/stats.txt")));
-		int numDoc = Integer.parseInt(br_stats.readLine());
-		br_stats.close();
-
-		int[][] terms = new int[numDoc][];
-		int[][] tf = new int[numDoc][];
-		long[] ids = new long[numDoc];
-		int[] docLengthOrdered = new int[numDoc];
-		float[] docLengthEncoded = new float[numDoc];
-		try {
-			BufferedReader brTerms = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/doc_id.txt")));
-			String s;
-			int i = 0;
-			while((s = brTerms.readLine()) != null) {
-				ids[i ++] = Long.valueOf(s);
-			}
-			try {
-				brTerms.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
-		try {
-			BufferedReader brLength = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/doc_length_ordered.txt")));
-			String s;
-			int i = 0;
-			while((s = brLength.readLine()) != null) {
-				docLengthOrdered[i ++] = Integer.valueOf(s);
-			}
-			try {
-				brLength.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
-		try {
-			BufferedReader brLength = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/doc_length_encoded.txt")));
-			String s;
-			int i = 0;
-			while((s = brLength.readLine()) != null) {
-				docLengthEncoded[i ++] = Float.valueOf(s);
-			}
-			try {
-				brLength.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
-		try {
-			BufferedReader brTerms = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/all_terms_ordered.txt")));
-			String s;
-			int i = 0;
-			int j = 0;
-			terms[0] = new int[docLengthOrdered[0]];
-			while((s = brTerms.readLine()) != null) {
-				while (j == docLengthOrdered[i] || docLengthOrdered[i] == 0) {
-					i ++;
-					j = 0;
-					terms[i] = new int[docLengthOrdered[i]];
-				}
-				terms[i][j ++] = Integer.valueOf(s);
-			}
-			try {
-				brTerms.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
-		try {
-			BufferedReader brTerms = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/all_terms_tf.txt")));
-			String s;
-			int i = 0;
-			int j = 0;
-			tf[0] = new int[docLengthOrdered[0]];
-			while((s = brTerms.readLine()) != null) {
-				while (j == docLengthOrdered[i] || docLengthOrdered[i] == 0) {
-					i ++;
-					j = 0;
-					tf[i] = new int[docLengthOrdered[i]];
-				}
-				tf[i][j ++] = Integer.valueOf(s);
-			}
-			try {
-				brTerms.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
+		ForwardIndex index = ForwardIndex.load(statsPath);
+		int[] docTerms = new int[index.getMaxTermCount()];
+		int[] docTf = new int[index.getMaxTermCount()];
 		LOG.info("Finished reading term statistics from file");
 
-		// Read in cf file
-		int queryCount = 0;
-		List<List<Long>> cf = new ArrayList<List<Long>>();
-		try {
-			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(cfPath)));
-			String line;
-			while((line = br.readLine()) != null) {
-				cf.add(new ArrayList<Long>());
-				String[] tokens = line.split(" ");
-				for (String token : tokens) {
-					cf.get(queryCount).add(Long.parseLong(token));
-				}
-				queryCount ++;
-			}
-			try {
-				br.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
-
 		TrecTopicSet topics = TrecTopicSet.fromFile(new File(queryPath));
 		int topicTotal = 0;
 		for (@SuppressWarnings("unused") TrecTopic topic : topics) {
@@ -286,69 +151,37 @@ public class RunQueries_Kmeans_Cost {
 			e1.printStackTrace();
 		}
 		
+		// Slices after the last hour searched by any topic are not read
+		int lastHour = ClusterAssignments.lastHour(days, hours);
+
 		// Count days
 		int DAYS = 0;
+		int shardHours = 0;
 		try {
 			File[] files = new File(kmeansClusterPath).listFiles();
 			for (File file : files) {
 				if (file.getName().startsWith("clustercenters-d" + dimension + "-hour") && file.getName().endsWith("trial1")) {
 					DAYS ++;
+				} else if (file.getName().startsWith("clustershard-d" + dimension + "-hour") && file.getName().endsWith("trial1")) {
+					shardHours ++;
 				}
 			}
 		} catch(Exception e){
 			System.out.println("File not found");
 		}
-		DAYS /= 24;
+		DAYS = Math.max(DAYS, shardHours) / 24;
 
 		// Read in cluster centers and assignments
 		LOG.info("Reading cluster centers and assignments from file");
 		double[][][] centers_days = new double[DAYS][partitionNum][dimension];
-		List<Integer>[][] indexes_days = (ArrayList<Integer>[][])new ArrayList[DAYS][partitionNum];
+		ClusterMembers[] indexes_days = new ClusterMembers[DAYS];
 		if (!cmdline.hasOption(HOURS_OPTION)) {
 			for (int i = 0; i < DAYS; i ++) {
-				for (int j = 0; j < partitionNum; j ++) {
-					indexes_days[i][j] = new ArrayList<Integer>();
-				}
+				indexes_days[i] = new ClusterMembers(partitionNum);
 			}
-			for (int i = 1; i <= DAYS; i ++) {
-				int ind = 0;
-				try {
-					File[] files = new File(kmeansClusterPath + "/clustercenters-d" + dimension + "-day" + i + "-trial" + trial).listFiles();
-					Arrays.sort(files);
-					for (File file : files) {
-						if (file.getName().startsWith("part")) {
-							BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file.getPath())));
-							String line;
-							while((line = br.readLine()) != null) {
-								line = line.substring(1, line.length() - 1);
-								int j = 0;
-								String[] vector = line.split(",");
-								for (String coor : vector) {
-									centers_days[i - 1][ind][j ++] = Double.parseDouble(coor);
-								}
-								ind ++;
-							}
-							br.close();
-						}
-					}
-				} catch(Exception e){
-					System.out.println("File not found");
-				}
+			for (int i = 1; i <= Math.min(DAYS, lastHour / 24); i ++) {
 				try {
-					File[] files = new File(kmeansClusterPath + "/clusterassign-d" + dimension + "-day" + i + "-trial" + trial).listFiles();
-					Arrays.sort(files);
-					for (File file : files) {
-						if (file.getName().startsWith("part")) {
-							BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file.getPath())));
-							String line;
-							while((line = br.readLine()) != null) {
-								line = line.substring(1, line.length() - 1);
-								String[] indexmap = line.split(",");
-								indexes_days[i - 1][Integer.parseInt(indexmap[1])].add(Integer.parseInt(indexmap[0]));
-							}
-							br.close();
-						}
-					}
+					indexes_days[i - 1] = ClusterAssignments.readSlice(kmeansClusterPath, dimension, "day" + i, trial, centers_days[i - 1], partitionNum, index);
 				} catch(Exception e){
 					System.out.println("File not found");
 				}
@@ -356,51 +189,13 @@ public class RunQueries_Kmeans_Cost {
 		}
 
 		double[][][] centers_hours = new double[DAYS * 24][partitionNum][dimension];
-		List<Integer>[][] indexes_hours = (ArrayList<Integer>[][])new ArrayList[DAYS * 24][partitionNum];
+		ClusterMembers[] indexes_hours = new ClusterMembers[DAYS * 24];
 		for (int i = 0; i < DAYS * 24; i ++) {
-			for (int j = 0; j < partitionNum; j ++) {
-				indexes_hours[i][j] = new ArrayList<Integer>();
-			}
+			indexes_hours[i] = new ClusterMembers(partitionNum);
 		}
-		for (int i = 1; i <= DAYS * 24; i ++) {
-			int ind = 0;
+		for (int i = 1; i <= Math.min(DAYS * 24, lastHour); i ++) {
 			try {
-				File[] files = new File(kmeansClusterPath + "/clustercenters-d" + dimension + "-hour" + i + "-trial" + trial).listFiles();
-				Arrays.sort(files);
-				for (File file : files) {
-					if (file.getName().startsWith("part")) {
-						BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file.getPath())));
-						String line;
-						while((line = br.readLine()) != null) {
-							line = line.substring(1, line.length() - 1);
-							int j = 0;
-							String[] vector = line.split(",");
-							for (String coor : vector) {
-								centers_hours[i - 1][ind][j ++] = Double.parseDouble(coor);
-							}
-							ind ++;
-						}
-						br.close();
-					}
-				}
-			} catch(Exception e){
-				System.out.println("File not found");
-			}
-			try {
-				File[] files = new File(kmeansClusterPath + "/clusterassign-d" + dimension + "-hour" + i + "-trial" + trial).listFiles();
-				Arrays.sort(files);
-				for (File file : files) {
-					if (file.getName().startsWith("part")) {
-						BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file.getPath())));
-						String line;
-						while((line = br.readLine()) != null) {
-							line = line.substring(1, line.length() - 1);
-							String[] indexmap = line.split(",");
-							indexes_hours[i - 1][Integer.parseInt(indexmap[1])].add(Integer.parseInt(indexmap[0]));
-						}
-						br.close();
-					}
-				}
+				indexes_hours[i - 1] = ClusterAssignments.readSlice(kmeansClusterPath, dimension, "hour" + i, trial, centers_hours[i - 1], partitionNum, index);
 			} catch(Exception e){
 				System.out.println("File not found");
 			}
@@ -424,6 +219,8 @@ public class RunQueries_Kmeans_Cost {
 		} catch(Exception e){
 			System.out.println("File not found");
 		}
+		int[][][] routes_days = new CentroidRouter(centers_days, dimension).route(queryVector, top);
+		int[][][] routes_hours = new CentroidRouter(centers_hours, dimension).route(queryVector, top);
 
 		int topicCnt = 0;
 		int[] selectedSizeArr = new int[partitionNum];
@@ -440,24 +237,27 @@ public class RunQueries_Kmeans_Cost {
 			int[][] partitions = new int[days[topicCnt] + hours[topicCnt]][partitionNum];
 			int partitionInd = 0;
 			for (int day = 1; day <= days[topicCnt]; day ++) {
-				partitions[partitionInd ++] = determinePartition(centers_days[day - 1], queryVector[topicCnt], 100);
+				partitions[partitionInd ++] = routes_days[day - 1][topicCnt];
 			}
 			for (int hour = 24 * days[topicCnt] + 1; hour <= 24 * days[topicCnt] + hours[topicCnt]; hour ++) {
-				partitions[partitionInd ++] = determinePartition(centers_hours[hour - 1], queryVector[topicCnt], 100);
+				partitions[partitionInd ++] = routes_hours[hour - 1][topicCnt];
 			}
 
 			for (int topIdx = 1; topIdx <= top; topIdx ++) {
 				partitionInd = 0;
 				for (int day = 1; day <= days[topicCnt]; day ++) {
-					for (int idx = 0; idx < indexes_days[day - 1][partitions[partitionInd][topIdx - 1]].size(); idx ++) {
-						int i = indexes_days[day - 1][partitions[partitionInd][topIdx - 1]].get(idx);
-						if (ids[i] > topic.getQueryTweetTime()) {
-							continue;
+					ClusterMembers members = indexes_days[day - 1];
+					int partition = partitions[partitionInd][topIdx - 1];
+					for (int idx = 0; idx < members.size(partition); idx ++) {
+						int i = members.get(partition, idx);
+						if (index.getId(i) > topic.getQueryTweetTime()) {
+							break;
 						}
 						
+						int n = index.read(i, docTerms, docTf);
 						for (int t = 0; t < c; t++) {
-							for (int j = 0; j < docLengthOrdered[i]; j ++) {
-								if (terms[i][j] == qids[t]) {
+							for (int j = 0; j < n; j ++) {
+								if (docTerms[j] == qids[t]) {
 									selectedSize ++;
 									break;
 								}
@@ -467,15 +267,18 @@ public class RunQueries_Kmeans_Cost {
 					partitionInd ++;
 				}
 				for (int hour = 24 * days[topicCnt] + 1; hour <= 24 * days[topicCnt] + hours[topicCnt] - 1; hour ++) {
-					for (int idx = 0; idx < indexes_hours[hour - 1][partitions[partitionInd][topIdx - 1]].size(); idx ++) {
-						int i = indexes_hours[hour - 1][partitions[partitionInd][topIdx - 1]].get(idx);
-						if (ids[i] > topic.getQueryTweetTime()) {
-							continue;
+					ClusterMembers members = indexes_hours[hour - 1];
+					int partition = partitions[partitionInd][topIdx - 1];
+					for (int idx = 0; idx < members.size(partition); idx ++) {
+						int i = members.get(partition, idx);
+						if (index.getId(i) > topic.getQueryTweetTime()) {
+							break;
 						}
 						
+						int n = index.read(i, docTerms, docTf);
 						for (int t = 0; t < c; t++) {
-							for (int j = 0; j < docLengthOrdered[i]; j ++) {
-								if (terms[i][j] == qids[t]) {
+							for (int j = 0; j < n; j ++) {
+								if (docTerms[j] == qids[t]) {
 									selectedSize ++;
 									break;
 								}
@@ -492,35 +295,4 @@ public class RunQueries_Kmeans_Cost {
 			System.out.println(topIdx + "\t" + selectedSizeArr[topIdx - 1] / topicCnt);
 		}
 	}
-
-	public static int[] determinePartition(double[][] centers, double[] queryVector, int top) {
-		List<ScoreIdPair> all = new ArrayList<ScoreIdPair>();
-		// Cosine similarity
-		for (int i = 0; i < centers.length; i ++) {
-			double similarity = 0;
-			double centerLength = 0;
-			double queryLength = 0;
-			double sum = 0;
-			for (int j = 0; j < queryVector.length; j ++) {
-				centerLength += centers[i][j] * centers[i][j];
-				queryLength += queryVector[j] * queryVector[j];
-				sum += centers[i][j] * queryVector[j];
-			}
-			similarity = sum / (Math.sqrt(centerLength) * Math.sqrt(queryLength));
-			all.add(new ScoreIdPair(similarity, i));
-		}
-		Collections.sort(all, new ScoreComparator());
-
-		int[] result = new int[top];
-		int count = 0;
-		for (ScoreIdPair pair : all) {
-			if (count < top) {
-				result[count] = pair.getIndex();
-				count ++;
-			} else {
-				break;
-			}
-		}
-		return result;
-	}
 }
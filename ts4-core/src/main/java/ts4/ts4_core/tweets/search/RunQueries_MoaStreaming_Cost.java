@@ -1,6 +1,6 @@
 /* Cost to run queries on moastreaming results, cost refers to Jia and my paper
  * Run: sh target/appassembler/bin/RunQueriesDaily_MoaStreaming_Cost -index {indexPath} -stats {statsPath} 
- * -cf {queryCfPath} -docsvector {docVectorPath} -kmeansclusters {kmeansClustersPath} -streamingclusters {streamingClustersPath}
+ * -docsvector {docVectorPath} -kmeansclusters {kmeansClustersPath} -streamingclusters {streamingClustersPath}
  * -dayhours {dayFile} [-hourly true] -dimension {dimension} -partition {partitionNum} [-top {N}]
  * -queries {queriesPath} -queriesvector {queryVectorPath} -trial {trial}
  */
@@ -13,9 +13,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 
 import org.apache.commons.cli.CommandLine;
@@ -32,6 +30,9 @@ import org.apache.lucene.util.Version;
 import cc.twittertools.index.TweetAnalyzer;
 import cc.twittertools.search.TrecTopic;
 import cc.twittertools.search.TrecTopicSet;
+import ts4.ts4_core.tweets.util.ClusterMembers;
+import ts4.ts4_core.tweets.util.ClusterShard;
+import ts4.ts4_core.tweets.util.ForwardIndex;
 import ts4.ts4_core.tweets.util.TermStatistics;
 import ts4.ts4_core.tweets.util.TweetParser;
 
@@ -41,7 +42,6 @@ public class RunQueries_MoaStreaming_Cost {
 
 	private static final String INDEX_OPTION = "index";
 	private static final String STATS_OPTION = "stats";
-	private static final String CF_OPTION = "cf";
 	private static final String DOCVECTORS = "docsvector";
 	private static final String KMEANS_CLUSTER_OPTION = "kmeansclusters";
 	private static final String STREAMING_CLUSTER_OPTION = "streamingclusters";
@@ -54,7 +54,7 @@ public class RunQueries_MoaStreaming_Cost {
 	private static final String QUERIES_VECTOR_OPTION = "queriesvector";
 	private static final String TRIAL = "trial";
 
-	@SuppressWarnings({ "static-access", "unchecked", "resource" })
+	@SuppressWarnings({ "static-access", "resource" })
 	public static void main(String[] args) throws Exception {
 		Options options = new Options();
 
@@ -62,8 +62,6 @@ public class RunQueries_MoaStreaming_Cost {
 				.withDescription("index location").create(INDEX_OPTION));
 		options.addOption(OptionBuilder.withArgName("path").hasArg()
 				.withDescription("statistics location").create(STATS_OPTION));
-		options.addOption(OptionBuilder.withArgName("path").hasArg()
-				.withDescription("query cf file").create(CF_OPTION));
 		options.addOption(OptionBuilder.withArgName("file").hasArg()
 				.withDescription("document vector").create(DOCVECTORS));
 		options.addOption(OptionBuilder.withArgName("path").hasArg()
@@ -96,7 +94,7 @@ public class RunQueries_MoaStreaming_Cost {
 			System.exit(-1);
 		}
 
-		if (!cmdline.hasOption(INDEX_OPTION) || !cmdline.hasOption(STATS_OPTION) || !cmdline.hasOption(CF_OPTION) || !cmdline.hasOption(DOCVECTORS) || !cmdline.hasOption(KMEANS_CLUSTER_OPTION) || !cmdline.hasOption(STREAMING_CLUSTER_OPTION) || !cmdline.hasOption(DAYHOURS_OPTION) || !cmdline.hasOption(DIMENSION) || !cmdline.hasOption(PARTITION) || !cmdline.hasOption(QUERIES_OPTION) || !cmdline.hasOption(QUERIES_VECTOR_OPTION) || !cmdline.hasOption(TRIAL)) {
+		if (!cmdline.hasOption(INDEX_OPTION) || !cmdline.hasOption(STATS_OPTION) || !cmdline.hasOption(DOCVECTORS) || !cmdline.hasOption(KMEANS_CLUSTER_OPTION) || !cmdline.hasOption(STREAMING_CLUSTER_OPTION) || !cmdline.hasOption(DAYHOURS_OPTION) || !cmdline.hasOption(DIMENSION) || !cmdline.hasOption(PARTITION) || !cmdline.hasOption(QUERIES_OPTION) || !cmdline.hasOption(QUERIES_VECTOR_OPTION) || !cmdline.hasOption(TRIAL)) {
 			HelpFormatter formatter = new HelpFormatter();
 			formatter.printHelp(RunQueries_MoaStreaming_Cost.class.getName(), options);
 			System.exit(-1);
@@ -104,7 +102,6 @@ public class RunQueries_MoaStreaming_Cost {
 
 		String indexPath = cmdline.getOptionValue(INDEX_OPTION);
 		String statsPath = cmdline.getOptionValue(STATS_OPTION);
-		String cfPath = cmdline.getOptionValue(CF_OPTION);
 		String docVectorPath = cmdline.getOptionValue(DOCVECTORS);
 		String kmeansClusterPath = cmdline.getOptionValue(KMEANS_CLUSTER_OPTION);
 		String streamingClusterPath = cmdline.getOptionValue(STREAMING_CLUSTER_OPTION);
@@ -128,141 +125,11 @@ public class RunQueries_MoaStreaming_Cost {
 
 		// Read in stats
 		LOG.info("Reading term statistics from file");
-		BufferedReader br_stats = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/stats.txt")));
-		int numDoc = Integer.parseInt(br_stats.readLine());
-		br_stats.close();
-
-		int[][] terms = new int[numDoc][];
-		int[][] tf = new int[numDoc][];
-		long[] ids = new long[numDoc];
-		int[] docLengthOrdered = new int[numDoc];
-		float[] docLengthEncoded = new float[numDoc];
-		try {
-			BufferedReader brTerms = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/doc_id.txt")));
-			String s;
-			int i = 0;
-			while((s = brTerms.readLine()) != null) {
-				ids[i ++] = Long.valueOf(s);
-			}
-			try {
-				brTerms.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
-		try {
-			BufferedReader brLength = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/doc_length_ordered.txt")));
-			String s;
-			int i = 0;
-			while((s = brLength.readLine()) != null) {
-				docLengthOrdered[i ++] = Integer.valueOf(s);
-			}
-			try {
-				brLength.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
-		try {
-			BufferedReader brLength = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/doc_length_encoded.txt")));
-			String s;
-			int i = 0;
-			while((s = brLength.readLine()) != null) {
-				docLengthEncoded[i ++] = Float.valueOf(s);
-			}
-			try {
-				brLength.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
-		try {
-			BufferedReader brTerms = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/all_terms_ordered.txt")));
-			String s;
-			int i = 0;
-			int j = 0;
-			terms[0] = new int[docLengthOrdered[0]];
-			while((s = brTerms.readLine()) != null) {
-				while (j == docLengthOrdered[i] || docLengthOrdered[i] == 0) {
-					i ++;
-					j = 0;
-					terms[i] = new int[docLengthOrdered[i]];
-				}
-				terms[i][j ++] = Integer.valueOf(s);
-			}
-			try {
-				brTerms.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
-		try {
-			BufferedReader brTerms = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/all_terms_tf.txt")));
-			String s;
-			int i = 0;
-			int j = 0;
-			tf[0] = new int[docLengthOrdered[0]];
-			while((s = brTerms.readLine()) != null) {
-				while (j == docLengthOrdered[i] || docLengthOrdered[i] == 0) {
-					i ++;
-					j = 0;
-					tf[i] = new int[docLengthOrdered[i]];
-				}
-				tf[i][j ++] = Integer.valueOf(s);
-			}
-			try {
-				brTerms.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
+		ForwardIndex index = ForwardIndex.load(statsPath);
+		int[] docTerms = new int[index.getMaxTermCount()];
+		int[] docTf = new int[index.getMaxTermCount()];
 		LOG.info("Finished reading term statistics from file");
 
-		// Read in cf file
-		int queryCount = 0;
-		List<List<Long>> cf = new ArrayList<List<Long>>();
-		try {
-			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(cfPath)));
-			String line;
-			while((line = br.readLine()) != null) {
-				cf.add(new ArrayList<Long>());
-				String[] tokens = line.split(" ");
-				for (String token : tokens) {
-					cf.get(queryCount).add(Long.parseLong(token));
-				}
-				queryCount ++;
-			}
-			try {
-				br.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e1) {
-			e1.printStackTrace();
-		}
-
 		TrecTopicSet topics = TrecTopicSet.fromFile(new File(queryPath));
 		int topicTotal = 0;
 		for (@SuppressWarnings("unused") TrecTopic topic : topics) {
@@ -296,6 +163,9 @@ public class RunQueries_MoaStreaming_Cost {
 			e1.printStackTrace();
 		}
 
+		// Slices after the last hour searched by any topic are not read
+		int lastHour = ClusterAssignments.lastHour(days, hours);
+
 		// Count days
 		int DAYS = 0;
 		try {
@@ -308,52 +178,14 @@ public class RunQueries_MoaStreaming_Cost {
 		// Read in cluster centers and assignments
 		LOG.info("Reading cluster centers and assignments from file");
 		double[][][] centers_days = new double[DAYS][partitionNum][dimension];
-		List<Integer>[][] indexes_days = (ArrayList<Integer>[][])new ArrayList[DAYS][partitionNum];
+		ClusterMembers[] indexes_days = new ClusterMembers[DAYS];
 		if (!cmdline.hasOption(HOURS_OPTION)) {
 			for (int i = 0; i < DAYS; i ++) {
-				for (int j = 0; j < partitionNum; j ++) {
-					indexes_days[i][j] = new ArrayList<Integer>();
-				}
+				indexes_days[i] = new ClusterMembers(partitionNum);
 			}
-			for (int i = 1; i <= DAYS; i ++) {
-				int ind = 0;
+			for (int i = 1; i <= Math.min(DAYS, lastHour / 24); i ++) {
 				try {
-					File[] files = new File(kmeansClusterPath + "/clustercenters-d" + dimension + "-day" + i + "-trial" + trial).listFiles();
-					Arrays.sort(files);
-					for (File file : files) {
-						if (file.getName().startsWith("part")) {
-							BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file.getPath())));
-							String line;
-							while((line = br.readLine()) != null) {
-								line = line.substring(1, line.length() - 1);
-								int j = 0;
-								String[] vector = line.split(",");
-								for (String coor : vector) {
-									centers_days[i - 1][ind][j ++] = Double.parseDouble(coor);
-								}
-								ind ++;
-							}
-							br.close();
-						}
-					}
-				} catch(Exception e){
-					System.out.println("File not found");
-				}
-				try {
-					File[] files = new File(kmeansClusterPath + "/clusterassign-d" + dimension + "-day" + i + "-trial" + trial).listFiles();
-					Arrays.sort(files);
-					for (File file : files) {
-						if (file.getName().startsWith("part")) {
-							BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file.getPath())));
-							String line;
-							while((line = br.readLine()) != null) {
-								line = line.substring(1, line.length() - 1);
-								String[] indexmap = line.split(",");
-								indexes_days[i - 1][Integer.parseInt(indexmap[1])].add(Integer.parseInt(indexmap[0]));
-							}
-							br.close();
-						}
-					}
+					indexes_days[i - 1] = ClusterAssignments.readSlice(kmeansClusterPath, dimension, "day" + i, trial, centers_days[i - 1], partitionNum, index);
 				} catch(Exception e){
 					System.out.println("File not found");
 				}
@@ -361,11 +193,9 @@ public class RunQueries_MoaStreaming_Cost {
 		}
 
 		double[][][] centers_hours = new double[DAYS * 24][][];
-		List<Integer>[][] indexes_hours = (ArrayList<Integer>[][])new ArrayList[DAYS * 24][partitionNum];
+		ClusterMembers[] indexes_hours = new ClusterMembers[DAYS * 24];
 		for (int i = 0; i < DAYS * 24; i ++) {
-			for (int j = 0; j < partitionNum; j ++) {
-				indexes_hours[i][j] = new ArrayList<Integer>();
-			}
+			indexes_hours[i] = new ClusterMembers(partitionNum);
 		}
 		double[][] centers = new double[partitionNum][dimension];
 		int hour = 0;
@@ -374,29 +204,43 @@ public class RunQueries_MoaStreaming_Cost {
 			File[] files = new File(streamingClusterPath + "/clusters-d" + dimension + "-trial" + trial).listFiles();
 			Arrays.sort(files);
 			for (File file : files) {
-				try {
-					ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file.getPath()));
-					centers = (double[][])ois.readObject();
-				} catch (FileNotFoundException e) {
-					e.printStackTrace();  
-				} catch (IOException e) {
-					e.printStackTrace();
+				if (hour == lastHour) {
+					break;
 				}
-				centers_hours[hour] = centers;
+				// Shards written by MoaStreaming or converted by ClusterShard hold the assignments too
+				if (ClusterShard.isShard(file)) {
+					ClusterShard shard = ClusterShard.map(file);
+					centers_hours[hour] = shard.getCenters();
+					indexes_hours[hour] = shard.readMembers(partitionNum);
+					cnt += shard.getNumDocs();
+				} else {
+					try {
+						ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file.getPath()));
+						centers = (double[][])ois.readObject();
+					} catch (FileNotFoundException e) {
+						e.printStackTrace();  
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+					centers_hours[hour] = centers;
 
-				BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(docVectorPath + "/" + file.getName())));
-				String line;
-				while((line = br.readLine()) != null) {
-					String[] tokens = line.split(" ");
-					double[] vector = new double[dimension];
-					for (int j = 1; j < tokens.length; j ++) {
-						vector[j - 1] = Double.parseDouble(tokens[j]);
+					ClusterMembers.Builder members = new ClusterMembers.Builder(partitionNum);
+					BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(docVectorPath + "/" + file.getName())));
+					String line;
+					while((line = br.readLine()) != null) {
+						String[] tokens = line.split(" ");
+						double[] vector = new double[dimension];
+						for (int j = 1; j < tokens.length; j ++) {
+							vector[j - 1] = Double.parseDouble(tokens[j]);
+						}
+						members.add(cnt, ClusterShard.nearest(vector, centers));
+						cnt ++;
 					}
-					int nearestCluster = FindNearestCluster(vector, centers);
-					indexes_hours[hour][nearestCluster].add(cnt);
-					cnt ++;
+					br.close();
+					indexes_hours[hour] = members.build();
 				}
-				br.close();
+				indexes_hours[hour].renumber(index);
+				indexes_hours[hour].sortById(index);
 				hour ++;
 			}
 		} catch(Exception e){
@@ -421,6 +265,8 @@ public class RunQueries_MoaStreaming_Cost {
 		} catch(Exception e){
 			System.out.println("File not found");
 		}
+		int[][][] routes_days = new CentroidRouter(centers_days, dimension).route(queryVector, top);
+		int[][][] routes_hours = new CentroidRouter(centers_hours, dimension).route(queryVector, top);
 
 		int topicCnt = 0;
 		int[] selectedSizeArr = new int[partitionNum];
@@ -437,24 +283,27 @@ public class RunQueries_MoaStreaming_Cost {
 			int[][] partitions = new int[days[topicCnt] + hours[topicCnt]][partitionNum];
 			int partitionInd = 0;
 			for (int day = 1; day <= days[topicCnt]; day ++) {
-				partitions[partitionInd ++] = determinePartition(centers_days[day - 1], queryVector[topicCnt], 100);
+				partitions[partitionInd ++] = routes_days[day - 1][topicCnt];
 			}
 			for (hour = 24 * days[topicCnt] + 1; hour <= 24 * days[topicCnt] + hours[topicCnt]; hour ++) {
-				partitions[partitionInd ++] = determinePartition(centers_hours[hour - 1], queryVector[topicCnt], 100);
+				partitions[partitionInd ++] = routes_hours[hour - 1][topicCnt];
 			}
 
 			for (int topIdx = 1; topIdx <= top; topIdx ++) {
 				partitionInd = 0;
 				for (int day = 1; day <= days[topicCnt]; day ++) {
-					for (int idx = 0; idx < indexes_days[day - 1][partitions[partitionInd][topIdx - 1]].size(); idx ++) {
-						int i = indexes_days[day - 1][partitions[partitionInd][topIdx - 1]].get(idx);
-						if (ids[i] > topic.getQueryTweetTime()) {
-							continue;
+					ClusterMembers members = indexes_days[day - 1];
+					int partition = partitions[partitionInd][topIdx - 1];
+					for (int idx = 0; idx < members.size(partition); idx ++) {
+						int i = members.get(partition, idx);
+						if (index.getId(i) > topic.getQueryTweetTime()) {
+							break;
 						}
 						
+						int n = index.read(i, docTerms, docTf);
 						for (int t = 0; t < c; t++) {
-							for (int j = 0; j < docLengthOrdered[i]; j ++) {
-								if (terms[i][j] == qids[t]) {
+							for (int j = 0; j < n; j ++) {
+								if (docTerms[j] == qids[t]) {
 									selectedSize ++;
 									break;
 								}
@@ -464,15 +313,18 @@ public class RunQueries_MoaStreaming_Cost {
 					partitionInd ++;
 				}
 				for (hour = 24 * days[topicCnt] + 1; hour <= 24 * days[topicCnt] + hours[topicCnt] - 1; hour ++) {
-					for (int idx = 0; idx < indexes_hours[hour - 1][partitions[partitionInd][topIdx - 1]].size(); idx ++) {
-						int i = indexes_hours[hour - 1][partitions[partitionInd][topIdx - 1]].get(idx);
-						if (ids[i] > topic.getQueryTweetTime()) {
-							continue;
+					ClusterMembers members = indexes_hours[hour - 1];
+					int partition = partitions[partitionInd][topIdx - 1];
+					for (int idx = 0; idx < members.size(partition); idx ++) {
+						int i = members.get(partition, idx);
+						if (index.getId(i) > topic.getQueryTweetTime()) {
+							break;
 						}
 						
+						int n = index.read(i, docTerms, docTf);
 						for (int t = 0; t < c; t++) {
-							for (int j = 0; j < docLengthOrdered[i]; j ++) {
-								if (terms[i][j] == qids[t]) {
+							for (int j = 0; j < n; j ++) {
+								if (docTerms[j] == qids[t]) {
 									selectedSize ++;
 									break;
 								}
@@ -489,57 +341,4 @@ public class RunQueries_MoaStreaming_Cost {
 			System.out.println(topIdx + "\t" + selectedSizeArr[topIdx - 1] / topicCnt);
 		}
 	}
-
-	public static int[] determinePartition(double[][] centers, double[] queryVector, int top) {
-		List<ScoreIdPair> all = new ArrayList<ScoreIdPair>();
-		// Cosine similarity
-		for (int i = 0; i < centers.length; i ++) {
-			double similarity = 0;
-			double centerLength = 0;
-			double queryLength = 0;
-			double sum = 0;
-			for (int j = 0; j < queryVector.length; j ++) {
-				centerLength += centers[i][j] * centers[i][j];
-				queryLength += queryVector[j] * queryVector[j];
-				sum += centers[i][j] * queryVector[j];
-			}
-			similarity = sum / (Math.sqrt(centerLength) * Math.sqrt(queryLength));
-			all.add(new ScoreIdPair(similarity, i));
-		}
-		Collections.sort(all, new ScoreComparator());
-
-		int[] result = new int[top];
-		int count = 0;
-		for (ScoreIdPair pair : all) {
-			if (count < top) {
-				result[count] = pair.getIndex();
-				count ++;
-			} else {
-				break;
-			}
-		}
-		return result;
-	}
-
-	public static int FindNearestCluster(double[] docVector, double[][] centers) {
-		int res = 0;
-		double max = Integer.MIN_VALUE;
-		for (int i = 0; i < centers.length; i ++) {
-			double similarity = 0;
-			double docLength = 0;
-			double centerLength = 0;
-			double sum = 0;
-			for (int j = 0; j < docVector.length; j ++) {
-				docLength += docVector[j] * docVector[j];
-				centerLength += centers[i][j] * centers[i][j];
-				sum += docVector[j] * centers[i][j];
-			}
-			similarity = sum / (Math.sqrt(docLength) * Math.sqrt(centerLength));
-			if (similarity > max) {
-				max = similarity;
-				res = i;
-			}
-		}
-		return res;
-	}
 }
@@ -0,0 +1,672 @@
+package ts4.ts4_core.tweets.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ts4.ts4_core.tweets.util.ClusterMembers;
+import ts4.ts4_core.tweets.util.ForwardIndex;
+
+/**
+ * Selective search over daily and hourly cluster shards, for every cutoff of top clusters in one
+ * pass. For cutoff k, the docs of the k best clusters of each day and each hour before the final
+ * hour of the query are merged into a running top N. That top N is then merged with the docs of
+ * every cluster of the final hour. Each shard is scored once: the clusters of rank k are scored
+ * when cutoff k is reached, and the final hour is scored once per topic and its hits replayed into
+ * the top N of every cutoff. Results are those of scoring each cutoff separately. Cluster indexes
+ * are built the first time a shard is selected, once even when topics are searched concurrently; a
+ * search only needs its own QueryLikelihoodScorer. Members are in tweet id order, so only the
+ * members up to the query time are visited, and clusters of the final hour starting after it are
+ * skipped without building their index. Members and cluster indexes are held in ShardCaches:
+ * members may be loaded the first time a slice is searched, and cluster indexes are kept within a
+ * budget, the least recently used being dropped and built again when selected again.
+ *
+ * With a chunk size, a search running on a ForkJoinPool also splits its shards into chunks of
+ * that many members, scored by the pool's workers with scorers of their own. Chunk hits are
+ * added to the top N in shard and chunk order, as the serial search would, so results do not
+ * change. The running top N's threshold is shared with the workers, which drop hits that could
+ * not enter it.
+ *
+ * With cluster summaries, a shard none of whose members can score above the running top N's
+ * threshold is skipped without building its index; its members up to the query time are still
+ * counted in the selected sizes.
+ *
+ * Loading can run ahead of searching: prefetch starts loading, on other threads, the members and
+ * cluster indexes a search is about to ask for, and the search waits for those still loading.
+ *
+ * A batch of topics can also be searched together: every shard selected by any of them is scored
+ * once for all the topics selecting it, and each topic's cutoffs are then merged from those hits.
+ */
+public class SelectiveSearcher {
+	/**
+	 * Bytes of cluster indexes kept for days and for hours each when no budget is given: an eighth
+	 * of the heap, since the indexes hold uncompressed postings of the clusters searched.
+	 */
+	public static final long DEFAULT_CLUSTER_BUDGET = Runtime.getRuntime().maxMemory() / 8;
+
+	private final ForwardIndex index;
+	private final ShardCache<ClusterMembers> indexes_days;
+	private final ShardCache<ClusterMembers> indexes_hours;
+	private final ShardCache<ClusterIndex> clusters_days;
+	private final ShardCache<ClusterIndex> clusters_hours;
+	private final int numResults;
+	private final int chunkSize;
+	private ClusterSummary[][] summaries_days;
+	private ClusterSummary[][] summaries_hours;
+	private boolean[] checked_days;
+	private boolean[] checked_hours;
+
+	/**
+	 * Members of each (day, cluster) and (hour, cluster) shard as doc ordinals in tweet id order,
+	 * as ClusterAssignments loads them; indexesDays may be null when only hourly shards are searched.
+	 */
+	public SelectiveSearcher(ForwardIndex index, ClusterMembers[] indexesDays, ClusterMembers[] indexesHours, int numResults) {
+		this(index, indexesDays, indexesHours, numResults, 0);
+	}
+
+	/**
+	 * Splits shards into chunks of chunkSize members when searching on a ForkJoinPool; 0 never splits.
+	 */
+	public SelectiveSearcher(ForwardIndex index, ClusterMembers[] indexesDays, ClusterMembers[] indexesHours, int numResults, int chunkSize) {
+		this(index, indexesDays == null ? null : ShardCache.of(indexesDays), ShardCache.of(indexesHours), numResults, chunkSize, 0);
+	}
+
+	/**
+	 * Members of each day and hour as the caches load them, keyed by slice. The cluster indexes of
+	 * days and of hours are each kept within clusterBudget bytes, or DEFAULT_CLUSTER_BUDGET if 0.
+	 */
+	public SelectiveSearcher(ForwardIndex index, ShardCache<ClusterMembers> indexesDays, ShardCache<ClusterMembers> indexesHours, int numResults, int chunkSize, long clusterBudget) {
+		this.index = index;
+		this.indexes_days = indexesDays;
+		this.indexes_hours = indexesHours;
+		if (clusterBudget <= 0) {
+			clusterBudget = DEFAULT_CLUSTER_BUDGET;
+		}
+		this.clusters_days = clusterCache(indexesDays, clusterBudget);
+		this.clusters_hours = clusterCache(indexesHours, clusterBudget);
+		this.numResults = numResults;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Cluster indexes keyed by slice << 32 | cluster, built from the members of the slice.
+	 */
+	private ShardCache<ClusterIndex> clusterCache(final ShardCache<ClusterMembers> indexes, long budget) {
+		return new ShardCache<ClusterIndex>(budget) {
+			protected ClusterIndex load(long key) {
+				return ClusterIndex.build(index, indexes.get(key >>> 32), (int) key);
+			}
+
+			protected long sizeOf(ClusterIndex cluster) {
+				return cluster.getBytes();
+			}
+		};
+	}
+
+	/**
+	 * Summaries of the shards of each day and hour, as read by ClusterSummary.readIfExists; slices
+	 * without summaries, or null arrays, are always scored. The summaries of a slice are checked
+	 * against its members the first time they are used.
+	 */
+	public void setSummaries(ClusterSummary[][] summariesDays, ClusterSummary[][] summariesHours) {
+		this.summaries_days = summariesDays;
+		this.summaries_hours = summariesHours;
+		this.checked_days = summariesDays == null ? null : new boolean[summariesDays.length];
+		this.checked_hours = summariesHours == null ? null : new boolean[summariesHours.length];
+	}
+
+	/**
+	 * Hits, misses and evictions of the member and cluster index caches.
+	 */
+	public String getCacheStats() {
+		String stats = "hourly members: " + indexes_hours + "; hourly cluster indexes: " + clusters_hours;
+		if (indexes_days != null) {
+			stats += "; daily members: " + indexes_days + "; daily cluster indexes: " + clusters_days;
+		}
+		return stats;
+	}
+
+	/**
+	 * Searches days full days and then hours hours of the next day, up to queryTime. partitions
+	 * holds the ranked clusters of each of these slices. Returns the top N of each cutoff from 1
+	 * to top, highest score first, and sets selectedSizes[k - 1] to the number of docs scored up to
+	 * cutoff k.
+	 */
+	public PairOfLongFloat[][] search(QueryLikelihoodScorer scorer, long queryTime, int days, int hours, int[][] partitions, int top, int[] selectedSizes) {
+		boolean split = chunkSize > 0 && ForkJoinTask.inForkJoinPool();
+
+		int finalHour = 24 * days + hours;
+		ClusterMembers finalMembers = indexes_hours.get(finalHour - 1);
+		int finalSize = 0;
+		int numFinal = 0;
+		long[] finalIds = new long[numResults];
+		float[] finalScores = new float[numResults];
+
+		PairOfLongFloat[][] results = new PairOfLongFloat[top][];
+		int selectedSize = 0;
+		TopNScoredLongs topN = new TopNScoredLongs(numResults);
+		TopNScoredLongs prevTopN = new TopNScoredLongs(numResults);
+		TopNScoredLongs tempTopN = new TopNScoredLongs(numResults);
+		// Threshold of the running top N, which only rises from one cutoff to the next
+		AtomicInteger threshold = new AtomicInteger(Float.floatToIntBits(Float.NEGATIVE_INFINITY));
+		for (int topIdx = 1; topIdx <= top; topIdx ++) {
+			int partitionInd = 0;
+			if (split) {
+				List<Chunk> chunks = new ArrayList<Chunk>();
+				for (int day = 1; day <= days; day ++) {
+					int skipped = skip(summaries_days, checked_days, indexes_days, day - 1, partitions[partitionInd][topIdx - 1], scorer, queryTime, prevTopN.threshold());
+					if (skipped >= 0) {
+						selectedSize += skipped;
+					} else {
+						addChunks(chunks, scorer, getCluster(clusters_days, day - 1, partitions[partitionInd][topIdx - 1]), queryTime, threshold);
+					}
+					partitionInd ++;
+				}
+				for (int hour = 24 * days + 1; hour <= 24 * days + hours - 1; hour ++) {
+					int skipped = skip(summaries_hours, checked_hours, indexes_hours, hour - 1, partitions[partitionInd][topIdx - 1], scorer, queryTime, prevTopN.threshold());
+					if (skipped >= 0) {
+						selectedSize += skipped;
+					} else {
+						addChunks(chunks, scorer, getCluster(clusters_hours, hour - 1, partitions[partitionInd][topIdx - 1]), queryTime, threshold);
+					}
+					partitionInd ++;
+				}
+				// Forked last to first, so this thread runs the first chunks while workers steal the last
+				for (int c = chunks.size() - 1; c >= 0; c --) {
+					chunks.get(c).fork();
+				}
+				for (Chunk chunk : chunks) {
+					chunk.join();
+					selectedSize += chunk.count;
+					for (int h = 0; h < chunk.numHits; h ++) {
+						if (chunk.hitScores[h] > prevTopN.threshold()) {
+							prevTopN.add(chunk.hitIds[h], chunk.hitScores[h]);
+						}
+					}
+					threshold.set(Float.floatToIntBits(prevTopN.threshold()));
+				}
+			} else {
+				for (int day = 1; day <= days; day ++) {
+					int skipped = skip(summaries_days, checked_days, indexes_days, day - 1, partitions[partitionInd][topIdx - 1], scorer, queryTime, prevTopN.threshold());
+					selectedSize += skipped >= 0 ? skipped : scorer.score(getCluster(clusters_days, day - 1, partitions[partitionInd][topIdx - 1]), queryTime, prevTopN);
+					partitionInd ++;
+				}
+				for (int hour = 24 * days + 1; hour <= 24 * days + hours - 1; hour ++) {
+					int skipped = skip(summaries_hours, checked_hours, indexes_hours, hour - 1, partitions[partitionInd][topIdx - 1], scorer, queryTime, prevTopN.threshold());
+					selectedSize += skipped >= 0 ? skipped : scorer.score(getCluster(clusters_hours, hour - 1, partitions[partitionInd][topIdx - 1]), queryTime, prevTopN);
+					partitionInd ++;
+				}
+			}
+			// Final hour: every cluster, scored once. Its hits are replayed into the top N of every
+			// cutoff, whose threshold is never below that of the first.
+			if (topIdx == 1) {
+				if (split) {
+					List<Chunk> chunks = new ArrayList<Chunk>();
+					for (int partition = 0; partition < finalMembers.getNumClusters(); partition ++) {
+						if (startsAfter(finalMembers, partition, queryTime)) {
+							continue;
+						}
+						int skipped = skip(summaries_hours, checked_hours, indexes_hours, finalHour - 1, partition, scorer, queryTime, prevTopN.threshold());
+						if (skipped >= 0) {
+							finalSize += skipped;
+							continue;
+						}
+						addChunks(chunks, scorer, getCluster(clusters_hours, finalHour - 1, partition), queryTime, threshold);
+					}
+					ForkJoinTask.invokeAll(chunks);
+					for (Chunk chunk : chunks) {
+						finalSize += chunk.count;
+						if (numFinal + chunk.numHits > finalIds.length) {
+							finalIds = Arrays.copyOf(finalIds, Math.max(2 * finalIds.length, numFinal + chunk.numHits));
+							finalScores = Arrays.copyOf(finalScores, finalIds.length);
+						}
+						System.arraycopy(chunk.hitIds, 0, finalIds, numFinal, chunk.numHits);
+						System.arraycopy(chunk.hitScores, 0, finalScores, numFinal, chunk.numHits);
+						numFinal += chunk.numHits;
+					}
+				} else {
+					// Final hits below the top N of the final hour's own hits cannot enter any cutoff's top N
+					TopNScoredLongs finalTopN = new TopNScoredLongs(numResults);
+					for (int partition = 0; partition < finalMembers.getNumClusters(); partition ++) {
+						if (startsAfter(finalMembers, partition, queryTime)) {
+							continue;
+						}
+						int skipped = skip(summaries_hours, checked_hours, indexes_hours, finalHour - 1, partition, scorer, queryTime, prevTopN.threshold());
+						if (skipped >= 0) {
+							finalSize += skipped;
+							continue;
+						}
+						ClusterIndex cluster = getCluster(clusters_hours, finalHour - 1, partition);
+						finalSize += scorer.collect(cluster, queryTime, 0, cluster.size(), prevTopN.threshold(), finalTopN);
+						if (numFinal + scorer.getNumHits() > finalIds.length) {
+							finalIds = Arrays.copyOf(finalIds, Math.max(2 * finalIds.length, numFinal + scorer.getNumHits()));
+							finalScores = Arrays.copyOf(finalScores, finalIds.length);
+						}
+						for (int h = 0; h < scorer.getNumHits(); h ++) {
+							finalIds[numFinal] = scorer.getHitId(h);
+							finalScores[numFinal ++] = scorer.getHitScore(h);
+						}
+					}
+				}
+			}
+			for (PairOfLongFloat pair : prevTopN.extractAll()) {
+				tempTopN.add(pair.getKey(), pair.getValue());
+				topN.add(pair.getKey(), pair.getValue());
+			}
+			for (int h = 0; h < numFinal; h ++) {
+				if (finalScores[h] > topN.threshold()) {
+					topN.add(finalIds[h], finalScores[h]);
+				}
+			}
+			selectedSize += finalSize;
+			selectedSizes[topIdx - 1] = selectedSize;
+			results[topIdx - 1] = topN.extractAll();
+
+			// prevTopN was emptied by extractAll and takes the place of the copy
+			TopNScoredLongs swap = prevTopN;
+			prevTopN = tempTopN;
+			tempTopN = swap;
+		}
+		return results;
+	}
+
+	/**
+	 * Starts loading on executor what search, given the same arguments, will read: the members of
+	 * each slice, then the cluster indexes in the order the search scores them, which reads their
+	 * members' pages of the forward index. Clusters of slices with summaries are left out, since
+	 * the search may skip them. Failed loads are left for the search to repeat and report. Only
+	 * members are loaded without clusters, as for an ImpactSearcher sharing the member caches.
+	 */
+	public void prefetch(final Executor executor, final long queryTime, int days, int hours, int[][] partitions, int top, boolean clusters) {
+		final int finalHour = 24 * days + hours;
+		for (int day = 1; day <= days; day ++) {
+			executor.execute(new Prefetch(indexes_days, day - 1));
+		}
+		for (int hour = 24 * days + 1; hour <= finalHour; hour ++) {
+			executor.execute(new Prefetch(indexes_hours, hour - 1));
+		}
+		if (!clusters) {
+			return;
+		}
+		for (int topIdx = 1; topIdx <= top; topIdx ++) {
+			int partitionInd = 0;
+			for (int day = 1; day <= days; day ++) {
+				if (summaries_days == null || summaries_days[day - 1] == null) {
+					executor.execute(new Prefetch(clusters_days, ((long) (day - 1) << 32) | partitions[partitionInd][topIdx - 1]));
+				}
+				partitionInd ++;
+			}
+			for (int hour = 24 * days + 1; hour <= 24 * days + hours - 1; hour ++) {
+				if (summaries_hours == null || summaries_hours[hour - 1] == null) {
+					executor.execute(new Prefetch(clusters_hours, ((long) (hour - 1) << 32) | partitions[partitionInd][topIdx - 1]));
+				}
+				partitionInd ++;
+			}
+			if (topIdx == 1 && (summaries_hours == null || summaries_hours[finalHour - 1] == null)) {
+				// The clusters of the final hour up to the query time, once its members are loaded
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							ClusterMembers finalMembers = indexes_hours.get(finalHour - 1);
+							for (int partition = 0; partition < finalMembers.getNumClusters(); partition ++) {
+								if (!startsAfter(finalMembers, partition, queryTime)) {
+									executor.execute(new Prefetch(clusters_hours, ((long) (finalHour - 1) << 32) | partition));
+								}
+							}
+						} catch (RuntimeException e) {
+							// Left for the search
+						}
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Loads a key of a cache, unless held or loading already.
+	 */
+	private static class Prefetch implements Runnable {
+		private final ShardCache<?> cache;
+		private final long key;
+
+		private Prefetch(ShardCache<?> cache, long key) {
+			this.cache = cache;
+			this.key = key;
+		}
+
+		public void run() {
+			try {
+				cache.prefetch(key);
+			} catch (RuntimeException e) {
+				// Left for the search
+			}
+		}
+	}
+
+	/**
+	 * A search to run on a pool; selectedSizes is filled when it completes.
+	 */
+	public Callable<PairOfLongFloat[][]> task(final QueryLikelihoodScorer scorer, final long queryTime, final int days, final int hours, final int[][] partitions, final int top, final int[] selectedSizes) {
+		return new Callable<PairOfLongFloat[][]>() {
+			public PairOfLongFloat[][] call() {
+				return search(scorer, queryTime, days, hours, partitions, top, selectedSizes);
+			}
+		};
+	}
+
+	/**
+	 * A topic of a batch: its scorer, query time, days and hours searched, ranked clusters of each
+	 * of these slices, and the array receiving its selected sizes.
+	 */
+	public static class Topic {
+		private final QueryLikelihoodScorer scorer;
+		private final long queryTime;
+		private final int days;
+		private final int hours;
+		private final int[][] partitions;
+		private final int[] selectedSizes;
+
+		public Topic(QueryLikelihoodScorer scorer, long queryTime, int days, int hours, int[][] partitions, int[] selectedSizes) {
+			this.scorer = scorer;
+			this.queryTime = queryTime;
+			this.days = days;
+			this.hours = hours;
+			this.partitions = partitions;
+			this.selectedSizes = selectedSizes;
+		}
+	}
+
+	/**
+	 * A batch search to run on a pool; each topic's selectedSizes is filled when it completes.
+	 */
+	public Callable<PairOfLongFloat[][][]> batchTask(final List<Topic> topics, final int top) {
+		return new Callable<PairOfLongFloat[][][]>() {
+			public PairOfLongFloat[][][] call() {
+				return searchBatch(topics, top);
+			}
+		};
+	}
+
+	/**
+	 * Searches a batch of topics, returning for each what search returns for it. Shards are scored
+	 * by the pool's workers when run on a ForkJoinPool.
+	 */
+	public PairOfLongFloat[][][] searchBatch(List<Topic> topics, int top) {
+		// Shards selected by any topic, in a fixed order, with the topics selecting them
+		Map<Long, List<Integer>> selecting = new TreeMap<Long, List<Integer>>();
+		for (int q = 0; q < topics.size(); q ++) {
+			Topic topic = topics.get(q);
+			int partitionInd = 0;
+			for (int day = 1; day <= topic.days; day ++) {
+				for (int topIdx = 1; topIdx <= top; topIdx ++) {
+					select(selecting, shardKey(true, day - 1, topic.partitions[partitionInd][topIdx - 1]), q);
+				}
+				partitionInd ++;
+			}
+			for (int hour = 24 * topic.days + 1; hour <= 24 * topic.days + topic.hours - 1; hour ++) {
+				for (int topIdx = 1; topIdx <= top; topIdx ++) {
+					select(selecting, shardKey(false, hour - 1, topic.partitions[partitionInd][topIdx - 1]), q);
+				}
+				partitionInd ++;
+			}
+			int finalHour = 24 * topic.days + topic.hours;
+			ClusterMembers finalMembers = indexes_hours.get(finalHour - 1);
+			for (int partition = 0; partition < finalMembers.getNumClusters(); partition ++) {
+				if (!startsAfter(finalMembers, partition, topic.queryTime)) {
+					select(selecting, shardKey(false, finalHour - 1, partition), q);
+				}
+			}
+		}
+
+		List<Shard> shards = new ArrayList<Shard>();
+		for (Map.Entry<Long, List<Integer>> entry : selecting.entrySet()) {
+			shards.add(new Shard(entry.getKey(), entry.getValue(), topics));
+		}
+		if (ForkJoinTask.inForkJoinPool()) {
+			ForkJoinTask.invokeAll(shards);
+		} else {
+			for (Shard shard : shards) {
+				shard.invoke();
+			}
+		}
+		List<Map<Long, ShardHits>> topicHits = new ArrayList<Map<Long, ShardHits>>();
+		for (int q = 0; q < topics.size(); q ++) {
+			topicHits.add(new HashMap<Long, ShardHits>());
+		}
+		for (Shard shard : shards) {
+			for (int j = 0; j < shard.topics.size(); j ++) {
+				topicHits.get(shard.topics.get(j)).put(shard.key, shard.hits[j]);
+			}
+		}
+
+		PairOfLongFloat[][][] results = new PairOfLongFloat[topics.size()][][];
+		for (int q = 0; q < topics.size(); q ++) {
+			results[q] = merge(topics.get(q), top, topicHits.get(q));
+			topicHits.set(q, null);
+		}
+		return results;
+	}
+
+	/**
+	 * The cutoff loop of search, over hits already collected for each shard of the topic.
+	 */
+	private PairOfLongFloat[][] merge(Topic topic, int top, Map<Long, ShardHits> hits) {
+		int finalHour = 24 * topic.days + topic.hours;
+		int finalSize = 0;
+		int numFinal = 0;
+		long[] finalIds = new long[numResults];
+		float[] finalScores = new float[numResults];
+		int numClusters = indexes_hours.get(finalHour - 1).getNumClusters();
+		for (int partition = 0; partition < numClusters; partition ++) {
+			ShardHits shard = hits.get(shardKey(false, finalHour - 1, partition));
+			if (shard == null) {
+				continue;
+			}
+			finalSize += shard.count;
+			if (numFinal + shard.numHits > finalIds.length) {
+				finalIds = Arrays.copyOf(finalIds, Math.max(2 * finalIds.length, numFinal + shard.numHits));
+				finalScores = Arrays.copyOf(finalScores, finalIds.length);
+			}
+			System.arraycopy(shard.ids, 0, finalIds, numFinal, shard.numHits);
+			System.arraycopy(shard.scores, 0, finalScores, numFinal, shard.numHits);
+			numFinal += shard.numHits;
+		}
+
+		PairOfLongFloat[][] results = new PairOfLongFloat[top][];
+		int selectedSize = 0;
+		TopNScoredLongs topN = new TopNScoredLongs(numResults);
+		TopNScoredLongs prevTopN = new TopNScoredLongs(numResults);
+		TopNScoredLongs tempTopN = new TopNScoredLongs(numResults);
+		for (int topIdx = 1; topIdx <= top; topIdx ++) {
+			int partitionInd = 0;
+			for (int day = 1; day <= topic.days; day ++) {
+				selectedSize += add(hits.get(shardKey(true, day - 1, topic.partitions[partitionInd][topIdx - 1])), prevTopN);
+				partitionInd ++;
+			}
+			for (int hour = 24 * topic.days + 1; hour <= 24 * topic.days + topic.hours - 1; hour ++) {
+				selectedSize += add(hits.get(shardKey(false, hour - 1, topic.partitions[partitionInd][topIdx - 1])), prevTopN);
+				partitionInd ++;
+			}
+			for (PairOfLongFloat pair : prevTopN.extractAll()) {
+				tempTopN.add(pair.getKey(), pair.getValue());
+				topN.add(pair.getKey(), pair.getValue());
+			}
+			for (int h = 0; h < numFinal; h ++) {
+				if (finalScores[h] > topN.threshold()) {
+					topN.add(finalIds[h], finalScores[h]);
+				}
+			}
+			selectedSize += finalSize;
+			topic.selectedSizes[topIdx - 1] = selectedSize;
+			results[topIdx - 1] = topN.extractAll();
+
+			TopNScoredLongs swap = prevTopN;
+			prevTopN = tempTopN;
+			tempTopN = swap;
+		}
+		return results;
+	}
+
+	private static int add(ShardHits shard, TopNScoredLongs topN) {
+		for (int h = 0; h < shard.numHits; h ++) {
+			if (shard.scores[h] > topN.threshold()) {
+				topN.add(shard.ids[h], shard.scores[h]);
+			}
+		}
+		return shard.count;
+	}
+
+	/**
+	 * If the summary of a shard shows none of its members can score above minScore, the number of
+	 * its members up to the query time; otherwise -1, and the shard has to be scored.
+	 */
+	private int skip(ClusterSummary[][] summaries, boolean[] checked, ShardCache<ClusterMembers> indexes, int slice, int partition, QueryLikelihoodScorer scorer, long queryTime, float minScore) {
+		if (summaries == null || summaries[slice] == null) {
+			return -1;
+		}
+		// Concurrent searches may both check a slice, which does no harm
+		if (!checked[slice]) {
+			if (!ClusterSummary.matches(summaries[slice], indexes.get(slice))) {
+				throw new IllegalStateException("Cluster summaries of slice " + (slice + 1) + " do not match its cluster assignments, rebuild them with ClusterSummary");
+			}
+			checked[slice] = true;
+		}
+		if (scorer.canHit(summaries[slice][partition], minScore)) {
+			return -1;
+		}
+		ClusterMembers members = indexes.get(slice);
+		if (summaries[slice][partition].getMaxId() <= queryTime) {
+			return members.size(partition);
+		}
+		int lo = 0;
+		int hi = members.size(partition);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (index.getId(members.get(partition, mid)) <= queryTime) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Whether no member of a cluster is up to the query time.
+	 */
+	private boolean startsAfter(ClusterMembers members, int partition, long queryTime) {
+		return members.isEmpty(partition) || index.getId(members.get(partition, 0)) > queryTime;
+	}
+
+	private static long shardKey(boolean day, int slice, int partition) {
+		return (day ? 1L << 62 : 0L) | ((long) slice << 32) | partition;
+	}
+
+	private static void select(Map<Long, List<Integer>> selecting, long key, int topic) {
+		List<Integer> topics = selecting.get(key);
+		if (topics == null) {
+			topics = new ArrayList<Integer>();
+			selecting.put(key, topics);
+		}
+		if (topics.isEmpty() || topics.get(topics.size() - 1) != topic) {
+			topics.add(topic);
+		}
+	}
+
+	/**
+	 * One shard scored for every topic of a batch selecting it.
+	 */
+	private class Shard extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final long key;
+		private final List<Integer> topics;
+		private final QueryLikelihoodScorer[] scorers;
+		private final long[] maxIds;
+		private ShardHits[] hits;
+
+		private Shard(long key, List<Integer> topics, List<Topic> batch) {
+			this.key = key;
+			this.topics = topics;
+			scorers = new QueryLikelihoodScorer[topics.size()];
+			maxIds = new long[topics.size()];
+			for (int j = 0; j < topics.size(); j ++) {
+				scorers[j] = batch.get(topics.get(j)).scorer;
+				maxIds[j] = batch.get(topics.get(j)).queryTime;
+			}
+		}
+
+		@Override
+		protected void compute() {
+			boolean day = (key >>> 62) == 1;
+			int slice = (int) ((key >>> 32) & 0x3FFFFFFF);
+			int partition = (int) key;
+			ClusterIndex cluster = getCluster(day ? clusters_days : clusters_hours, slice, partition);
+			hits = QueryLikelihoodScorer.collect(cluster, scorers, maxIds);
+		}
+	}
+
+	private void addChunks(List<Chunk> chunks, QueryLikelihoodScorer scorer, ClusterIndex cluster, long queryTime, AtomicInteger threshold) {
+		int size = cluster.countUpTo(queryTime);
+		for (int lo = 0; lo < size; lo += chunkSize) {
+			chunks.add(new Chunk(scorer, cluster, lo, Math.min(lo + chunkSize, size), queryTime, threshold, numResults));
+		}
+	}
+
+	/**
+	 * Hits of the members at positions lo to hi - 1 of a cluster. Hits at or below the shared
+	 * threshold, if any, are dropped, as are those below the top N of the chunk's own hits.
+	 */
+	private static class Chunk extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final QueryLikelihoodScorer query;
+		private final ClusterIndex cluster;
+		private final int lo;
+		private final int hi;
+		private final long maxId;
+		private final AtomicInteger threshold;
+		private final int numResults;
+
+		private int count;
+		private int numHits;
+		private long[] hitIds;
+		private float[] hitScores;
+
+		private Chunk(QueryLikelihoodScorer query, ClusterIndex cluster, int lo, int hi, long maxId, AtomicInteger threshold, int numResults) {
+			this.query = query;
+			this.cluster = cluster;
+			this.lo = lo;
+			this.hi = hi;
+			this.maxId = maxId;
+			this.threshold = threshold;
+			this.numResults = numResults;
+		}
+
+		@Override
+		protected void compute() {
+			QueryLikelihoodScorer scorer = new QueryLikelihoodScorer(query);
+			float minScore = threshold == null ? Float.NEGATIVE_INFINITY : Float.intBitsToFloat(threshold.get());
+			count = scorer.collect(cluster, maxId, lo, hi, minScore, new TopNScoredLongs(numResults));
+			numHits = scorer.getNumHits();
+			hitIds = new long[numHits];
+			hitScores = new float[numHits];
+			for (int h = 0; h < numHits; h ++) {
+				hitIds[h] = scorer.getHitId(h);
+				hitScores[h] = scorer.getHitScore(h);
+			}
+		}
+	}
+
+	private static ClusterIndex getCluster(ShardCache<ClusterIndex> clusters, int slice, int partition) {
+		return clusters.get(((long) slice << 32) | partition);
+	}
+}
@@ -0,0 +1,175 @@
+package ts4.ts4_core.tweets.search;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Values loaded the first time they are asked for and kept within a budget of bytes, the least
+ * recently used evicted first. A value is loaded once even when asked for concurrently, by the
+ * first thread asking; values still being loaded are never evicted, nor is the value just loaded,
+ * so a value larger than the budget is held until the next one is loaded. A holder of an evicted
+ * value can go on using it; asking for it again loads it again. A failed load is not kept: the
+ * thread that ran it gets the failure, and the next thread asking loads again. Counts hits,
+ * misses and evictions; values loaded by prefetch count as misses.
+ */
+public abstract class ShardCache<V> {
+	private final long budget;
+	private final LinkedHashMap<Long, Entry<V>> entries = new LinkedHashMap<Long, Entry<V>>(16, 0.75f, true);
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * A budget of 0 or less keeps every value loaded.
+	 */
+	public ShardCache(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Values loaded up front and never evicted, as the value of their index.
+	 */
+	public static <V> ShardCache<V> of(final V[] values) {
+		return new ShardCache<V>(0) {
+			protected V load(long key) {
+				return values[(int) key];
+			}
+
+			protected long sizeOf(V value) {
+				return 0;
+			}
+		};
+	}
+
+	protected abstract V load(long key) throws Exception;
+
+	/**
+	 * Bytes a value holds, as counted against the budget.
+	 */
+	protected abstract long sizeOf(V value);
+
+	public V get(long key) {
+		return get(key, false);
+	}
+
+	/**
+	 * Loads a value ahead of its use, unless it is held or loading already, which is not counted
+	 * as a hit.
+	 */
+	public void prefetch(long key) {
+		get(key, true);
+	}
+
+	private V get(final long key, boolean prefetch) {
+		// A thread waiting for another's load that fails, such as a prefetch, loads again itself
+		while (true) {
+			Entry<V> entry;
+			boolean owner = false;
+			synchronized (this) {
+				entry = entries.get(key);
+				if (entry != null && prefetch) {
+					return null;
+				}
+				if (entry == null) {
+					entry = new Entry<V>(new FutureTask<V>(new Callable<V>() {
+						public V call() throws Exception {
+							return load(key);
+						}
+					}));
+					entries.put(key, entry);
+					owner = true;
+					misses ++;
+				} else {
+					hits ++;
+				}
+			}
+			if (owner) {
+				entry.task.run();
+			}
+			V value;
+			try {
+				value = entry.task.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				synchronized (this) {
+					if (entries.get(key) == entry) {
+						entries.remove(key);
+					}
+				}
+				if (owner) {
+					throw new RuntimeException(e.getCause());
+				}
+				continue;
+			}
+			if (owner) {
+				synchronized (this) {
+					entry.bytes = sizeOf(value);
+					entry.loaded = true;
+					bytes += entry.bytes;
+					evict(entry);
+				}
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * Evicts loaded values other than newest, least recently used first, until within the budget.
+	 */
+	private void evict(Entry<V> newest) {
+		if (budget <= 0) {
+			return;
+		}
+		Iterator<Map.Entry<Long, Entry<V>>> it = entries.entrySet().iterator();
+		while (bytes > budget && it.hasNext()) {
+			Entry<V> entry = it.next().getValue();
+			if (entry == newest || !entry.loaded) {
+				continue;
+			}
+			it.remove();
+			bytes -= entry.bytes;
+			evictions ++;
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Bytes of the values held.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return hits + " hits, " + misses + " misses, " + evictions + " evictions, " + entries.size() + " held in " + bytes + " bytes";
+	}
+
+	private static class Entry<V> {
+		private final FutureTask<V> task;
+		private long bytes = 0;
+		private boolean loaded = false;
+
+		private Entry(FutureTask<V> task) {
+			this.task = task;
+		}
+	}
+}
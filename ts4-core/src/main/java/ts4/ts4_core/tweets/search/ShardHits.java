@@ -0,0 +1,22 @@
+package ts4.ts4_core.tweets.search;
+
+import java.util.Arrays;
+
+/**
+ * Hits of one query in one cluster, in member order, and the number of members up to its query time.
+ */
+class ShardHits {
+	int count;
+	int numHits;
+	long[] ids = new long[16];
+	float[] scores = new float[16];
+
+	void add(long id, float score) {
+		if (numHits == ids.length) {
+			ids = Arrays.copyOf(ids, 2 * numHits);
+			scores = Arrays.copyOf(scores, 2 * numHits);
+		}
+		ids[numHits] = id;
+		scores[numHits ++] = score;
+	}
+}
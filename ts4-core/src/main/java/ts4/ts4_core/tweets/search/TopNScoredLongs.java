@@ -1,66 +1,160 @@
 package ts4.ts4_core.tweets.search;
 
-import java.util.PriorityQueue;
-
+/**
+ * Top N (id, score) pairs. Scores sit in a binary min-heap of parallel arrays, and the ids in the
+ * heap are kept in an open-addressing set, so an id already held is not added again. Adds do not
+ * allocate. The heap is sifted exactly as java.util.PriorityQueue does, so ties come out in the
+ * same order as with the PriorityQueue this replaces.
+ */
 public class TopNScoredLongs {
-	private class ScoredLongPriorityQueue extends PriorityQueue<PairOfLongFloat> {
-		private static final long serialVersionUID = 1L;
-		private int maxSize;
-		private int size;
-		
-		private ScoredLongPriorityQueue() {}
-		
-		private ScoredLongPriorityQueue(int maxSize) {
-			this.maxSize = maxSize;
-			size = 0;
+	private final int maxSize;
+	private final long[] heapIds;
+	private final float[] heapScores;
+	private int size;
+
+	private final long[] keys;
+	private final boolean[] used;
+	private final int mask;
+
+	public TopNScoredLongs(int n) {
+		maxSize = n;
+		heapIds = new long[n];
+		heapScores = new float[n];
+		size = 0;
+
+		int capacity = 4;
+		while (capacity < 2 * n) {
+			capacity <<= 1;
 		}
+		keys = new long[capacity];
+		used = new boolean[capacity];
+		mask = capacity - 1;
+	}
 
-		@Override
-		public boolean add(PairOfLongFloat e) {
-			if(!contains(e)) {
-				if (size < maxSize) {
-					offer(e);
-					size ++;
-				} else {
-					if (peek().getValue() < e.getValue()) {
-						poll();
-						offer(e);
-						size ++;
-					}
-				}
-				return true;
-			}
-			return false;
+	public void add(long id, float score) {
+		if (contains(id)) {
+			return;
 		}
-		
-		@Override
-		public PairOfLongFloat poll() {
-			if (size() > 0) size --;
-			return super.poll();
+		if (size < maxSize) {
+			offer(id, score);
+		} else if (maxSize > 0 && heapScores[0] < score) {
+			poll();
+			offer(id, score);
 		}
 	}
 
-	private final ScoredLongPriorityQueue queue;
-
-	public TopNScoredLongs(int n) {
-		queue = new ScoredLongPriorityQueue(n);
+	/**
+	 * Score an add has to exceed to enter once N pairs are held, negative infinity until then.
+	 */
+	public float threshold() {
+		return size < maxSize || maxSize == 0 ? Float.NEGATIVE_INFINITY : heapScores[0];
 	}
 
-	public void add(Long id, float score) {
-		queue.add(new PairOfLongFloat(id, score));
+	public int size() {
+		return size;
 	}
 
+	/**
+	 * Removes all pairs, highest score first.
+	 */
 	public PairOfLongFloat[] extractAll() {
-		int len = queue.size();
-		PairOfLongFloat[] arr = (PairOfLongFloat[]) new PairOfLongFloat[len];
+		int len = size;
+		PairOfLongFloat[] arr = new PairOfLongFloat[len];
 		for (int i = 0; i < len; i++) {
-			arr[len - 1 - i] = queue.poll();
+			arr[len - 1 - i] = new PairOfLongFloat(heapIds[0], heapScores[0]);
+			poll();
 		}
 		return arr;
 	}
+
+	private void offer(long id, float score) {
+		int k = size ++;
+		while (k > 0) {
+			int parent = (k - 1) >>> 1;
+			if (score >= heapScores[parent]) {
+				break;
+			}
+			heapIds[k] = heapIds[parent];
+			heapScores[k] = heapScores[parent];
+			k = parent;
+		}
+		heapIds[k] = id;
+		heapScores[k] = score;
+		insert(id);
+	}
+
+	private void poll() {
+		remove(heapIds[0]);
+		int n = -- size;
+		if (n == 0) {
+			return;
+		}
+		long id = heapIds[n];
+		float score = heapScores[n];
+		int k = 0;
+		int half = n >>> 1;
+		while (k < half) {
+			int child = (k << 1) + 1;
+			int right = child + 1;
+			if (right < n && heapScores[child] > heapScores[right]) {
+				child = right;
+			}
+			if (score <= heapScores[child]) {
+				break;
+			}
+			heapIds[k] = heapIds[child];
+			heapScores[k] = heapScores[child];
+			k = child;
+		}
+		heapIds[k] = id;
+		heapScores[k] = score;
+	}
+
+	private int slot(long id) {
+		long h = id * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private boolean contains(long id) {
+		for (int i = slot(id); used[i]; i = (i + 1) & mask) {
+			if (keys[i] == id) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void insert(long id) {
+		int i = slot(id);
+		while (used[i]) {
+			i = (i + 1) & mask;
+		}
+		keys[i] = id;
+		used[i] = true;
+	}
+
+	/**
+	 * Linear probing removal: later entries of the probe run are shifted back into the hole.
+	 */
+	private void remove(long id) {
+		int i = slot(id);
+		while (keys[i] != id) {
+			i = (i + 1) & mask;
+		}
+		used[i] = false;
+		for (int j = (i + 1) & mask; used[j]; j = (j + 1) & mask) {
+			int home = slot(keys[j]);
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				keys[i] = keys[j];
+				used[i] = true;
+				used[j] = false;
+				i = j;
+			}
+		}
+	}
 }
 
-class PairOfLongFloat implements Comparable<PairOfLongFloat> {
+class PairOfLongFloat {
 	private long id;
 	private float score;
 
@@ -76,14 +170,4 @@ class PairOfLongFloat implements Comparable<PairOfLongFloat> {
 	public float getValue() {
 		return score;
 	}
-
-	public int compareTo(PairOfLongFloat other) {
-		if (score < other.score) return -1;
-		else if (score > other.score) return 1;
-		return 0;
-	}
-
-	public boolean equals(Object obj) {
-		return id == ((PairOfLongFloat) obj).id;
-	}
-}
\ No newline at end of file
+}
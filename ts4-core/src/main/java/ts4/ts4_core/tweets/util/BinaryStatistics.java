@@ -0,0 +1,269 @@
+/* Binary columnar version of the statistics written by GenerateStatistics, memory-mapped on load
+ * Convert existing text statistics: sh target/appassembler/bin/BinaryStatistics -stats {statisticsPath}
+ */
+package ts4.ts4_core.tweets.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.log4j.Logger;
+
+/**
+ * Statistics stored as one file per column: tweet ids, token counts and encoded lengths per doc,
+ * CSR offsets into the postings, and flat term id / tf columns. Term ids are sorted ascending
+ * within each doc.
+ */
+public class BinaryStatistics {
+	private static final Logger LOG = Logger.getLogger(BinaryStatistics.class);
+
+	public static final String DOC_ID = "doc_id.bin";
+	public static final String DOC_LENGTH = "doc_length.bin";
+	public static final String DOC_LENGTH_ENCODED = "doc_length_encoded.bin";
+	public static final String DOC_OFFSETS = "doc_offsets.bin";
+	public static final String TERMS = "all_terms.bin";
+	public static final String TF = "all_terms_tf.bin";
+
+	public static final String[] FILES = { DOC_ID, DOC_LENGTH, DOC_LENGTH_ENCODED, DOC_OFFSETS, TERMS, TF };
+
+	private static final String STATS_OPTION = "stats";
+
+	private final MappedColumn ids;
+	private final MappedColumn lengths;
+	private final MappedColumn lengthsEncoded;
+	private final MappedColumn offsets;
+	private final MappedColumn terms;
+	private final MappedColumn tf;
+
+	private BinaryStatistics(String path) throws IOException {
+		ids = MappedColumn.map(new File(path, DOC_ID), 8);
+		lengths = MappedColumn.map(new File(path, DOC_LENGTH), 4);
+		lengthsEncoded = MappedColumn.map(new File(path, DOC_LENGTH_ENCODED), 4);
+		offsets = MappedColumn.map(new File(path, DOC_OFFSETS), 8);
+		terms = MappedColumn.map(new File(path, TERMS), 4);
+		tf = MappedColumn.map(new File(path, TF), 4);
+
+		long numDoc = ids.size();
+		if (lengths.size() != numDoc || lengthsEncoded.size() != numDoc || offsets.size() != numDoc + 1
+				|| terms.size() != tf.size() || offsets.getLong(numDoc) != terms.size()) {
+			throw new IOException("Inconsistent binary statistics in " + path);
+		}
+	}
+
+	public static boolean exists(String path) {
+		return new File(path, DOC_OFFSETS).exists();
+	}
+
+	public static BinaryStatistics open(String path) throws IOException {
+		return new BinaryStatistics(path);
+	}
+
+	public int getNumDocs() {
+		return (int) ids.size();
+	}
+
+	public long getNumPostings() {
+		return terms.size();
+	}
+
+	public long getId(int doc) {
+		return ids.getLong(doc);
+	}
+
+	public int getDocLength(int doc) {
+		return lengths.getInt(doc);
+	}
+
+	public float getDocLengthEncoded(int doc) {
+		return lengthsEncoded.getFloat(doc);
+	}
+
+	public long getStart(int doc) {
+		return offsets.getLong(doc);
+	}
+
+	public long getEnd(int doc) {
+		return offsets.getLong(doc + 1);
+	}
+
+	public int getTermCount(int doc) {
+		return (int) (offsets.getLong(doc + 1) - offsets.getLong(doc));
+	}
+
+	public int getTerm(long posting) {
+		return terms.getInt(posting);
+	}
+
+	public int getTf(long posting) {
+		return tf.getInt(posting);
+	}
+
+	public ForwardIndex getForwardIndex() {
+		return new OffHeapForwardIndex(ids, lengthsEncoded, offsets, terms, tf);
+	}
+
+	/**
+	 * Appends docs in collection order. Postings of a doc are sorted by term id before writing.
+	 */
+	public static class Writer {
+		private final MappedColumn.Writer ids;
+		private final MappedColumn.Writer lengths;
+		private final MappedColumn.Writer lengthsEncoded;
+		private final MappedColumn.Writer offsets;
+		private final MappedColumn.Writer terms;
+		private final MappedColumn.Writer tf;
+		private int[] sortedTerms = new int[64];
+		private int[] sortedTf = new int[64];
+
+		public Writer(String path) throws IOException {
+			this(path, false);
+		}
+
+		/**
+		 * When appending, docs are added after those already in the columns at path.
+		 */
+		public Writer(String path, boolean append) throws IOException {
+			if (append) {
+				ids = MappedColumn.Writer.append(new File(path, DOC_ID), 8, 0);
+				lengths = MappedColumn.Writer.append(new File(path, DOC_LENGTH), 4, 0);
+				lengthsEncoded = MappedColumn.Writer.append(new File(path, DOC_LENGTH_ENCODED), 4, 0);
+				offsets = MappedColumn.Writer.append(new File(path, DOC_OFFSETS), 8, 0);
+				terms = MappedColumn.Writer.append(new File(path, TERMS), 4, 0);
+				tf = MappedColumn.Writer.append(new File(path, TF), 4, 0);
+				if (offsets.size() != ids.size() + 1 || terms.size() != tf.size()) {
+					throw new IOException("Inconsistent binary statistics in " + path);
+				}
+			} else {
+				ids = new MappedColumn.Writer(new File(path, DOC_ID), 8);
+				lengths = new MappedColumn.Writer(new File(path, DOC_LENGTH), 4);
+				lengthsEncoded = new MappedColumn.Writer(new File(path, DOC_LENGTH_ENCODED), 4);
+				offsets = new MappedColumn.Writer(new File(path, DOC_OFFSETS), 8);
+				terms = new MappedColumn.Writer(new File(path, TERMS), 4);
+				tf = new MappedColumn.Writer(new File(path, TF), 4);
+				offsets.writeLong(0);
+			}
+		}
+
+		public void add(long id, int length, float lengthEncoded, int[] docTerms, int[] docTf, int n) throws IOException {
+			if (n > sortedTerms.length) {
+				sortedTerms = new int[Math.max(n, 2 * sortedTerms.length)];
+				sortedTf = new int[sortedTerms.length];
+			}
+			System.arraycopy(docTerms, 0, sortedTerms, 0, n);
+			System.arraycopy(docTf, 0, sortedTf, 0, n);
+			sortPostings(sortedTerms, sortedTf, n);
+
+			ids.writeLong(id);
+			lengths.writeInt(length);
+			lengthsEncoded.writeFloat(lengthEncoded);
+			for (int j = 0; j < n; j ++) {
+				terms.writeInt(sortedTerms[j]);
+				tf.writeInt(sortedTf[j]);
+			}
+			offsets.writeLong(terms.size());
+		}
+
+		public void close() throws IOException {
+			ids.close();
+			lengths.close();
+			lengthsEncoded.close();
+			offsets.close();
+			terms.close();
+			tf.close();
+		}
+	}
+
+	/**
+	 * Insertion sort of a doc's postings by term id; tweets have a few dozen terms at most.
+	 */
+	public static void sortPostings(int[] docTerms, int[] docTf, int n) {
+		for (int i = 1; i < n; i ++) {
+			int term = docTerms[i];
+			int freq = docTf[i];
+			int j = i - 1;
+			while (j >= 0 && docTerms[j] > term) {
+				docTerms[j + 1] = docTerms[j];
+				docTf[j + 1] = docTf[j];
+				j --;
+			}
+			docTerms[j + 1] = term;
+			docTf[j + 1] = freq;
+		}
+	}
+
+	@SuppressWarnings("static-access")
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("statistics location").create(STATS_OPTION));
+
+		CommandLine cmdline = null;
+		CommandLineParser parser = new GnuParser();
+		try {
+			cmdline = parser.parse(options, args);
+		} catch (ParseException exp) {
+			System.err.println("Error parsing command line: " + exp.getMessage());
+			System.exit(-1);
+		}
+
+		if (!cmdline.hasOption(STATS_OPTION)) {
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp(BinaryStatistics.class.getName(), options);
+			System.exit(-1);
+		}
+
+		String statsPath = cmdline.getOptionValue(STATS_OPTION);
+
+		BufferedReader brId = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/doc_id.txt")));
+		BufferedReader brLength = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/doc_length.txt")));
+		BufferedReader brLengthEncoded = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/doc_length_encoded.txt")));
+		BufferedReader brLengthOrdered = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/doc_length_ordered.txt")));
+		BufferedReader brTerms = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/all_terms_ordered.txt")));
+		BufferedReader brTf = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/all_terms_tf.txt")));
+
+		Writer writer = new Writer(statsPath);
+		int[] docTerms = new int[64];
+		int[] docTf = new int[64];
+		int cnt = 0;
+		String s;
+		while ((s = brId.readLine()) != null) {
+			long id = Long.parseLong(s);
+			int length = Integer.parseInt(brLength.readLine());
+			float lengthEncoded = Float.parseFloat(brLengthEncoded.readLine());
+			int n = Integer.parseInt(brLengthOrdered.readLine());
+			if (n > docTerms.length) {
+				docTerms = new int[n];
+				docTf = new int[n];
+			}
+			for (int j = 0; j < n; j ++) {
+				docTerms[j] = Integer.parseInt(brTerms.readLine());
+				docTf[j] = Integer.parseInt(brTf.readLine());
+			}
+			writer.add(id, length, lengthEncoded, docTerms, docTf, n);
+
+			cnt ++;
+			if (cnt % 1000000 == 0) {
+				LOG.info(cnt + " converted");
+			}
+		}
+		LOG.info("Total " + cnt + " converted");
+
+		writer.close();
+		brId.close();
+		brLength.close();
+		brLengthEncoded.close();
+		brLengthOrdered.close();
+		brTerms.close();
+		brTf.close();
+	}
+}
@@ -0,0 +1,175 @@
+package ts4.ts4_core.tweets.util;
+
+import java.util.Arrays;
+
+/**
+ * Membership of the clusters of one time slice as doc ordinals, in compressed sparse row form:
+ * the members of all clusters in one int array, cluster after cluster, and cluster count + 1
+ * offsets into it. Four bytes per member, against an Integer and a reference in a list per
+ * cluster, and scanning a cluster is a pass over a run of the array. Built by a Builder, read
+ * from a ClusterShard, or empty; renumber and sortById are the only changes once built.
+ */
+public class ClusterMembers {
+	private final int[] offsets;
+	private final int[] docs;
+
+	/**
+	 * numClusters empty clusters.
+	 */
+	public ClusterMembers(int numClusters) {
+		this(new int[numClusters + 1], new int[0]);
+	}
+
+	/**
+	 * Members of cluster c are docs[offsets[c]] to docs[offsets[c + 1] - 1].
+	 */
+	public ClusterMembers(int[] offsets, int[] docs) {
+		this.offsets = offsets;
+		this.docs = docs;
+	}
+
+	public int getNumClusters() {
+		return offsets.length - 1;
+	}
+
+	/**
+	 * Number of members of all clusters.
+	 */
+	public int getNumDocs() {
+		return offsets[offsets.length - 1];
+	}
+
+	/**
+	 * Bytes held by the offsets and members.
+	 */
+	public long getBytes() {
+		return 4L * (offsets.length + docs.length);
+	}
+
+	public int size(int c) {
+		return offsets[c + 1] - offsets[c];
+	}
+
+	public boolean isEmpty(int c) {
+		return offsets[c + 1] == offsets[c];
+	}
+
+	/**
+	 * The i-th member of cluster c.
+	 */
+	public int get(int c, int i) {
+		return docs[offsets[c] + i];
+	}
+
+	/**
+	 * Renumbers the members from collection order into the doc order of index, as they must be
+	 * before sortById when index is a ClusterOrderedIndex; otherwise nothing changes.
+	 */
+	public void renumber(ForwardIndex index) {
+		for (int i = 0; i < docs.length; i ++) {
+			docs[i] = index.ordinalOf(docs[i]);
+		}
+	}
+
+	/**
+	 * Sorts the members of each cluster by tweet id, keeping the assignment order of equal ids.
+	 */
+	public void sortById(ForwardIndex index) {
+		long[] ids = new long[0];
+		int[] order = new int[0];
+		int[] buffer = new int[0];
+		for (int c = 0; c < getNumClusters(); c ++) {
+			int start = offsets[c];
+			int size = size(c);
+			if (ids.length < size) {
+				ids = new long[size];
+				order = new int[size];
+				buffer = new int[size];
+			}
+			boolean sorted = true;
+			for (int d = 0; d < size; d ++) {
+				ids[d] = index.getId(docs[start + d]);
+				order[d] = d;
+				if (d > 0 && ids[d] < ids[d - 1]) {
+					sorted = false;
+				}
+			}
+			if (sorted) {
+				continue;
+			}
+			mergeSort(order, buffer, ids, 0, size);
+			int[] members = Arrays.copyOfRange(docs, start, start + size);
+			for (int d = 0; d < size; d ++) {
+				docs[start + d] = members[order[d]];
+			}
+		}
+	}
+
+	/**
+	 * Stable merge sort of the positions order[lo..hi) by their ids.
+	 */
+	private static void mergeSort(int[] order, int[] buffer, long[] ids, int lo, int hi) {
+		if (hi - lo < 2) {
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		mergeSort(order, buffer, ids, lo, mid);
+		mergeSort(order, buffer, ids, mid, hi);
+		if (ids[order[mid - 1]] <= ids[order[mid]]) {
+			return;
+		}
+		System.arraycopy(order, lo, buffer, lo, hi - lo);
+		int i = lo;
+		int j = mid;
+		for (int k = lo; k < hi; k ++) {
+			if (j >= hi || (i < mid && ids[buffer[i]] <= ids[buffer[j]])) {
+				order[k] = buffer[i ++];
+			} else {
+				order[k] = buffer[j ++];
+			}
+		}
+	}
+
+	/**
+	 * Collects (doc, cluster) assignments in any order; build groups them by cluster, keeping the
+	 * order they were added in within each cluster.
+	 */
+	public static class Builder {
+		private final int numClusters;
+		private int[] docs = new int[1024];
+		private int[] clusters = new int[1024];
+		private int size = 0;
+
+		public Builder(int numClusters) {
+			this.numClusters = numClusters;
+		}
+
+		public void add(int doc, int cluster) {
+			if (cluster < 0 || cluster >= numClusters) {
+				throw new IllegalArgumentException("Cluster " + cluster + " out of " + numClusters);
+			}
+			if (size == docs.length) {
+				docs = Arrays.copyOf(docs, 2 * size);
+				clusters = Arrays.copyOf(clusters, 2 * size);
+			}
+			docs[size] = doc;
+			clusters[size ++] = cluster;
+		}
+
+		public ClusterMembers build() {
+			int[] offsets = new int[numClusters + 1];
+			for (int i = 0; i < size; i ++) {
+				offsets[clusters[i] + 1] ++;
+			}
+			for (int c = 0; c < numClusters; c ++) {
+				offsets[c + 1] += offsets[c];
+			}
+			int[] fill = Arrays.copyOf(offsets, numClusters);
+			int[] grouped = new int[size];
+			for (int i = 0; i < size; i ++) {
+				grouped[fill[clusters[i]] ++] = docs[i];
+			}
+			return new ClusterMembers(offsets, grouped);
+		}
+	}
+}
@@ -0,0 +1,284 @@
+/* Write the forward index in cluster order, so that the members of each cluster of a trial are contiguous
+ * Run: sh target/appassembler/bin/ClusterOrderedIndex -stats {statisticsPath} -kmeansclusters {kmeansclustersPath} [-daily]
+ * 		-dimension {dimension} -partition {partitionNum} -trial {trial} -output {outputPath}
+ *   or sh target/appassembler/bin/ClusterOrderedIndex -stats {statisticsPath} -streamingclusters {streamingClustersPath}
+ * 		-dimension {dimension} -partition {partitionNum} -trial {trial} -output {outputPath}
+ */
+package ts4.ts4_core.tweets.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.log4j.Logger;
+
+/**
+ * Compressed forward index whose docs are renumbered so that, within each time slice of one
+ * clustering trial, the members of every cluster are contiguous and in tweet id order: slice after
+ * slice, cluster after cluster. Scoring a cluster of that granularity then reads the postings,
+ * tweet ids and norms of consecutive docs. Docs no slice assigns follow in collection order.
+ * Alongside the compressed columns and the tweet ids in the new order, ORDER holds the collection
+ * ordinal of each doc and ORDINALS the new ordinal of each collection ordinal, through which
+ * cluster assignments, which number docs in collection order, are renumbered (see ordinalOf).
+ * The collection frequency index still scans the collection-order statistics.
+ */
+public class ClusterOrderedIndex extends ForwardIndex {
+	private static final Logger LOG = Logger.getLogger(ClusterOrderedIndex.class);
+
+	public static final String ORDER = "doc_order.bin";
+	public static final String ORDINALS = "doc_ordinal.bin";
+
+	private static final String STATS_OPTION = "stats";
+	private static final String KMEANS_CLUSTER_OPTION = "kmeansclusters";
+	private static final String STREAMING_CLUSTER_OPTION = "streamingclusters";
+	private static final String DAILY_OPTION = "daily";
+	private static final String DIMENSION = "dimension";
+	private static final String PARTITION = "partition";
+	private static final String TRIAL = "trial";
+	private static final String OUTPUT_OPTION = "output";
+
+	private final CompressedForwardIndex index;
+	private final MappedColumn order;
+	private final MappedColumn ordinals;
+
+	private ClusterOrderedIndex(String path) throws IOException {
+		index = CompressedForwardIndex.open(path);
+		order = MappedColumn.map(new File(path, ORDER), 4);
+		ordinals = MappedColumn.map(new File(path, ORDINALS), 4);
+		if (order.size() != index.getNumDocs() || ordinals.size() != index.getNumDocs()) {
+			throw new IOException("Inconsistent cluster-ordered index in " + path);
+		}
+	}
+
+	public static boolean exists(String path) {
+		return new File(path, ORDINALS).exists();
+	}
+
+	public static ClusterOrderedIndex open(String path) throws IOException {
+		return new ClusterOrderedIndex(path);
+	}
+
+	@Override
+	public int getNumDocs() {
+		return index.getNumDocs();
+	}
+
+	@Override
+	public long getId(int doc) {
+		return index.getId(doc);
+	}
+
+	@Override
+	public float getDocLengthEncoded(int doc) {
+		return index.getDocLengthEncoded(doc);
+	}
+
+	@Override
+	public byte getNorm(int doc) {
+		return index.getNorm(doc);
+	}
+
+	@Override
+	public int getTermCount(int doc) {
+		return index.getTermCount(doc);
+	}
+
+	@Override
+	public int getMaxTermCount() {
+		return index.getMaxTermCount();
+	}
+
+	@Override
+	public int read(int doc, int[] terms, int[] tf) {
+		return index.read(doc, terms, tf);
+	}
+
+	@Override
+	public int ordinalOf(int collectionDoc) {
+		return ordinals.getInt(collectionDoc);
+	}
+
+	/**
+	 * Collection ordinal of a doc.
+	 */
+	public int collectionOrdinalOf(int doc) {
+		return order.getInt(doc);
+	}
+
+	/**
+	 * Writes source, a collection-order index, to path in the order of the given slices, whose
+	 * members are collection ordinals sorted by tweet id.
+	 */
+	public static void write(String path, ForwardIndex source, ClusterMembers[] slices) throws IOException {
+		int numDocs = source.getNumDocs();
+		int[] newOrdinals = new int[numDocs];
+		Arrays.fill(newOrdinals, -1);
+		int[] collectionOrdinals = new int[numDocs];
+		int next = 0;
+		for (ClusterMembers slice : slices) {
+			for (int c = 0; c < slice.getNumClusters(); c ++) {
+				for (int i = 0; i < slice.size(c); i ++) {
+					int doc = slice.get(c, i);
+					if (newOrdinals[doc] < 0) {
+						newOrdinals[doc] = next;
+						collectionOrdinals[next ++] = doc;
+					}
+				}
+			}
+		}
+		for (int doc = 0; doc < numDocs; doc ++) {
+			if (newOrdinals[doc] < 0) {
+				newOrdinals[doc] = next;
+				collectionOrdinals[next ++] = doc;
+			}
+		}
+
+		new File(path).mkdirs();
+		MappedColumn.Writer ids = new MappedColumn.Writer(new File(path, BinaryStatistics.DOC_ID), 8);
+		MappedColumn.Writer orderWriter = new MappedColumn.Writer(new File(path, ORDER), 4);
+		CompressedForwardIndex.Writer writer = new CompressedForwardIndex.Writer(path);
+		int[] docTerms = new int[source.getMaxTermCount()];
+		int[] docTf = new int[source.getMaxTermCount()];
+		for (int i = 0; i < numDocs; i ++) {
+			int doc = collectionOrdinals[i];
+			int n = source.read(doc, docTerms, docTf);
+			writer.add(source.getNorm(doc), docTerms, docTf, n);
+			ids.writeLong(source.getId(doc));
+			orderWriter.writeInt(doc);
+			if ((i + 1) % 10000000 == 0) {
+				LOG.info((i + 1) + " docs written");
+			}
+		}
+		writer.close();
+		ids.close();
+		orderWriter.close();
+		MappedColumn.Writer ordinalWriter = new MappedColumn.Writer(new File(path, ORDINALS), 4);
+		for (int doc = 0; doc < numDocs; doc ++) {
+			ordinalWriter.writeInt(newOrdinals[doc]);
+		}
+		ordinalWriter.close();
+	}
+
+	/**
+	 * Membership of a kmeans slice such as "hour27", from its shard if there is one and otherwise
+	 * from its clusterassign part files, or null if the trial has no such slice.
+	 */
+	private static ClusterMembers readKmeansSlice(String kmeansClusterPath, int dimension, String slice, String trial, int partitionNum) throws IOException {
+		File file = ClusterShard.kmeansFile(kmeansClusterPath, dimension, slice, trial);
+		if (file.exists()) {
+			return ClusterShard.map(file).readMembers(partitionNum);
+		}
+		String assignPath = kmeansClusterPath + "/clusterassign-d" + dimension + "-" + slice + "-trial" + trial;
+		if (!new File(assignPath).exists()) {
+			return null;
+		}
+		ClusterMembers.Builder builder = new ClusterMembers.Builder(partitionNum);
+		ClusterShard.readTextAssignments(assignPath, builder);
+		return builder.build();
+	}
+
+	/**
+	 * Whether a directory holds statistics other than an earlier cluster-ordered index.
+	 */
+	private static boolean holdsStatistics(String path) {
+		if (exists(path)) {
+			return false;
+		}
+		return CompressedForwardIndex.exists(path) || BinaryStatistics.exists(path) || CollectionFrequencyIndex.exists(path)
+				|| StatisticsManifest.exists(path) || new File(path, "doc_id.txt").exists();
+	}
+
+	@SuppressWarnings("static-access")
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("statistics location").create(STATS_OPTION));
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("kmeans cluster centers and assignments").create(KMEANS_CLUSTER_OPTION));
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("streaming cluster shards path").create(STREAMING_CLUSTER_OPTION));
+		options.addOption(OptionBuilder.withDescription("order by the daily kmeans clusters rather than the hourly ones").create(DAILY_OPTION));
+		options.addOption(OptionBuilder.withArgName("arg").hasArg()
+				.withDescription("dimension").create(DIMENSION));
+		options.addOption(OptionBuilder.withArgName("arg").hasArg()
+				.withDescription("partition number").create(PARTITION));
+		options.addOption(OptionBuilder.withArgName("arg").hasArg()
+				.withDescription("trial").create(TRIAL));
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("output location, a directory other than the statistics location and without statistics").create(OUTPUT_OPTION));
+
+		CommandLine cmdline = null;
+		CommandLineParser parser = new GnuParser();
+		try {
+			cmdline = parser.parse(options, args);
+		} catch (ParseException exp) {
+			System.err.println("Error parsing command line: " + exp.getMessage());
+			System.exit(-1);
+		}
+
+		if (!cmdline.hasOption(STATS_OPTION) || !(cmdline.hasOption(KMEANS_CLUSTER_OPTION) || cmdline.hasOption(STREAMING_CLUSTER_OPTION))
+				|| !cmdline.hasOption(DIMENSION) || !cmdline.hasOption(PARTITION) || !cmdline.hasOption(TRIAL) || !cmdline.hasOption(OUTPUT_OPTION)) {
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp(ClusterOrderedIndex.class.getName(), options);
+			System.exit(-1);
+		}
+
+		String statsPath = cmdline.getOptionValue(STATS_OPTION);
+		int dimension = Integer.parseInt(cmdline.getOptionValue(DIMENSION));
+		int partitionNum = Integer.parseInt(cmdline.getOptionValue(PARTITION));
+		String trial = cmdline.getOptionValue(TRIAL);
+		String outputPath = cmdline.getOptionValue(OUTPUT_OPTION);
+
+		// The copy shadows any statistics in its directory, since ForwardIndex.load opens it first
+		if (new File(outputPath).getCanonicalFile().equals(new File(statsPath).getCanonicalFile())) {
+			System.err.println("Error: output location " + outputPath + " must not be the statistics location");
+			System.exit(-1);
+		}
+		if (holdsStatistics(outputPath)) {
+			System.err.println("Error: " + outputPath + " already holds statistics, write the cluster-ordered index elsewhere");
+			System.exit(-1);
+		}
+
+		ForwardIndex source = ForwardIndex.load(statsPath);
+		if (source instanceof ClusterOrderedIndex) {
+			System.err.println("Error: " + statsPath + " is already cluster-ordered");
+			System.exit(-1);
+		}
+
+		List<ClusterMembers> slices = new ArrayList<ClusterMembers>();
+		if (cmdline.hasOption(KMEANS_CLUSTER_OPTION)) {
+			String kmeansClusterPath = cmdline.getOptionValue(KMEANS_CLUSTER_OPTION);
+			String granularity = cmdline.hasOption(DAILY_OPTION) ? "day" : "hour";
+			ClusterMembers slice;
+			while ((slice = readKmeansSlice(kmeansClusterPath, dimension, granularity + (slices.size() + 1), trial, partitionNum)) != null) {
+				slices.add(slice);
+			}
+		} else {
+			File[] files = new File(cmdline.getOptionValue(STREAMING_CLUSTER_OPTION) + "/clusters-d" + dimension + "-trial" + trial).listFiles();
+			Arrays.sort(files);
+			for (File file : files) {
+				if (!ClusterShard.isShard(file)) {
+					System.err.println("Error: " + file + " is not a cluster shard, convert it with ClusterShard first");
+					System.exit(-1);
+				}
+				slices.add(ClusterShard.map(file).readMembers(partitionNum));
+			}
+		}
+		for (ClusterMembers slice : slices) {
+			slice.sortById(source);
+		}
+		LOG.info("Ordering " + source.getNumDocs() + " docs by the clusters of " + slices.size() + " slices");
+		write(outputPath, source, slices.toArray(new ClusterMembers[slices.size()]));
+		LOG.info("Finished writing the cluster-ordered index to " + outputPath);
+	}
+}
@@ -0,0 +1,404 @@
+/* Convert the cluster centers and assignments of a trial into one binary shard per slice
+ * Run: sh target/appassembler/bin/ClusterShard -kmeansclusters {kmeansclustersPath} -dimension {dimension} -trial {trial}
+ *   or sh target/appassembler/bin/ClusterShard -streamingclusters {streamingClustersPath} -docsvector {docVectorPath} -dimension {dimension} -trial {trial} -output {outputPath}
+ */
+package ts4.ts4_core.tweets.util;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.log4j.Logger;
+
+/**
+ * Cluster centers and membership of one time slice in a single binary file, memory-mapped through
+ * NIO. After a header (magic, version, cluster count, dimension, doc count) come the centers as a
+ * row-major float matrix, then the membership in compressed sparse row form: cluster count + 1
+ * offsets, and the doc ordinals of every cluster in turn, in assignment order. Values are
+ * big-endian. Kmeans shards are stored as clustershard-d{dimension}-{slice}-trial{trial} next to
+ * the clustercenters and clusterassign directories Spark writes, whose part files are also parsed
+ * here; MoaStreaming writes its hourly shards directly, in place of serialized centers.
+ */
+public class ClusterShard {
+	private static final Logger LOG = Logger.getLogger(ClusterShard.class);
+
+	public static final int MAGIC = 0x54533443;	// "TS4C"
+	public static final int VERSION = 1;
+	public static final int HEADER_BYTES = 20;
+
+	private static final String KMEANS_CLUSTER_OPTION = "kmeansclusters";
+	private static final String STREAMING_CLUSTER_OPTION = "streamingclusters";
+	private static final String DOCVECTORS = "docsvector";
+	private static final String DIMENSION = "dimension";
+	private static final String TRIAL = "trial";
+	private static final String OUTPUT_OPTION = "output";
+
+	private final MappedByteBuffer buffer;
+	private final int numClusters;
+	private final int dimension;
+	private final int numDocs;
+	private final int offsetsStart;
+	private final int docsStart;
+
+	private ClusterShard(MappedByteBuffer buffer, int numClusters, int dimension, int numDocs) {
+		this.buffer = buffer;
+		this.numClusters = numClusters;
+		this.dimension = dimension;
+		this.numDocs = numDocs;
+		this.offsetsStart = HEADER_BYTES + 4 * numClusters * dimension;
+		this.docsStart = offsetsStart + 4 * (numClusters + 1);
+	}
+
+	public static ClusterShard map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length() < HEADER_BYTES || raf.readInt() != MAGIC) {
+				throw new IOException(file + " is not a cluster shard");
+			}
+			int version = raf.readInt();
+			if (version != VERSION) {
+				throw new IOException(file + " has unsupported version " + version);
+			}
+			int numClusters = raf.readInt();
+			int dimension = raf.readInt();
+			int numDocs = raf.readInt();
+			long bytes = HEADER_BYTES + 4L * numClusters * dimension + 4L * (numClusters + 1) + 4L * numDocs;
+			if (raf.length() < bytes) {
+				throw new IOException(file + " is truncated");
+			}
+			return new ClusterShard(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, bytes), numClusters, dimension, numDocs);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Whether a file is a cluster shard rather than serialized centers.
+	 */
+	public static boolean isShard(File file) throws IOException {
+		if (file.length() < HEADER_BYTES) {
+			return false;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return raf.readInt() == MAGIC;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Shard of a kmeans slice such as "day3" or "hour27".
+	 */
+	public static File kmeansFile(String kmeansClusterPath, int dimension, String slice, String trial) {
+		return new File(kmeansClusterPath, "clustershard-d" + dimension + "-" + slice + "-trial" + trial);
+	}
+
+	public int getNumClusters() {
+		return numClusters;
+	}
+
+	public int getDimension() {
+		return dimension;
+	}
+
+	/**
+	 * Number of docs of the slice.
+	 */
+	public int getNumDocs() {
+		return numDocs;
+	}
+
+	public float getCenter(int c, int j) {
+		return buffer.getFloat(HEADER_BYTES + 4 * (c * dimension + j));
+	}
+
+	/**
+	 * Copies the centers into the first rows of centers.
+	 */
+	public void readCenters(double[][] centers) {
+		for (int c = 0; c < Math.min(numClusters, centers.length); c ++) {
+			for (int j = 0; j < Math.min(dimension, centers[c].length); j ++) {
+				centers[c][j] = getCenter(c, j);
+			}
+		}
+	}
+
+	public double[][] getCenters() {
+		double[][] centers = new double[numClusters][dimension];
+		readCenters(centers);
+		return centers;
+	}
+
+	public int getSize(int c) {
+		return buffer.getInt(offsetsStart + 4 * (c + 1)) - buffer.getInt(offsetsStart + 4 * c);
+	}
+
+	public int getMember(int c, int i) {
+		return buffer.getInt(docsStart + 4 * (buffer.getInt(offsetsStart + 4 * c) + i));
+	}
+
+	/**
+	 * Members of the first numClusters clusters, in one bulk read; clusters past those of the shard
+	 * are empty.
+	 */
+	public ClusterMembers readMembers(int numClusters) {
+		int[] offsets = new int[numClusters + 1];
+		for (int c = 1; c <= numClusters; c ++) {
+			offsets[c] = buffer.getInt(offsetsStart + 4 * Math.min(c, this.numClusters));
+		}
+		int[] docs = new int[offsets[numClusters]];
+		ByteBuffer view = buffer.duplicate();
+		view.position(docsStart);
+		view.asIntBuffer().get(docs);
+		return new ClusterMembers(offsets, docs);
+	}
+
+	public static void write(File file, double[][] centers, int dimension, ClusterMembers clusters) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+		int numClusters = clusters.getNumClusters();
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(numClusters);
+		out.writeInt(dimension);
+		out.writeInt(clusters.getNumDocs());
+		for (int c = 0; c < numClusters; c ++) {
+			for (int j = 0; j < dimension; j ++) {
+				out.writeFloat(c < centers.length && j < centers[c].length ? (float) centers[c][j] : 0);
+			}
+		}
+		int offset = 0;
+		out.writeInt(offset);
+		for (int c = 0; c < numClusters; c ++) {
+			offset += clusters.size(c);
+			out.writeInt(offset);
+		}
+		for (int c = 0; c < numClusters; c ++) {
+			for (int i = 0; i < clusters.size(c); i ++) {
+				out.writeInt(clusters.get(c, i));
+			}
+		}
+		out.close();
+	}
+
+	/**
+	 * Reads the "[c1,c2,...]" lines of the part files of a clustercenters directory into the first
+	 * rows of centers; a missing directory leaves them as they are.
+	 */
+	public static void readTextCenters(String path, double[][] centers) throws IOException {
+		int ind = 0;
+		for (double[] vector : readTextCenters(path)) {
+			System.arraycopy(vector, 0, centers[ind ++], 0, vector.length);
+		}
+	}
+
+	private static List<double[]> readTextCenters(String path) throws IOException {
+		List<double[]> centers = new ArrayList<double[]>();
+		File[] files = new File(path).listFiles();
+		if (files == null) {
+			return centers;
+		}
+		Arrays.sort(files);
+		for (File file : files) {
+			if (file.getName().startsWith("part")) {
+				BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file.getPath())));
+				String line;
+				while((line = br.readLine()) != null) {
+					line = line.substring(1, line.length() - 1);
+					String[] vector = line.split(",");
+					double[] center = new double[vector.length];
+					for (int j = 0; j < vector.length; j ++) {
+						center[j] = Double.parseDouble(vector[j]);
+					}
+					centers.add(center);
+				}
+				br.close();
+			}
+		}
+		return centers;
+	}
+
+	/**
+	 * Reads the "(doc,cluster)" lines of the part files of a clusterassign directory into the
+	 * members of each cluster, in file order.
+	 */
+	public static void readTextAssignments(String path, ClusterMembers.Builder clusters) throws IOException {
+		File[] files = new File(path).listFiles();
+		Arrays.sort(files);
+		for (File file : files) {
+			if (file.getName().startsWith("part")) {
+				BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file.getPath())));
+				String line;
+				while((line = br.readLine()) != null) {
+					line = line.substring(1, line.length() - 1);
+					String[] indexmap = line.split(",");
+					clusters.add(Integer.parseInt(indexmap[0]), Integer.parseInt(indexmap[1]));
+				}
+				br.close();
+			}
+		}
+	}
+
+	/**
+	 * Cluster of each doc of a kmeans slice, from its shard if there is one and otherwise from its
+	 * clusterassign part files.
+	 */
+	public static void readAssignments(String kmeansClusterPath, int dimension, String slice, String trial, Map<Integer, Integer> assignments) throws IOException {
+		File file = kmeansFile(kmeansClusterPath, dimension, slice, trial);
+		if (file.exists()) {
+			ClusterShard shard = map(file);
+			for (int c = 0; c < shard.getNumClusters(); c ++) {
+				for (int i = 0; i < shard.getSize(c); i ++) {
+					assignments.put(shard.getMember(c, i), c);
+				}
+			}
+			return;
+		}
+		File[] files = new File(kmeansClusterPath + "/clusterassign-d" + dimension + "-" + slice + "-trial" + trial).listFiles();
+		Arrays.sort(files);
+		for (File f : files) {
+			if (f.getName().startsWith("part")) {
+				BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(f.getPath())));
+				String line;
+				while((line = br.readLine()) != null) {
+					line = line.substring(1, line.length() - 1);
+					String[] indexmap = line.split(",");
+					assignments.put(Integer.parseInt(indexmap[0]), Integer.parseInt(indexmap[1]));
+				}
+				br.close();
+			}
+		}
+	}
+
+	/**
+	 * Center most similar to a doc vector by cosine, the first on ties.
+	 */
+	public static int nearest(double[] docVector, double[][] centers) {
+		int res = 0;
+		double max = Integer.MIN_VALUE;
+		for (int i = 0; i < centers.length; i ++) {
+			double similarity = 0;
+			double docLength = 0;
+			double centerLength = 0;
+			double sum = 0;
+			for (int j = 0; j < docVector.length; j ++) {
+				docLength += docVector[j] * docVector[j];
+				centerLength += centers[i][j] * centers[i][j];
+				sum += docVector[j] * centers[i][j];
+			}
+			similarity = sum / (Math.sqrt(docLength) * Math.sqrt(centerLength));
+			if (similarity > max) {
+				max = similarity;
+				res = i;
+			}
+		}
+		return res;
+	}
+
+	@SuppressWarnings("static-access")
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("kmeans cluster centers and assignments").create(KMEANS_CLUSTER_OPTION));
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("streaming cluster centers path").create(STREAMING_CLUSTER_OPTION));
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("document vectors, for streaming clusters").create(DOCVECTORS));
+		options.addOption(OptionBuilder.withArgName("arg").hasArg()
+				.withDescription("dimension").create(DIMENSION));
+		options.addOption(OptionBuilder.withArgName("arg").hasArg()
+				.withDescription("trial").create(TRIAL));
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("output location, for streaming clusters").create(OUTPUT_OPTION));
+
+		CommandLine cmdline = null;
+		CommandLineParser parser = new GnuParser();
+		try {
+			cmdline = parser.parse(options, args);
+		} catch (ParseException exp) {
+			System.err.println("Error parsing command line: " + exp.getMessage());
+			System.exit(-1);
+		}
+
+		boolean streaming = cmdline.hasOption(STREAMING_CLUSTER_OPTION);
+		if (!cmdline.hasOption(DIMENSION) || !cmdline.hasOption(TRIAL)
+				|| (streaming ? !cmdline.hasOption(DOCVECTORS) || !cmdline.hasOption(OUTPUT_OPTION) : !cmdline.hasOption(KMEANS_CLUSTER_OPTION))) {
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp(ClusterShard.class.getName(), options);
+			System.exit(-1);
+		}
+
+		int dimension = Integer.parseInt(cmdline.getOptionValue(DIMENSION));
+		String trial = cmdline.getOptionValue(TRIAL);
+		int numSlices = 0;
+		if (!streaming) {
+			String kmeansClusterPath = cmdline.getOptionValue(KMEANS_CLUSTER_OPTION);
+			String prefix = "clustercenters-d" + dimension + "-";
+			File[] dirs = new File(kmeansClusterPath).listFiles();
+			Arrays.sort(dirs);
+			for (File dir : dirs) {
+				if (!dir.getName().startsWith(prefix) || !dir.getName().endsWith("-trial" + trial)) {
+					continue;
+				}
+				String slice = dir.getName().substring(prefix.length(), dir.getName().length() - ("-trial" + trial).length());
+				double[][] centers = readTextCenters(dir.getPath()).toArray(new double[0][]);
+				ClusterMembers.Builder clusters = new ClusterMembers.Builder(centers.length);
+				readTextAssignments(kmeansClusterPath + "/clusterassign-d" + dimension + "-" + slice + "-trial" + trial, clusters);
+				write(kmeansFile(kmeansClusterPath, dimension, slice, trial), centers, dimension, clusters.build());
+				numSlices ++;
+			}
+		} else {
+			String streamingClusterPath = cmdline.getOptionValue(STREAMING_CLUSTER_OPTION);
+			String docVectorPath = cmdline.getOptionValue(DOCVECTORS);
+			String outputPath = cmdline.getOptionValue(OUTPUT_OPTION);
+			new File(outputPath).mkdirs();
+			File[] files = new File(streamingClusterPath + "/clusters-d" + dimension + "-trial" + trial).listFiles();
+			Arrays.sort(files);
+			int cnt = 0;
+			for (File file : files) {
+				ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file.getPath()));
+				double[][] centers = (double[][]) ois.readObject();
+				ois.close();
+				ClusterMembers.Builder clusters = new ClusterMembers.Builder(centers.length);
+				BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(docVectorPath + "/" + file.getName())));
+				String line;
+				while((line = br.readLine()) != null) {
+					String[] tokens = line.split(" ");
+					double[] vector = new double[dimension];
+					for (int j = 1; j < tokens.length; j ++) {
+						vector[j - 1] = Double.parseDouble(tokens[j]);
+					}
+					clusters.add(cnt ++, nearest(vector, centers));
+				}
+				br.close();
+				File dir = new File(outputPath + "/clusters-d" + dimension + "-trial" + trial);
+				dir.mkdirs();
+				write(new File(dir, file.getName()), centers, dimension, clusters.build());
+				numSlices ++;
+			}
+		}
+		LOG.info("Total " + numSlices + " slices converted");
+	}
+}
@@ -0,0 +1,478 @@
+/* Time-sliced collection frequencies, answering cf up till any tweet without a per-query cf file
+ * Build from existing statistics: sh target/appassembler/bin/CollectionFrequencyIndex -stats {statisticsPath}
+ */
+package ts4.ts4_core.tweets.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+
+import cc.twittertools.search.TrecTopic;
+import cc.twittertools.search.TrecTopicSet;
+
+/**
+ * The collection is cut into slices of one hour of tweet time, in stream order; a new slice starts
+ * whenever the hour of the largest tweet id seen so far increases. For every term the slices it
+ * occurs in are stored with the term's frequency in that slice, plus a cumulative checkpoint every
+ * 16 entries, so the cf of a term before a slice is a binary search and at most 15 additions.
+ * The slice that contains the query tweet is scanned through the forward index up to and
+ * including that tweet, which reproduces the cf files GenerateStatistics writes per topic set.
+ * Tweets arriving more than an hour late, and ids not in the collection, count the docs of the
+ * first slice reaching the id that have smaller ids instead.
+ * Out-of-vocabulary tokens all share term id 0, as they do in the statistics, so the cf of term id
+ * 0 is not that of any one query term; it is given as 0, as GenerateStatistics counts a query term
+ * outside the index vocabulary, which the collection the index was built from does not contain.
+ * They still count in the total.
+ */
+public class CollectionFrequencyIndex {
+	private static final Logger LOG = Logger.getLogger(CollectionFrequencyIndex.class);
+
+	public static final String SLICE_START = "cf_slice_start.bin";
+	public static final String SLICE_MAX_ID = "cf_slice_max_id.bin";
+	public static final String SLICE_TOTAL = "cf_slice_total.bin";
+	public static final String TERM_OFFSETS = "cf_term_offsets.bin";
+	public static final String ENTRY_SLICE = "cf_entry_slice.bin";
+	public static final String ENTRY_DELTA = "cf_entry_delta.bin";
+	public static final String CHECKPOINTS = "cf_checkpoints.bin";
+
+	private static final int CHECKPOINT_SHIFT = 4;
+	private static final int CHECKPOINT_MASK = (1 << CHECKPOINT_SHIFT) - 1;
+	private static final long TWEPOCH = 1288834974657L;
+	private static final long HOUR_MILLIS = 3600000L;
+
+	private static final String STATS_OPTION = "stats";
+
+	private final ForwardIndex index;
+	private final MappedColumn sliceStart;
+	private final MappedColumn sliceMaxId;
+	private final MappedColumn sliceTotal;
+	private final MappedColumn termOffsets;
+	private final MappedColumn entrySlice;
+	private final MappedColumn entryDelta;
+	private final MappedColumn checkpoints;
+	private final int numSlices;
+
+	private CollectionFrequencyIndex(String path, ForwardIndex index) throws IOException {
+		this.index = index;
+		sliceStart = MappedColumn.map(new File(path, SLICE_START), 8);
+		sliceMaxId = MappedColumn.map(new File(path, SLICE_MAX_ID), 8);
+		sliceTotal = MappedColumn.map(new File(path, SLICE_TOTAL), 8);
+		termOffsets = MappedColumn.map(new File(path, TERM_OFFSETS), 8);
+		entrySlice = MappedColumn.map(new File(path, ENTRY_SLICE), 4);
+		entryDelta = MappedColumn.map(new File(path, ENTRY_DELTA), 4);
+		checkpoints = MappedColumn.map(new File(path, CHECKPOINTS), 8);
+		numSlices = (int) sliceMaxId.size();
+		if (sliceStart.size() != numSlices + 1 || sliceTotal.size() != numSlices + 1 || sliceStart.getLong(numSlices) != index.getNumDocs()
+				|| entrySlice.size() != entryDelta.size() || termOffsets.getLong(termOffsets.size() - 1) != entrySlice.size()) {
+			throw new IOException("Inconsistent collection frequency index in " + path);
+		}
+	}
+
+	public static boolean exists(String path) {
+		return new File(path, TERM_OFFSETS).exists();
+	}
+
+	/**
+	 * Opens the index built over the given forward index, which is used to scan the query's slice.
+	 */
+	public static CollectionFrequencyIndex open(String path, ForwardIndex index) throws IOException {
+		return new CollectionFrequencyIndex(path, index);
+	}
+
+	public int getNumSlices() {
+		return numSlices;
+	}
+
+	/**
+	 * Returns the cf of each term up till and including the given tweet, followed by the total
+	 * number of terms up till that tweet; the layout of a line of the per-query cf file.
+	 */
+	public long[] getCf(long tweetId, int[] termIds) {
+		int lo = 0;
+		int hi = numSlices;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (sliceMaxId.getLong(mid) < tweetId) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		if (lo == numSlices) {
+			return cfBefore(lo, termIds);
+		}
+
+		// The tweet is in the first slice reaching its id, or the next one if it came in late
+		for (int slice = lo; slice < numSlices && slice <= lo + 1; slice ++) {
+			long[] partial = new long[termIds.length + 1];
+			if (scan(slice, tweetId, termIds, partial, true)) {
+				return add(cfBefore(slice, termIds), partial);
+			}
+		}
+		long[] partial = new long[termIds.length + 1];
+		scan(lo, tweetId, termIds, partial, false);
+		return add(cfBefore(lo, termIds), partial);
+	}
+
+	/**
+	 * Adds the postings of a slice's docs to partial: all docs up till the given tweet if upToTweet,
+	 * otherwise the docs with smaller ids. Returns whether the tweet was found.
+	 */
+	private boolean scan(int slice, long tweetId, int[] termIds, long[] partial, boolean upToTweet) {
+		int c = termIds.length;
+		int[] docTerms = new int[index.getMaxTermCount()];
+		int[] docTf = new int[index.getMaxTermCount()];
+		int end = (int) sliceStart.getLong(slice + 1);
+		for (int i = (int) sliceStart.getLong(slice); i < end; i ++) {
+			long id = index.getId(i);
+			if (!upToTweet && id > tweetId) {
+				continue;
+			}
+			int n = index.read(i, docTerms, docTf);
+			for (int j = 0; j < n; j ++) {
+				for (int t = 0; t < c; t ++) {
+					if (docTerms[j] == termIds[t] && termIds[t] != 0) {
+						partial[t] += docTf[j];
+					}
+				}
+				partial[c] += docTf[j];
+			}
+			if (id == tweetId) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private long[] cfBefore(int slice, int[] termIds) {
+		long[] cf = new long[termIds.length + 1];
+		for (int t = 0; t < termIds.length; t ++) {
+			cf[t] = cfBefore(termIds[t], slice);
+		}
+		cf[termIds.length] = sliceTotal.getLong(slice);
+		return cf;
+	}
+
+	private static long[] add(long[] cf, long[] partial) {
+		for (int t = 0; t < cf.length; t ++) {
+			cf[t] += partial[t];
+		}
+		return cf;
+	}
+
+	/**
+	 * Cf of each topic's query terms up till its query tweet, in the layout read from the -cf file.
+	 */
+	public List<List<Long>> getQueryCf(TrecTopicSet topics, TermStatistics termStats, Analyzer analyzer) throws IOException {
+		List<List<Long>> result = new ArrayList<List<Long>>();
+		for (TrecTopic topic : topics) {
+			List<String> queryterms = TweetParser.parse(analyzer, topic.getQuery());
+			int[] qids = new int[queryterms.size()];
+			int c = 0;
+			for (String term : queryterms) {
+				qids[c ++] = termStats.getId(term);
+			}
+			List<Long> cf = new ArrayList<Long>();
+			for (long v : getCf(topic.getQueryTweetTime(), qids)) {
+				cf.add(v);
+			}
+			result.add(cf);
+		}
+		return result;
+	}
+
+	/**
+	 * Cf of a term over all slices before the given one, 0 for out-of-vocabulary terms.
+	 */
+	private long cfBefore(int term, int slice) {
+		if (term <= 0 || term >= termOffsets.size() - 1) {
+			return 0;
+		}
+		long start = termOffsets.getLong(term);
+		long end = termOffsets.getLong(term + 1);
+		long lo = start;
+		long hi = end;
+		while (lo < hi) {
+			long mid = (lo + hi) >>> 1;
+			if (entrySlice.getInt(mid) < slice) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		long sum = 0;
+		long e = start;
+		long checkpoint = lo & ~CHECKPOINT_MASK;
+		if (checkpoint >= start && checkpoint < end) {
+			sum = checkpoints.getLong(checkpoint >>> CHECKPOINT_SHIFT);
+			e = checkpoint;
+		}
+		for (; e < lo; e ++) {
+			sum += entryDelta.getInt(e);
+		}
+		return sum;
+	}
+
+	static long hourOf(long tweetId) {
+		return ((tweetId >> 22) + TWEPOCH) / HOUR_MILLIS;
+	}
+
+	/**
+	 * Builds the index from the forward index in two passes: the first finds the slices and the
+	 * number of slices each term occurs in, the second fills the term lists slice by slice.
+	 */
+	public static void build(String path, ForwardIndex index) throws IOException {
+		build(path, index, 0);
+	}
+
+	/**
+	 * Extends the index built in path over the docs appended to the forward index since. The slices
+	 * before the last one are kept and their term lists copied; only the last slice, which appended
+	 * docs may continue, and the appended docs are scanned, so the result is that of build. Builds
+	 * anew when there is no index, or one of a single slice.
+	 */
+	public static void append(String path, ForwardIndex index) throws IOException {
+		int keep = 0;
+		if (exists(path)) {
+			MappedColumn sliceStart = MappedColumn.map(new File(path, SLICE_START), 8);
+			keep = (int) sliceStart.size() - 2;
+			if (keep > 0 && sliceStart.getLong(keep + 1) > index.getNumDocs()) {
+				throw new IOException("Collection frequency index in " + path + " has more docs than the statistics");
+			}
+		}
+		build(path, index, Math.max(0, keep));
+	}
+
+	/**
+	 * Builds the index keeping the first keep slices of the one in path, which covers a prefix of
+	 * the forward index, and scanning the docs from the start of the next slice on. Columns are
+	 * written next to the old ones and renamed over them once complete.
+	 */
+	private static void build(String path, ForwardIndex index, int keep) throws IOException {
+		int numDoc = index.getNumDocs();
+		int[] docTerms = new int[index.getMaxTermCount()];
+		int[] docTf = new int[index.getMaxTermCount()];
+
+		// State at the start of the first slice scanned, as the full scan has it there
+		MappedColumn oldOffsets = null;
+		MappedColumn oldEntrySlice = null;
+		MappedColumn oldEntryDelta = null;
+		MappedColumn oldStart = null;
+		MappedColumn oldMaxId = null;
+		MappedColumn oldTotal = null;
+		int from = 0;
+		long maxId = Long.MIN_VALUE;
+		long hour = Long.MIN_VALUE;
+		long total = 0;
+		if (keep > 0) {
+			oldStart = MappedColumn.map(new File(path, SLICE_START), 8);
+			oldMaxId = MappedColumn.map(new File(path, SLICE_MAX_ID), 8);
+			oldTotal = MappedColumn.map(new File(path, SLICE_TOTAL), 8);
+			oldOffsets = MappedColumn.map(new File(path, TERM_OFFSETS), 8);
+			oldEntrySlice = MappedColumn.map(new File(path, ENTRY_SLICE), 4);
+			oldEntryDelta = MappedColumn.map(new File(path, ENTRY_DELTA), 4);
+			from = (int) oldStart.getLong(keep);
+			maxId = oldMaxId.getLong(keep - 1);
+			hour = hourOf(maxId);
+			total = oldTotal.getLong(keep);
+		}
+
+		long[] starts = new long[1024];
+		long[] maxIds = new long[1024];
+		int[] lastSlice = new int[1 << 20];
+		long[] counts = new long[1 << 20];
+		int maxTerm = keep > 0 ? (int) oldOffsets.size() - 2 : -1;
+		if (maxTerm >= counts.length) {
+			lastSlice = new int[maxTerm + 1];
+			counts = new long[maxTerm + 1];
+		}
+		// Entries of the kept slices: a term's list is in slice order, so all but a last entry of slice keep
+		for (int term = 0; term <= maxTerm; term ++) {
+			long start = oldOffsets.getLong(term);
+			long end = oldOffsets.getLong(term + 1);
+			counts[term] = end > start && oldEntrySlice.getInt(end - 1) >= keep ? end - start - 1 : end - start;
+		}
+		long[] kept = Arrays.copyOf(counts, maxTerm + 1);
+		Arrays.fill(lastSlice, -1);
+
+		int slice = keep - 1;
+		for (int i = from; i < numDoc; i ++) {
+			long id = index.getId(i);
+			if (id > maxId) {
+				maxId = id;
+				if (hourOf(maxId) > hour) {
+					hour = hourOf(maxId);
+					slice ++;
+					if (slice - keep == starts.length) {
+						starts = grow(starts);
+						maxIds = grow(maxIds);
+					}
+					starts[slice - keep] = i;
+				}
+			}
+			maxIds[slice - keep] = maxId;
+			int n = index.read(i, docTerms, docTf);
+			for (int j = 0; j < n; j ++) {
+				int term = docTerms[j];
+				if (term >= lastSlice.length) {
+					int size = Math.max(term + 1, 2 * lastSlice.length);
+					int[] newLastSlice = new int[size];
+					Arrays.fill(newLastSlice, -1);
+					System.arraycopy(lastSlice, 0, newLastSlice, 0, lastSlice.length);
+					lastSlice = newLastSlice;
+					long[] newCounts = new long[size];
+					System.arraycopy(counts, 0, newCounts, 0, counts.length);
+					counts = newCounts;
+				}
+				if (term > maxTerm) {
+					maxTerm = term;
+				}
+				if (lastSlice[term] != slice) {
+					lastSlice[term] = slice;
+					counts[term] ++;
+				}
+			}
+		}
+		int numSlices = slice + 1;
+		LOG.info(numSlices + " slices, " + (numSlices - keep) + " scanned, " + (maxTerm + 1) + " term ids");
+
+		MappedColumn.Writer startWriter = new MappedColumn.Writer(temp(path, SLICE_START), 8);
+		MappedColumn.Writer maxIdWriter = new MappedColumn.Writer(temp(path, SLICE_MAX_ID), 8);
+		for (int s = 0; s < numSlices; s ++) {
+			startWriter.writeLong(s < keep ? oldStart.getLong(s) : starts[s - keep]);
+			maxIdWriter.writeLong(s < keep ? oldMaxId.getLong(s) : maxIds[s - keep]);
+		}
+		startWriter.writeLong(numDoc);
+		startWriter.close();
+		maxIdWriter.close();
+
+		// Turn the per-term counts into list offsets; counts then serve as write cursors
+		MappedColumn.Writer offsetWriter = new MappedColumn.Writer(temp(path, TERM_OFFSETS), 8);
+		long numEntries = 0;
+		for (int term = 0; term <= maxTerm; term ++) {
+			offsetWriter.writeLong(numEntries);
+			long count = counts[term];
+			counts[term] = numEntries;
+			numEntries += count;
+		}
+		offsetWriter.writeLong(numEntries);
+		offsetWriter.close();
+		lastSlice = null;
+
+		MappedColumn entrySlice = MappedColumn.create(temp(path, ENTRY_SLICE), numEntries, 4);
+		MappedColumn entryDelta = MappedColumn.create(temp(path, ENTRY_DELTA), numEntries, 4);
+		for (int term = 0; term < kept.length; term ++) {
+			long start = oldOffsets.getLong(term);
+			for (long k = 0; k < kept[term]; k ++) {
+				long e = counts[term] ++;
+				entrySlice.putInt(e, oldEntrySlice.getInt(start + k));
+				entryDelta.putInt(e, oldEntryDelta.getInt(start + k));
+			}
+		}
+		MappedColumn.Writer totalWriter = new MappedColumn.Writer(temp(path, SLICE_TOTAL), 8);
+		for (int s = 0; s < keep; s ++) {
+			totalWriter.writeLong(oldTotal.getLong(s));
+		}
+		int[] sliceCount = new int[maxTerm + 1];
+		int[] touched = new int[maxTerm + 1];
+		for (int s = keep; s < numSlices; s ++) {
+			totalWriter.writeLong(total);
+			int end = s + 1 < numSlices ? (int) starts[s + 1 - keep] : numDoc;
+			int numTouched = 0;
+			for (int i = (int) starts[s - keep]; i < end; i ++) {
+				int n = index.read(i, docTerms, docTf);
+				for (int j = 0; j < n; j ++) {
+					int term = docTerms[j];
+					if (sliceCount[term] == 0) {
+						touched[numTouched ++] = term;
+					}
+					sliceCount[term] += docTf[j];
+					total += docTf[j];
+				}
+			}
+			for (int k = 0; k < numTouched; k ++) {
+				int term = touched[k];
+				long e = counts[term] ++;
+				entrySlice.putInt(e, s);
+				entryDelta.putInt(e, sliceCount[term]);
+				sliceCount[term] = 0;
+			}
+			if ((s + 1 - keep) % 100 == 0) {
+				LOG.info((s + 1 - keep) + " slices indexed");
+			}
+		}
+		totalWriter.writeLong(total);
+		totalWriter.close();
+		entrySlice.flush();
+
+		// Cumulative cf of the owning term before every 16th entry
+		MappedColumn checkpoints = MappedColumn.create(temp(path, CHECKPOINTS), (numEntries + CHECKPOINT_MASK) >>> CHECKPOINT_SHIFT, 8);
+		long e = 0;
+		for (int term = 0; term <= maxTerm; term ++) {
+			long sum = 0;
+			for (; e < counts[term]; e ++) {
+				if ((e & CHECKPOINT_MASK) == 0) {
+					checkpoints.putLong(e >>> CHECKPOINT_SHIFT, sum);
+				}
+				sum += entryDelta.getInt(e);
+			}
+		}
+		entryDelta.flush();
+		checkpoints.flush();
+		for (String name : new String[] { SLICE_START, SLICE_MAX_ID, SLICE_TOTAL, ENTRY_SLICE, ENTRY_DELTA, CHECKPOINTS, TERM_OFFSETS }) {
+			File file = new File(path, name);
+			if (file.exists() && !file.delete() || !temp(path, name).renameTo(file)) {
+				throw new IOException("Cannot replace " + file);
+			}
+		}
+		LOG.info("Total " + numEntries + " term slice entries");
+	}
+
+	private static File temp(String path, String name) {
+		return new File(path, name + ".tmp");
+	}
+
+	private static long[] grow(long[] a) {
+		long[] b = new long[2 * a.length];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	@SuppressWarnings("static-access")
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("statistics location").create(STATS_OPTION));
+
+		CommandLine cmdline = null;
+		CommandLineParser parser = new GnuParser();
+		try {
+			cmdline = parser.parse(options, args);
+		} catch (ParseException exp) {
+			System.err.println("Error parsing command line: " + exp.getMessage());
+			System.exit(-1);
+		}
+
+		if (!cmdline.hasOption(STATS_OPTION)) {
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp(CollectionFrequencyIndex.class.getName(), options);
+			System.exit(-1);
+		}
+
+		String statsPath = cmdline.getOptionValue(STATS_OPTION);
+		build(statsPath, ForwardIndex.load(statsPath));
+	}
+}
@@ -0,0 +1,304 @@
+/* Compressed forward index: delta/varint coded term ids with tf packed alongside, one-byte norms
+ * Build from existing binary statistics: sh target/appassembler/bin/CompressedForwardIndex -stats {statisticsPath}
+ */
+package ts4.ts4_core.tweets.util;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.log4j.Logger;
+
+/**
+ * Forward index whose postings are stored as a byte stream. Each doc is encoded as
+ * varint(byte length), varint(term count), then per posting varint(termGap << 1 | tf > 1) followed
+ * by varint(tf - 2) when tf > 1. Term gaps are taken over the ascending term ids of the doc.
+ * A long offset is kept per block of 16 docs, so reaching a doc skips at most 15 length prefixes.
+ * Lengths are kept as the one-byte SmallFloat code and decoded through GenerateStatistics' norm table.
+ */
+public class CompressedForwardIndex extends ForwardIndex {
+	private static final Logger LOG = Logger.getLogger(CompressedForwardIndex.class);
+
+	public static final String POSTINGS = "postings_packed.bin";
+	public static final String BLOCKS = "postings_blocks.bin";
+	public static final String NORMS = "doc_norm.bin";
+
+	public static final String[] FILES = { NORMS, BLOCKS, POSTINGS };
+
+	private static final int BLOCK_SHIFT = 4;
+	private static final int BLOCK_MASK = (1 << BLOCK_SHIFT) - 1;
+
+	private static final String STATS_OPTION = "stats";
+
+	private final MappedColumn ids;
+	private final MappedColumn norms;
+	private final MappedColumn blocks;
+	private final MappedColumn postings;
+	private final int numDoc;
+
+	private CompressedForwardIndex(String path) throws IOException {
+		ids = MappedColumn.map(new File(path, BinaryStatistics.DOC_ID), 8);
+		norms = MappedColumn.map(new File(path, NORMS), 1);
+		blocks = MappedColumn.map(new File(path, BLOCKS), 8);
+		postings = MappedColumn.map(new File(path, POSTINGS), 1);
+		numDoc = (int) ids.size();
+		if (norms.size() != numDoc || blocks.size() != ((numDoc + BLOCK_MASK) >>> BLOCK_SHIFT) + 1) {
+			throw new IOException("Inconsistent compressed forward index in " + path);
+		}
+	}
+
+	public static boolean exists(String path) {
+		return new File(path, BLOCKS).exists();
+	}
+
+	public static CompressedForwardIndex open(String path) throws IOException {
+		return new CompressedForwardIndex(path);
+	}
+
+	@Override
+	public int getNumDocs() {
+		return numDoc;
+	}
+
+	@Override
+	public long getId(int doc) {
+		return ids.getLong(doc);
+	}
+
+	@Override
+	public float getDocLengthEncoded(int doc) {
+		return GenerateStatistics.decodeNormValue(norms.getByte(doc));
+	}
+
+	@Override
+	public byte getNorm(int doc) {
+		return norms.getByte(doc);
+	}
+
+	@Override
+	public int getMaxTermCount() {
+		return postings.getAux();
+	}
+
+	@Override
+	public int getTermCount(int doc) {
+		long p = seek(doc);
+		byte b;
+		do {
+			b = postings.getByte(p ++);
+		} while (b < 0);
+		int n = 0;
+		int shift = 0;
+		do {
+			b = postings.getByte(p ++);
+			n |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return n;
+	}
+
+	@Override
+	public int read(int doc, int[] terms, int[] tf) {
+		long p = seek(doc);
+		byte b;
+		do {
+			b = postings.getByte(p ++);
+		} while (b < 0);
+		int n = 0;
+		int shift = 0;
+		do {
+			b = postings.getByte(p ++);
+			n |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+
+		int term = 0;
+		for (int j = 0; j < n; j ++) {
+			int v = 0;
+			shift = 0;
+			do {
+				b = postings.getByte(p ++);
+				v |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			term += v >>> 1;
+			terms[j] = term;
+			if ((v & 1) == 0) {
+				tf[j] = 1;
+			} else {
+				int f = 0;
+				shift = 0;
+				do {
+					b = postings.getByte(p ++);
+					f |= (b & 0x7F) << shift;
+					shift += 7;
+				} while (b < 0);
+				tf[j] = f + 2;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Position of a doc's length prefix: the block start, then skipping earlier docs of the block.
+	 */
+	private long seek(int doc) {
+		long p = blocks.getLong(doc >>> BLOCK_SHIFT);
+		for (int k = doc & BLOCK_MASK; k > 0; k --) {
+			int len = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = postings.getByte(p ++);
+				len |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			p += len;
+		}
+		return p;
+	}
+
+	/**
+	 * Appends docs in collection order. Postings must already be sorted by term id. The tweet ids
+	 * are not written here; they are shared with the binary statistics.
+	 */
+	public static class Writer {
+		private final MappedColumn.Writer norms;
+		private final MappedColumn.Writer blocks;
+		private final MappedColumn.Writer postings;
+		private byte[] buf = new byte[1024];
+		private int numDoc = 0;
+		private int maxTermCount = 0;
+
+		public Writer(String path) throws IOException {
+			this(path, false);
+		}
+
+		/**
+		 * When appending, the end offset closing the last block is dropped and docs continue the
+		 * block layout of those already at path.
+		 */
+		public Writer(String path, boolean append) throws IOException {
+			if (append) {
+				norms = MappedColumn.Writer.append(new File(path, NORMS), 1, 0);
+				blocks = MappedColumn.Writer.append(new File(path, BLOCKS), 8, 1);
+				postings = MappedColumn.Writer.append(new File(path, POSTINGS), 1, 0);
+				numDoc = (int) norms.size();
+				maxTermCount = postings.getAux();
+				if (blocks.size() != (numDoc + BLOCK_MASK) >>> BLOCK_SHIFT) {
+					throw new IOException("Inconsistent compressed forward index in " + path);
+				}
+			} else {
+				norms = new MappedColumn.Writer(new File(path, NORMS), 1);
+				blocks = new MappedColumn.Writer(new File(path, BLOCKS), 8);
+				postings = new MappedColumn.Writer(new File(path, POSTINGS), 1);
+			}
+		}
+
+		public void add(byte norm, int[] docTerms, int[] docTf, int n) throws IOException {
+			if ((numDoc & BLOCK_MASK) == 0) {
+				blocks.writeLong(postings.size());
+			}
+			if (buf.length < 5 + 10 * n) {
+				buf = new byte[5 + 10 * n];
+			}
+			int len = writeVInt(buf, 0, n);
+			int prev = 0;
+			for (int j = 0; j < n; j ++) {
+				int gap = docTerms[j] - prev;
+				prev = docTerms[j];
+				if (docTf[j] == 1) {
+					len = writeVInt(buf, len, gap << 1);
+				} else {
+					len = writeVInt(buf, len, (gap << 1) | 1);
+					len = writeVInt(buf, len, docTf[j] - 2);
+				}
+			}
+			int v = len;
+			while ((v & ~0x7F) != 0) {
+				postings.writeByte((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			postings.writeByte(v);
+			postings.write(buf, 0, len);
+			norms.writeByte(norm);
+			maxTermCount = Math.max(maxTermCount, n);
+			numDoc ++;
+		}
+
+		public void close() throws IOException {
+			blocks.writeLong(postings.size());
+			postings.setAux(maxTermCount);
+			norms.close();
+			blocks.close();
+			postings.close();
+		}
+
+		private static int writeVInt(byte[] b, int off, int v) {
+			while ((v & ~0x7F) != 0) {
+				b[off ++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			b[off ++] = (byte) v;
+			return off;
+		}
+	}
+
+	@SuppressWarnings("static-access")
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("statistics location").create(STATS_OPTION));
+
+		CommandLine cmdline = null;
+		CommandLineParser parser = new GnuParser();
+		try {
+			cmdline = parser.parse(options, args);
+		} catch (ParseException exp) {
+			System.err.println("Error parsing command line: " + exp.getMessage());
+			System.exit(-1);
+		}
+
+		if (!cmdline.hasOption(STATS_OPTION)) {
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp(CompressedForwardIndex.class.getName(), options);
+			System.exit(-1);
+		}
+
+		String statsPath = cmdline.getOptionValue(STATS_OPTION);
+		if (!BinaryStatistics.exists(statsPath)) {
+			System.err.println("Error: no binary statistics in " + statsPath + ", run BinaryStatistics first");
+			System.exit(-1);
+		}
+
+		BinaryStatistics stats = BinaryStatistics.open(statsPath);
+		Writer writer = new Writer(statsPath);
+		int[] docTerms = new int[64];
+		int[] docTf = new int[64];
+		for (int i = 0; i < stats.getNumDocs(); i ++) {
+			int n = stats.getTermCount(i);
+			if (n > docTerms.length) {
+				docTerms = new int[n];
+				docTf = new int[n];
+			}
+			long start = stats.getStart(i);
+			for (int j = 0; j < n; j ++) {
+				docTerms[j] = stats.getTerm(start + j);
+				docTf[j] = stats.getTf(start + j);
+			}
+			writer.add(GenerateStatistics.encodeNormValue(1.0f, stats.getDocLength(i)), docTerms, docTf, n);
+			if ((i + 1) % 10000000 == 0) {
+				LOG.info((i + 1) + " docs compressed");
+			}
+		}
+		writer.close();
+		LOG.info("Total " + stats.getNumDocs() + " docs compressed");
+	}
+}
@@ -0,0 +1,60 @@
+package ts4.ts4_core.tweets.util;
+
+import java.io.IOException;
+
+/**
+ * Per-doc postings (term id, tf), tweet ids and encoded lengths addressed by doc ordinal. Postings
+ * of a doc are sorted by term id. Implementations keep their data off the Java heap, so callers
+ * read postings into their own buffers instead of holding one array per tweet.
+ */
+public abstract class ForwardIndex {
+	public abstract int getNumDocs();
+
+	public abstract long getId(int doc);
+
+	public abstract float getDocLengthEncoded(int doc);
+
+	/**
+	 * One-byte norm of a doc; decodes to getDocLengthEncoded.
+	 */
+	public byte getNorm(int doc) {
+		return GenerateStatistics.normOf(getDocLengthEncoded(doc));
+	}
+
+	public abstract int getTermCount(int doc);
+
+	/**
+	 * Largest number of postings of a single doc, for sizing the buffers passed to read.
+	 */
+	public abstract int getMaxTermCount();
+
+	/**
+	 * Copies the postings of a doc into the given buffers and returns their number.
+	 */
+	public abstract int read(int doc, int[] terms, int[] tf);
+
+	/**
+	 * Ordinal in this index of a doc numbered in collection order, as cluster assignments number
+	 * docs; the same ordinal unless the index is a ClusterOrderedIndex.
+	 */
+	public int ordinalOf(int collectionDoc) {
+		return collectionDoc;
+	}
+
+	/**
+	 * Maps the cluster-ordered index ClusterOrderedIndex wrote, or the compressed forward index or
+	 * the binary statistics if GenerateStatistics wrote them, otherwise reads the text files off-heap.
+	 */
+	public static ForwardIndex load(String statsPath) throws IOException {
+		if (ClusterOrderedIndex.exists(statsPath)) {
+			return ClusterOrderedIndex.open(statsPath);
+		}
+		if (CompressedForwardIndex.exists(statsPath)) {
+			return CompressedForwardIndex.open(statsPath);
+		}
+		if (BinaryStatistics.exists(statsPath)) {
+			return BinaryStatistics.open(statsPath).getForwardIndex();
+		}
+		return OffHeapForwardIndex.readText(statsPath);
+	}
+}
@@ -1,15 +1,29 @@
 /* Generate statistics used for running queries
- * Run: sh target/appassembler/bin/GenerateStatistics -index {indexPath} -collection {collectionPath} -queries {queryPath} -output {statisticsPath}
+ * Run: sh target/appassembler/bin/GenerateStatistics -index {indexPath} -collection {collectionPath} -queries {queryPath} -output {statisticsPath} [-threads {N}]
+ * Append new blocks: sh target/appassembler/bin/GenerateStatistics -index {indexPath} -collection {collectionPath} -output {statisticsPath} -append [-verify]
  */
 package ts4.ts4_core.tweets.util;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -43,6 +57,14 @@ public class GenerateStatistics {
 	private static final String COLLECTION_OPTION = "collection";
 	private static final String QUERIES_OPTION = "queries";
 	private static final String OUTPUT_OPTION = "output";
+	private static final String THREADS_OPTION = "threads";
+	private static final String APPEND_OPTION = "append";
+	private static final String VERIFY_OPTION = "verify";
+
+	private static final String[] TEXT_FILES = { "doc_id.txt", "doc_length.txt", "doc_length_encoded.txt",
+			"all_terms_ordered.txt", "all_terms_tf.txt", "doc_length_ordered.txt", "stats.txt" };
+
+	private static final int BATCH_SIZE = 10000;
 
 	@SuppressWarnings("static-access")
 	public static void main(String[] args) throws Exception {
@@ -56,6 +78,10 @@ public class GenerateStatistics {
 				.withDescription("file containing topics in TREC format").create(QUERIES_OPTION));
 		options.addOption(OptionBuilder.withArgName("path").hasArg()
 				.withDescription("output location").create(OUTPUT_OPTION));
+		options.addOption(OptionBuilder.withArgName("num").hasArg()
+				.withDescription("number of tokenizing threads").create(THREADS_OPTION));
+		options.addOption(OptionBuilder.withDescription("append blocks newer than the existing statistics").create(APPEND_OPTION));
+		options.addOption(OptionBuilder.withDescription("when appending, check every block of the existing statistics against the manifest, not only the first and last ones").create(VERIFY_OPTION));
 
 		CommandLine cmdline = null;
 		CommandLineParser parser = new GnuParser();
@@ -66,7 +92,7 @@ public class GenerateStatistics {
 			System.exit(-1);
 		}
 
-		if (!cmdline.hasOption(INDEX_OPTION) || !cmdline.hasOption(COLLECTION_OPTION) || !cmdline.hasOption(QUERIES_OPTION) || !cmdline.hasOption(OUTPUT_OPTION)) {
+		if (!cmdline.hasOption(INDEX_OPTION) || !cmdline.hasOption(COLLECTION_OPTION) || (!cmdline.hasOption(QUERIES_OPTION) && !cmdline.hasOption(APPEND_OPTION)) || !cmdline.hasOption(OUTPUT_OPTION)) {
 			HelpFormatter formatter = new HelpFormatter();
 			formatter.printHelp(GenerateStatistics.class.getName(), options);
 			System.exit(-1);
@@ -76,6 +102,8 @@ public class GenerateStatistics {
 		File collectionLocation = new File(cmdline.getOptionValue(COLLECTION_OPTION));
 		String queryPath = cmdline.getOptionValue(QUERIES_OPTION);
 		String outputPath = cmdline.getOptionValue(OUTPUT_OPTION);
+		boolean append = cmdline.hasOption(APPEND_OPTION);
+		int threads = cmdline.hasOption(THREADS_OPTION) ? Integer.parseInt(cmdline.getOptionValue(THREADS_OPTION)) : Runtime.getRuntime().availableProcessors();
 		
 		File indexLocation = new File(indexPath);
 		if (!indexLocation.exists()) {
@@ -89,98 +117,217 @@ public class GenerateStatistics {
 		new File(outputPath + "/cf/").mkdir();
 
 		LOG.info("Reading term statistics");
-		TermStatistics termStats = new TermStatistics(indexPath);
+		final TermStatistics termStats = new TermStatistics(indexPath);
 		LOG.info("Finished reading term statistics");
 
-		StatusStream stream = new JsonStatusCorpusReader(collectionLocation);
-		BufferedWriter bw_id = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/doc_id.txt")));
-		BufferedWriter bw_length = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/doc_length.txt")));
-		BufferedWriter bw_length_encoded = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/doc_length_encoded.txt")));
-		BufferedWriter bw_term_ordered = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/all_terms_ordered.txt")));
-		BufferedWriter bw_tf = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/all_terms_tf.txt")));
-		BufferedWriter bw_length_ordered = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/doc_length_ordered.txt"))); 
-		BufferedWriter bw_cf = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/cf_table.txt")));
-		BufferedWriter bw_cf_perquery = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/cf/" + "cf-" + queryPath.substring(queryPath.lastIndexOf("/") + 1))));
-		BufferedWriter bw_stats = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/stats.txt")));
-		
-		for (int id = 1; id <= termStats.getVocabSize(); id ++) {
-			bw_cf.write(String.valueOf(termStats.getFreq(id)));
-			bw_cf.newLine();
+		// In append mode, check the existing statistics and only read blocks after the last one
+		StatisticsManifest manifest = new StatisticsManifest(termStats.getVocabSize());
+		FileFilter blockFilter = JsonStatusCorpusReader.GZ_FILTER;
+		int cnt = 0;
+		long totalTerm = 0;
+		long uniqueTerm = 0;
+		if (append) {
+			if (!StatisticsManifest.exists(outputPath)) {
+				System.err.println("Error: " + outputPath + " has no manifest, regenerate the statistics to append to them");
+				System.exit(-1);
+			}
+			manifest = StatisticsManifest.read(outputPath);
+			if (manifest.getVocabSize() != termStats.getVocabSize()) {
+				System.err.println("Error: statistics use a vocabulary of " + manifest.getVocabSize() + " terms, index has " + termStats.getVocabSize());
+				System.exit(-1);
+			}
+			LOG.info(cmdline.hasOption(VERIFY_OPTION) ? "Verifying existing statistics" : "Validating existing statistics");
+			manifest.validate(outputPath, cmdline.hasOption(VERIFY_OPTION));
+			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(outputPath + "/stats.txt")));
+			cnt = Integer.parseInt(br.readLine());
+			totalTerm = Long.parseLong(br.readLine());
+			uniqueTerm = Long.parseLong(br.readLine());
+			br.close();
+
+			final String lastBlock = manifest.getLastBlock();
+			blockFilter = new FileFilter() {
+				public boolean accept(File path) {
+					return path.getName().endsWith(".gz") && (lastBlock == null || path.getName().compareTo(lastBlock) > 0);
+				}
+			};
+			for (File file : collectionLocation.listFiles(JsonStatusCorpusReader.GZ_FILTER)) {
+				if (!blockFilter.accept(file) && !manifest.getBlocks().contains(file.getName())) {
+					LOG.warn("Skipping " + file.getName() + ", it sorts before blocks already in the statistics");
+				}
+			}
+			if (queryPath != null) {
+				LOG.warn("Ignoring queries in append mode, query cf is computed from the collection frequency index");
+				queryPath = null;
+			}
+		}
+		File[] blocks = collectionLocation.listFiles(blockFilter);
+		if (blocks.length == 0) {
+			LOG.info("No new blocks in " + collectionLocation);
+			return;
+		}
+		Arrays.sort(blocks);
+
+		final StatusStream stream = new JsonStatusCorpusReader(collectionLocation, blockFilter);
+		BufferedWriter bw_id = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/doc_id.txt", append)));
+		BufferedWriter bw_length = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/doc_length.txt", append)));
+		BufferedWriter bw_length_encoded = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/doc_length_encoded.txt", append)));
+		BufferedWriter bw_term_ordered = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/all_terms_ordered.txt", append)));
+		BufferedWriter bw_tf = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/all_terms_tf.txt", append)));
+		BufferedWriter bw_length_ordered = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/doc_length_ordered.txt", append))); 
+		BinaryStatistics.Writer binaryWriter = new BinaryStatistics.Writer(outputPath, append);
+		CompressedForwardIndex.Writer compressedWriter = new CompressedForwardIndex.Writer(outputPath, append);
+
+		if (!append) {
+			BufferedWriter bw_cf = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/cf_table.txt")));
+			for (int id = 1; id <= termStats.getVocabSize(); id ++) {
+				bw_cf.write(String.valueOf(termStats.getFreq(id)));
+				bw_cf.newLine();
+			}
+			bw_cf.close();
+			LOG.info("Finished writing cf_table");
 		}
-		bw_cf.close();
-		LOG.info("Finished writing cf_table");
 
-		TrecTopicSet topics = TrecTopicSet.fromFile(new File(queryPath));
 		int topicTotal = 0;
 		Map<Long, Integer> queryTimeMap = new HashMap<Long, Integer>();
 		Map<Integer, List<String>> queryTermsMap = new HashMap<Integer, List<String>>(); 
-		for (TrecTopic topic : topics) {
-			queryTimeMap.put(topic.getQueryTweetTime(), topicTotal);
-			queryTermsMap.put(topicTotal, TweetParser.parse(ANALYZER, topic.getQuery()));
-			topicTotal ++;
+		if (queryPath != null) {
+			TrecTopicSet topics = TrecTopicSet.fromFile(new File(queryPath));
+			for (TrecTopic topic : topics) {
+				queryTimeMap.put(topic.getQueryTweetTime(), topicTotal);
+				queryTermsMap.put(topicTotal, TweetParser.parse(ANALYZER, topic.getQuery()));
+				topicTotal ++;
+			}
 		}
 
-		HMapKI<String> cf2Freq = new HMapKI<String>(); 
-		String[] cfPerQuery = new String[topicTotal];
-		int cnt = 0;
-		long totalTerm = 0;
-		long uniqueTerm = 0;
-		Status status;
-		while ((status = stream.next()) != null) {
-			long id = status.getId();
-			if (status.getText() != null) {
-				bw_id.write(String.valueOf(id));
-				bw_id.newLine();
-
-				List<String> terms = TweetParser.parse(ANALYZER, status.getText());
-				bw_length.write(String.valueOf(terms.size()));
-				bw_length.newLine();
-				bw_length_encoded.write(String.valueOf(decodeNormValue(encodeNormValue(1.0f, terms.size()))));
-				bw_length_encoded.newLine();
-
-				HMapII docTermFreq = new HMapII();
-				for (String term : terms) {
-					int termId = termStats.getId(term);
-					if (docTermFreq.containsKey(termId)) {
-						docTermFreq.put(termId, docTermFreq.get(termId) + 1);
-					} else {
-						docTermFreq.put(termId, 1);
-					}
-					cf2Freq.increment(term);
-					totalTerm ++;
+		// Distinct query terms; workers report their occurrences so cf at query time stays exact
+		final HMapKI<String> queryTermIndex = new HMapKI<String>();
+		for (List<String> queryTerms : queryTermsMap.values()) {
+			for (String term : queryTerms) {
+				if (!queryTermIndex.containsKey(term)) {
+					queryTermIndex.put(term, queryTermIndex.size());
 				}
-				bw_length_ordered.write(String.valueOf(docTermFreq.size()));
-				bw_length_ordered.newLine();
-				uniqueTerm += docTermFreq.size();
-
-				for (edu.umd.cloud9.util.map.MapII.Entry entry : docTermFreq.entrySet()) {
-					int key = entry.getKey();
-					bw_term_ordered.write(String.valueOf(key));
-					bw_term_ordered.newLine();
-					bw_tf.write(String.valueOf(docTermFreq.get(key)));
-					bw_tf.newLine();
-				}
-				
-				cnt++;
-				if (cnt % 100000 == 0) {
-					LOG.info(cnt + " processed");
+			}
+		}
+
+		// Pipeline: the reader thread decompresses and parses the corpus into batches, the workers
+		// tokenize them, and this thread writes the batches out in corpus order
+		final BlockingQueue<Future<Batch>> pending = new ArrayBlockingQueue<Future<Batch>>(2 * threads);
+		final ExecutorService workers = Executors.newFixedThreadPool(threads);
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				try {
+					try {
+						Batch batch = new Batch();
+						Status status;
+						while ((status = stream.next()) != null) {
+							batch.add(status.getId(), status.getText());
+							if (batch.size == BATCH_SIZE) {
+								pending.put(workers.submit(tokenizer(batch, termStats, queryTermIndex)));
+								batch = new Batch();
+							}
+						}
+						if (batch.size > 0) {
+							pending.put(workers.submit(tokenizer(batch, termStats, queryTermIndex)));
+						}
+					} catch (final Exception e) {
+						FutureTask<Batch> failed = new FutureTask<Batch>(new Callable<Batch>() {
+							public Batch call() throws Exception {
+								throw e;
+							}
+						});
+						failed.run();
+						pending.put(failed);
+					}
+					FutureTask<Batch> end = new FutureTask<Batch>(new Callable<Batch>() {
+						public Batch call() {
+							return null;
+						}
+					});
+					end.run();
+					pending.put(end);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
 				}
 			}
-			if (queryTimeMap.containsKey(id)) {
-				int idx = queryTimeMap.get(id);
-				cfPerQuery[idx] = "";
-				for (String term : queryTermsMap.get(idx)) {
-					cfPerQuery[idx] += String.valueOf(cf2Freq.get(term)) + " ";
+		}, "corpus-reader");
+		reader.start();
+
+		long[] queryCf = new long[queryTermIndex.size()];
+		int[] docTerms = new int[64];
+		int[] docTf = new int[64];
+		String[] cfPerQuery = new String[topicTotal];
+		Batch batch;
+		try {
+			while ((batch = pending.take().get()) != null) {
+				int posting = 0;
+				int hit = 0;
+				for (int k = 0; k < batch.size; k ++) {
+					long id = batch.ids[k];
+					if (batch.texts[k] != null) {
+						int length = batch.lengths[k];
+						bw_id.write(String.valueOf(id));
+						bw_id.newLine();
+						bw_length.write(String.valueOf(length));
+						bw_length.newLine();
+						bw_length_encoded.write(String.valueOf(decodeNormValue(encodeNormValue(1.0f, length))));
+						bw_length_encoded.newLine();
+
+						int n = batch.termCounts[k];
+						bw_length_ordered.write(String.valueOf(n));
+						bw_length_ordered.newLine();
+						totalTerm += length;
+						uniqueTerm += n;
+
+						if (n > docTerms.length) {
+							docTerms = new int[n];
+							docTf = new int[n];
+						}
+						for (int j = 0; j < n; j ++) {
+							docTerms[j] = batch.terms[posting];
+							docTf[j] = batch.tf[posting ++];
+							bw_term_ordered.write(String.valueOf(docTerms[j]));
+							bw_term_ordered.newLine();
+							bw_tf.write(String.valueOf(docTf[j]));
+							bw_tf.newLine();
+						}
+						BinaryStatistics.sortPostings(docTerms, docTf, n);
+						binaryWriter.add(id, length, decodeNormValue(encodeNormValue(1.0f, length)), docTerms, docTf, n);
+						compressedWriter.add(encodeNormValue(1.0f, length), docTerms, docTf, n);
+						for (; hit < batch.numHits && batch.hitDocs[hit] == k; hit ++) {
+							queryCf[batch.hitTerms[hit]] ++;
+						}
+
+						cnt++;
+						if (cnt % 100000 == 0) {
+							LOG.info(cnt + " processed");
+						}
+					}
+					if (queryTimeMap.containsKey(id)) {
+						int idx = queryTimeMap.get(id);
+						cfPerQuery[idx] = "";
+						for (String term : queryTermsMap.get(idx)) {
+							cfPerQuery[idx] += String.valueOf(queryCf[queryTermIndex.get(term)]) + " ";
+						}
+						cfPerQuery[idx] += String.valueOf(totalTerm);
+					}
 				}
-				cfPerQuery[idx] += String.valueOf(totalTerm);
 			}
+		} finally {
+			workers.shutdownNow();
+			reader.interrupt();
 		}
+		reader.join();
 		LOG.info("Total " + cnt + " processed");
-		for (int i = 0; i < topicTotal; i ++) {  
-			bw_cf_perquery.write(cfPerQuery[i]);
-			bw_cf_perquery.newLine();
+		if (queryPath != null) {
+			BufferedWriter bw_cf_perquery = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/cf/" + "cf-" + queryPath.substring(queryPath.lastIndexOf("/") + 1))));
+			for (int i = 0; i < topicTotal; i ++) {  
+				bw_cf_perquery.write(cfPerQuery[i]);
+				bw_cf_perquery.newLine();
+			}
+			bw_cf_perquery.close();
 		}
-		
+
+		BufferedWriter bw_stats = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/stats.txt")));
 		bw_stats.write(String.valueOf(cnt));
 		bw_stats.newLine();
 		bw_stats.write(String.valueOf(totalTerm));
@@ -197,8 +344,26 @@ public class GenerateStatistics {
 		bw_term_ordered.close();
 		bw_tf.close();
 		bw_length_ordered.close();
-		bw_cf_perquery.close();
 		bw_stats.close();
+		binaryWriter.close();
+		compressedWriter.close();
+
+		LOG.info("Building collection frequency index");
+		if (append) {
+			CollectionFrequencyIndex.append(outputPath, ForwardIndex.load(outputPath));
+		} else {
+			CollectionFrequencyIndex.build(outputPath, ForwardIndex.load(outputPath));
+		}
+		LOG.info("Finished building collection frequency index");
+
+		for (File block : blocks) {
+			manifest.addBlock(block.getName());
+		}
+		List<String> files = new ArrayList<String>(Arrays.asList(TEXT_FILES));
+		files.addAll(Arrays.asList(BinaryStatistics.FILES));
+		files.addAll(Arrays.asList(CompressedForwardIndex.FILES));
+		manifest.write(outputPath, files);
+		LOG.info("Finished writing manifest");
 	}
 
 	private static final float[] NORM_TABLE = new float[256];
@@ -214,6 +379,92 @@ public class GenerateStatistics {
 		return NORM_TABLE[norm & 0xFF];  // & 0xFF maps negative bytes to positive above 127
 	}
 
+	/**
+	 * Inverse of decodeNormValue, for encoded lengths read back from the statistics.
+	 */
+	public static byte normOf(float lengthEncoded) {
+		int lo = 0;
+		int hi = 255;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (NORM_TABLE[mid] > lengthEncoded) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return (byte) lo;
+	}
+
+	/**
+	 * A run of consecutive statuses and, once tokenized, their postings in HMapII iteration order
+	 * and the positions of query terms.
+	 */
+	private static class Batch {
+		final long[] ids = new long[BATCH_SIZE];
+		final String[] texts = new String[BATCH_SIZE];
+		int size = 0;
+
+		int[] lengths;
+		int[] termCounts;
+		int[] terms = new int[16 * BATCH_SIZE];
+		int[] tf = new int[16 * BATCH_SIZE];
+		int[] hitDocs = new int[256];
+		int[] hitTerms = new int[256];
+		int numHits = 0;
+
+		void add(long id, String text) {
+			ids[size] = id;
+			texts[size ++] = text;
+		}
+	}
+
+	private static Callable<Batch> tokenizer(final Batch batch, final TermStatistics termStats, final HMapKI<String> queryTermIndex) {
+		return new Callable<Batch>() {
+			public Batch call() throws Exception {
+				batch.lengths = new int[batch.size];
+				batch.termCounts = new int[batch.size];
+				int posting = 0;
+				for (int k = 0; k < batch.size; k ++) {
+					if (batch.texts[k] == null) {
+						continue;
+					}
+					List<String> terms = TweetParser.parse(ANALYZER, batch.texts[k]);
+					batch.lengths[k] = terms.size();
+
+					HMapII docTermFreq = new HMapII();
+					for (String term : terms) {
+						int termId = termStats.getId(term);
+						if (docTermFreq.containsKey(termId)) {
+							docTermFreq.put(termId, docTermFreq.get(termId) + 1);
+						} else {
+							docTermFreq.put(termId, 1);
+						}
+						if (queryTermIndex.containsKey(term)) {
+							if (batch.numHits == batch.hitDocs.length) {
+								batch.hitDocs = Arrays.copyOf(batch.hitDocs, 2 * batch.numHits);
+								batch.hitTerms = Arrays.copyOf(batch.hitTerms, 2 * batch.numHits);
+							}
+							batch.hitDocs[batch.numHits] = k;
+							batch.hitTerms[batch.numHits ++] = queryTermIndex.get(term);
+						}
+					}
+
+					batch.termCounts[k] = docTermFreq.size();
+					if (posting + docTermFreq.size() > batch.terms.length) {
+						batch.terms = Arrays.copyOf(batch.terms, Math.max(posting + docTermFreq.size(), 2 * batch.terms.length));
+						batch.tf = Arrays.copyOf(batch.tf, batch.terms.length);
+					}
+					for (edu.umd.cloud9.util.map.MapII.Entry entry : docTermFreq.entrySet()) {
+						batch.terms[posting] = entry.getKey();
+						batch.tf[posting ++] = entry.getValue();
+					}
+				}
+				return batch;
+			}
+		};
+	}
+
 	public static byte encodeNormValue(float boost, float length) {
 		return SmallFloat.floatToByte315((boost / (float) Math.sqrt(length)));
 	}
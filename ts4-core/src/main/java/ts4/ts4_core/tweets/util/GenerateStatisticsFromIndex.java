@@ -0,0 +1,376 @@
+/* Generate statistics from the term vectors of an index built with IndexStatuses -store, without re-reading the collection
+ * Run: sh target/appassembler/bin/GenerateStatisticsFromIndex -index {indexPath} -output {statisticsPath} -ids {idsPath}
+ * 		[-queries {queryPath}] [-threads {N}]
+ */
+package ts4.ts4_core.tweets.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+
+import cc.twittertools.index.IndexStatuses.StatusField;
+import cc.twittertools.index.TweetAnalyzer;
+import cc.twittertools.search.TrecTopicSet;
+
+/**
+ * Builds the binary statistics, compressed forward index, cf table and collection frequency index
+ * from the stored term vectors. Term vectors list the terms of a doc in dictionary order and their
+ * frequencies, so no analysis is needed. Each segment is split into ranges read by a pool of
+ * threads, so a single optimized segment is read in parallel too.
+ *
+ * Docs come out in index order, while cluster assignments number docs in corpus order. The two
+ * only agree for indexes IndexStatuses built with its merge policy keeping segments contiguous,
+ * without -deletes or -max_id, and without deletions since. So the tweet ids written are checked
+ * against the corpus-order ids of -ids, and on a mismatch the statistics are deleted and the tool
+ * fails. A count of docs would not do: an index of the same tweets in another order has it too.
+ */
+public class GenerateStatisticsFromIndex {
+	private static final Logger LOG = Logger.getLogger(GenerateStatisticsFromIndex.class);
+	private static final Analyzer ANALYZER = new TweetAnalyzer(Version.LUCENE_43);
+
+	private static final String INDEX_OPTION = "index";
+	private static final String QUERIES_OPTION = "queries";
+	private static final String OUTPUT_OPTION = "output";
+	private static final String THREADS_OPTION = "threads";
+	private static final String IDS_OPTION = "ids";
+
+	private static final int RANGE_SIZE = 100000;
+
+	/**
+	 * Postings of a range of docs of one segment, in doc order.
+	 */
+	private static class Range {
+		int numDocs = 0;
+		long[] ids = new long[RANGE_SIZE];
+		int[] lengths = new int[RANGE_SIZE];
+		int[] termCounts = new int[RANGE_SIZE];
+		int[] terms = new int[16 * RANGE_SIZE];
+		int[] tf = new int[16 * RANGE_SIZE];
+	}
+
+	@SuppressWarnings("static-access")
+	public static void main(String[] args) throws Exception {
+		Options options = new Options();
+
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("index location").create(INDEX_OPTION));
+		options.addOption(OptionBuilder.withArgName("file").hasArg()
+				.withDescription("file containing topics in TREC format, to also write their query cf").create(QUERIES_OPTION));
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("output location").create(OUTPUT_OPTION));
+		options.addOption(OptionBuilder.withArgName("num").hasArg()
+				.withDescription("number of reading threads").create(THREADS_OPTION));
+		options.addOption(OptionBuilder.withArgName("path").hasArg()
+				.withDescription("file, or directory of files in name order, whose lines start with the tweet ids of the corpus in order, such as doc_id.txt of GenerateStatistics or the DocToVec doc vectors").create(IDS_OPTION));
+
+		CommandLine cmdline = null;
+		CommandLineParser parser = new GnuParser();
+		try {
+			cmdline = parser.parse(options, args);
+		} catch (ParseException exp) {
+			System.err.println("Error parsing command line: " + exp.getMessage());
+			System.exit(-1);
+		}
+
+		if (!cmdline.hasOption(INDEX_OPTION) || !cmdline.hasOption(OUTPUT_OPTION) || !cmdline.hasOption(IDS_OPTION)) {
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp(GenerateStatisticsFromIndex.class.getName(), options);
+			System.exit(-1);
+		}
+
+		String indexPath = cmdline.getOptionValue(INDEX_OPTION);
+		String queryPath = cmdline.getOptionValue(QUERIES_OPTION);
+		String outputPath = cmdline.getOptionValue(OUTPUT_OPTION);
+		int threads = cmdline.hasOption(THREADS_OPTION) ? Integer.parseInt(cmdline.getOptionValue(THREADS_OPTION)) : Runtime.getRuntime().availableProcessors();
+		CorpusIds corpusIds = new CorpusIds(new File(cmdline.getOptionValue(IDS_OPTION)));
+
+		File indexLocation = new File(indexPath);
+		if (!indexLocation.exists()) {
+			System.err.println("Error: " + indexLocation + " does not exist!");
+			System.exit(-1);
+		}
+
+		if (!new File(outputPath).exists()) {
+			new File(outputPath).mkdir();
+		}
+
+		LOG.info("Reading term statistics");
+		final TermStatistics termStats = new TermStatistics(indexPath);
+		LOG.info("Finished reading term statistics");
+
+		IndexReader reader = DirectoryReader.open(FSDirectory.open(indexLocation));
+		final List<AtomicReaderContext> leaves = reader.leaves();
+		for (AtomicReaderContext context : leaves) {
+			FieldInfo info = context.reader().getFieldInfos().fieldInfo(StatusField.TEXT.name);
+			if (info == null || !info.hasVectors()) {
+				System.err.println("Error: " + indexPath + " has no term vectors, index it with IndexStatuses -store");
+				System.exit(-1);
+			}
+		}
+
+		// Ranges are read by the pool and written here in index order
+		final BlockingQueue<Future<Range>> pending = new ArrayBlockingQueue<Future<Range>>(2 * threads);
+		final ExecutorService workers = Executors.newFixedThreadPool(threads);
+		Thread submitter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					try {
+						for (AtomicReaderContext context : leaves) {
+							AtomicReader leaf = context.reader();
+							FieldCache.Longs ids = FieldCache.DEFAULT.getLongs(leaf, StatusField.ID.name, FieldCache.NUMERIC_UTILS_LONG_PARSER, false);
+							for (int start = 0; start < leaf.maxDoc(); start += RANGE_SIZE) {
+								pending.put(workers.submit(rangeReader(leaf, ids, start, Math.min(start + RANGE_SIZE, leaf.maxDoc()), termStats)));
+							}
+						}
+					} catch (final Exception e) {
+						FutureTask<Range> failed = new FutureTask<Range>(new Callable<Range>() {
+							public Range call() throws Exception {
+								throw e;
+							}
+						});
+						failed.run();
+						pending.put(failed);
+					}
+					FutureTask<Range> end = new FutureTask<Range>(new Callable<Range>() {
+						public Range call() {
+							return null;
+						}
+					});
+					end.run();
+					pending.put(end);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "range-submitter");
+		submitter.start();
+
+		BinaryStatistics.Writer binaryWriter = new BinaryStatistics.Writer(outputPath);
+		CompressedForwardIndex.Writer compressedWriter = new CompressedForwardIndex.Writer(outputPath);
+		int[] docTerms = new int[64];
+		int[] docTf = new int[64];
+		int cnt = 0;
+		long totalTerm = 0;
+		long uniqueTerm = 0;
+		String mismatch = null;
+		Range range;
+		try {
+			read:
+			while ((range = pending.take().get()) != null) {
+				int posting = 0;
+				for (int k = 0; k < range.numDocs; k ++) {
+					long id = corpusIds.next();
+					if (id != range.ids[k]) {
+						mismatch = "doc " + cnt + " of the index is tweet " + range.ids[k] + " but " + (id < 0 ? "the corpus ends before it" : "tweet " + id + " in the corpus");
+						break read;
+					}
+					int n = range.termCounts[k];
+					int length = range.lengths[k];
+					if (n > docTerms.length) {
+						docTerms = new int[n];
+						docTf = new int[n];
+					}
+					System.arraycopy(range.terms, posting, docTerms, 0, n);
+					System.arraycopy(range.tf, posting, docTf, 0, n);
+					posting += n;
+					BinaryStatistics.sortPostings(docTerms, docTf, n);
+					binaryWriter.add(range.ids[k], length, GenerateStatistics.decodeNormValue(GenerateStatistics.encodeNormValue(1.0f, length)), docTerms, docTf, n);
+					compressedWriter.add(GenerateStatistics.encodeNormValue(1.0f, length), docTerms, docTf, n);
+					totalTerm += length;
+					uniqueTerm += n;
+
+					cnt++;
+					if (cnt % 1000000 == 0) {
+						LOG.info(cnt + " processed");
+					}
+				}
+			}
+		} finally {
+			workers.shutdownNow();
+			submitter.interrupt();
+		}
+		submitter.join();
+		binaryWriter.close();
+		compressedWriter.close();
+		reader.close();
+		if (mismatch == null && corpusIds.next() >= 0) {
+			mismatch = "the corpus has more docs than the " + cnt + " of the index";
+		}
+		corpusIds.close();
+		if (mismatch != null) {
+			for (String name : BinaryStatistics.FILES) {
+				new File(outputPath, name).delete();
+			}
+			for (String name : CompressedForwardIndex.FILES) {
+				new File(outputPath, name).delete();
+			}
+			System.err.println("Error: index order is not corpus order, " + mismatch
+					+ "; rebuild the index with IndexStatuses -store, without -deletes or -max_id, or run GenerateStatistics");
+			System.exit(-1);
+		}
+		LOG.info("Total " + cnt + " processed");
+
+		BufferedWriter bw_stats = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/stats.txt")));
+		bw_stats.write(String.valueOf(cnt));
+		bw_stats.newLine();
+		bw_stats.write(String.valueOf(totalTerm));
+		bw_stats.newLine();
+		bw_stats.write(String.valueOf(uniqueTerm));
+		bw_stats.newLine();
+		bw_stats.write(String.valueOf(termStats.getVocabSize()));
+		bw_stats.newLine();
+		bw_stats.close();
+
+		BufferedWriter bw_cf = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/cf_table.txt")));
+		for (int id = 1; id <= termStats.getVocabSize(); id ++) {
+			bw_cf.write(String.valueOf(termStats.getFreq(id)));
+			bw_cf.newLine();
+		}
+		bw_cf.close();
+		LOG.info("Finished writing cf_table");
+
+		LOG.info("Building collection frequency index");
+		ForwardIndex index = ForwardIndex.load(outputPath);
+		CollectionFrequencyIndex.build(outputPath, index);
+		LOG.info("Finished building collection frequency index");
+
+		if (queryPath != null) {
+			new File(outputPath + "/cf/").mkdir();
+			TrecTopicSet topics = TrecTopicSet.fromFile(new File(queryPath));
+			List<List<Long>> cf = CollectionFrequencyIndex.open(outputPath, index).getQueryCf(topics, termStats, ANALYZER);
+			BufferedWriter bw_cf_perquery = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputPath + "/cf/" + "cf-" + queryPath.substring(queryPath.lastIndexOf("/") + 1))));
+			for (List<Long> line : cf) {
+				StringBuilder sb = new StringBuilder();
+				for (int t = 0; t < line.size(); t ++) {
+					sb.append(t == 0 ? "" : " ").append(line.get(t));
+				}
+				bw_cf_perquery.write(sb.toString());
+				bw_cf_perquery.newLine();
+			}
+			bw_cf_perquery.close();
+			LOG.info("Finished writing query cf");
+		}
+	}
+
+	private static Callable<Range> rangeReader(final AtomicReader leaf, final FieldCache.Longs ids, final int start, final int end, final TermStatistics termStats) {
+		return new Callable<Range>() {
+			public Range call() throws Exception {
+				Range range = new Range();
+				Bits liveDocs = leaf.getLiveDocs();
+				TermsEnum termsEnum = null;
+				int posting = 0;
+				for (int doc = start; doc < end; doc ++) {
+					if (liveDocs != null && !liveDocs.get(doc)) {
+						continue;
+					}
+					int k = range.numDocs ++;
+					range.ids[k] = ids.get(doc);
+					Terms vector = leaf.getTermVector(doc, StatusField.TEXT.name);
+					if (vector == null) {
+						continue;
+					}
+					termsEnum = vector.iterator(termsEnum);
+					BytesRef bytes;
+					while ((bytes = termsEnum.next()) != null) {
+						if (posting == range.terms.length) {
+							range.terms = Arrays.copyOf(range.terms, 2 * posting);
+							range.tf = Arrays.copyOf(range.tf, 2 * posting);
+						}
+						int freq = (int) termsEnum.totalTermFreq();
+						range.terms[posting] = termStats.getId(bytes.utf8ToString());
+						range.tf[posting ++] = freq;
+						range.termCounts[k] ++;
+						range.lengths[k] += freq;
+					}
+				}
+				return range;
+			}
+		};
+	}
+}
+
+/**
+ * Tweet ids of the corpus in order, the first token of each line of a file or of the files of a
+ * directory in name order.
+ */
+class CorpusIds {
+	private final List<File> files = new ArrayList<File>();
+	private BufferedReader br = null;
+
+	CorpusIds(File path) throws IOException {
+		if (path.isDirectory()) {
+			File[] listed = path.listFiles();
+			Arrays.sort(listed);
+			for (File file : listed) {
+				if (file.isFile() && !file.getName().startsWith(".") && !file.getName().startsWith("_")) {
+					files.add(file);
+				}
+			}
+		} else if (path.exists()) {
+			files.add(path);
+		} else {
+			throw new IOException(path + " does not exist");
+		}
+	}
+
+	/**
+	 * The next tweet id, or -1 past the last.
+	 */
+	long next() throws IOException {
+		String line;
+		while (br == null || (line = br.readLine()) == null) {
+			close();
+			if (files.isEmpty()) {
+				return -1;
+			}
+			br = new BufferedReader(new InputStreamReader(new FileInputStream(files.remove(0))));
+		}
+		line = line.trim();
+		int space = line.indexOf(' ');
+		return Long.parseLong(space < 0 ? line : line.substring(0, space));
+	}
+
+	void close() throws IOException {
+		if (br != null) {
+			br.close();
+			br = null;
+		}
+	}
+}
@@ -0,0 +1,263 @@
+package ts4.ts4_core.tweets.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A single fixed-width column of the binary statistics layout, memory-mapped through NIO.
+ * The file starts with a header (magic, version, element width, aux, element count) followed by
+ * big-endian values. Columns larger than 2GB are mapped as several segments, so elements are
+ * addressed by long index. Columns can also be allocated off-heap and filled in place when
+ * only the text statistics are available, or created as writable mappings when built out of order.
+ */
+public class MappedColumn {
+	public static final int MAGIC = 0x54533453;	// "TS4S"
+	public static final int VERSION = 1;
+	public static final int HEADER_BYTES = 24;
+
+	private static final int SEGMENT_BYTES_SHIFT = 30;
+
+	private final ByteBuffer[] segments;
+	private final int width;
+	private final int shift;
+	private final long mask;
+	private final long size;
+	private final int aux;
+
+	private MappedColumn(ByteBuffer[] segments, int width, long size, int aux) {
+		this.segments = segments;
+		this.width = width;
+		this.shift = SEGMENT_BYTES_SHIFT - Integer.numberOfTrailingZeros(width);
+		this.mask = (1L << shift) - 1;
+		this.size = size;
+		this.aux = aux;
+	}
+
+	public static MappedColumn map(File file, int width) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long size = readHeader(raf, file, width);
+			raf.seek(HEADER_BYTES - 12);
+			int aux = raf.readInt();
+			return new MappedColumn(mapSegments(raf.getChannel(), FileChannel.MapMode.READ_ONLY, size, width), width, size, aux);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Creates a column file of the given size and maps it writable, for columns that are filled
+	 * out of order. Call flush once all values are written.
+	 */
+	public static MappedColumn create(File file, long size, int width) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			raf.writeInt(MAGIC);
+			raf.writeInt(VERSION);
+			raf.writeInt(width);
+			raf.writeInt(0);
+			raf.writeLong(size);
+			raf.setLength(HEADER_BYTES + size * width);
+			return new MappedColumn(mapSegments(raf.getChannel(), FileChannel.MapMode.READ_WRITE, size, width), width, size, 0);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static ByteBuffer[] mapSegments(FileChannel channel, FileChannel.MapMode mode, long size, int width) throws IOException {
+		long bytes = size * width;
+		long segmentBytes = 1L << SEGMENT_BYTES_SHIFT;
+		ByteBuffer[] segments = new ByteBuffer[(int) ((bytes + segmentBytes - 1) / segmentBytes)];
+		for (int i = 0; i < segments.length; i ++) {
+			long start = i * segmentBytes;
+			segments[i] = channel.map(mode, HEADER_BYTES + start, Math.min(segmentBytes, bytes - start));
+		}
+		return segments;
+	}
+
+	public static MappedColumn allocate(long size, int width) {
+		long bytes = size * width;
+		long segmentBytes = 1L << SEGMENT_BYTES_SHIFT;
+		ByteBuffer[] segments = new ByteBuffer[(int) ((bytes + segmentBytes - 1) / segmentBytes)];
+		for (int i = 0; i < segments.length; i ++) {
+			segments[i] = ByteBuffer.allocateDirect((int) Math.min(segmentBytes, bytes - i * segmentBytes));
+		}
+		return new MappedColumn(segments, width, size, 0);
+	}
+
+	static long readHeader(RandomAccessFile raf, File file, int width) throws IOException {
+		if (raf.length() < HEADER_BYTES || raf.readInt() != MAGIC) {
+			throw new IOException(file + " is not a binary statistics column");
+		}
+		int version = raf.readInt();
+		if (version != VERSION) {
+			throw new IOException(file + " has unsupported version " + version);
+		}
+		int fileWidth = raf.readInt();
+		if (fileWidth != width) {
+			throw new IOException(file + " has element width " + fileWidth + ", expected " + width);
+		}
+		raf.readInt();
+		long size = raf.readLong();
+		if (raf.length() < HEADER_BYTES + size * width) {
+			throw new IOException(file + " is truncated");
+		}
+		return size;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Column-specific value stored in the header, e.g. the largest doc of a postings column.
+	 */
+	public int getAux() {
+		return aux;
+	}
+
+	public byte getByte(long i) {
+		return segments[(int) (i >>> shift)].get((int) (i & mask));
+	}
+
+	public int getInt(long i) {
+		return segments[(int) (i >>> shift)].getInt((int) (i & mask) * width);
+	}
+
+	public long getLong(long i) {
+		return segments[(int) (i >>> shift)].getLong((int) (i & mask) * width);
+	}
+
+	public float getFloat(long i) {
+		return segments[(int) (i >>> shift)].getFloat((int) (i & mask) * width);
+	}
+
+	public void putInt(long i, int v) {
+		segments[(int) (i >>> shift)].putInt((int) (i & mask) * width, v);
+	}
+
+	public void putLong(long i, long v) {
+		segments[(int) (i >>> shift)].putLong((int) (i & mask) * width, v);
+	}
+
+	public void putFloat(long i, float v) {
+		segments[(int) (i >>> shift)].putFloat((int) (i & mask) * width, v);
+	}
+
+	/**
+	 * Writes back the segments of a column obtained from create.
+	 */
+	public void flush() {
+		for (ByteBuffer segment : segments) {
+			if (segment instanceof MappedByteBuffer) {
+				((MappedByteBuffer) segment).force();
+			}
+		}
+	}
+
+	/**
+	 * Sequential writer for a column. The element count in the header is filled in on close.
+	 */
+	public static class Writer {
+		private final File file;
+		private final DataOutputStream out;
+		private long size = 0;
+		private int aux = 0;
+
+		public Writer(File file, int width) throws IOException {
+			this.file = file;
+			this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(width);
+			out.writeInt(0);
+			out.writeLong(0);
+		}
+
+		private Writer(File file, long size, int aux) throws IOException {
+			this.file = file;
+			this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 1 << 20));
+			this.size = size;
+			this.aux = aux;
+		}
+
+		/**
+		 * Reopens an existing column for appending, after dropping its last elements.
+		 */
+		public static Writer append(File file, int width, int drop) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			long size;
+			int aux;
+			try {
+				size = readHeader(raf, file, width);
+				raf.seek(HEADER_BYTES - 12);
+				aux = raf.readInt();
+				if (drop > size) {
+					throw new IOException(file + " has fewer than " + drop + " elements");
+				}
+				size -= drop;
+				raf.setLength(HEADER_BYTES + size * width);
+			} finally {
+				raf.close();
+			}
+			return new Writer(file, size, aux);
+		}
+
+		public void writeByte(int v) throws IOException {
+			out.writeByte(v);
+			size ++;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			size += len;
+		}
+
+		public void writeInt(int v) throws IOException {
+			out.writeInt(v);
+			size ++;
+		}
+
+		public void writeLong(long v) throws IOException {
+			out.writeLong(v);
+			size ++;
+		}
+
+		public void writeFloat(float v) throws IOException {
+			out.writeFloat(v);
+			size ++;
+		}
+
+		public long size() {
+			return size;
+		}
+
+		public int getAux() {
+			return aux;
+		}
+
+		public void setAux(int aux) {
+			this.aux = aux;
+		}
+
+		public void close() throws IOException {
+			out.close();
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.seek(HEADER_BYTES - 12);
+				raf.writeInt(aux);
+				raf.writeLong(size);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+}
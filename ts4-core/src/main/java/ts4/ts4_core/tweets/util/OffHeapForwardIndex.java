@@ -0,0 +1,138 @@
+package ts4.ts4_core.tweets.util;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Forward index over flat columns: CSR offsets per doc into long-indexed term id and tf columns.
+ * The columns are either mapped from the binary statistics or allocated off-heap and filled from
+ * the text statistics.
+ */
+public class OffHeapForwardIndex extends ForwardIndex {
+	private static final Logger LOG = Logger.getLogger(OffHeapForwardIndex.class);
+
+	private final MappedColumn ids;
+	private final MappedColumn lengthsEncoded;
+	private final MappedColumn offsets;
+	private final MappedColumn terms;
+	private final MappedColumn tf;
+	private final int numDoc;
+	private final int maxTermCount;
+
+	public OffHeapForwardIndex(MappedColumn ids, MappedColumn lengthsEncoded, MappedColumn offsets, MappedColumn terms, MappedColumn tf) {
+		this.ids = ids;
+		this.lengthsEncoded = lengthsEncoded;
+		this.offsets = offsets;
+		this.terms = terms;
+		this.tf = tf;
+		this.numDoc = (int) ids.size();
+
+		int max = 0;
+		long prev = offsets.getLong(0);
+		for (int i = 1; i <= numDoc; i ++) {
+			long cur = offsets.getLong(i);
+			max = Math.max(max, (int) (cur - prev));
+			prev = cur;
+		}
+		this.maxTermCount = max;
+	}
+
+	@Override
+	public int getNumDocs() {
+		return numDoc;
+	}
+
+	@Override
+	public long getId(int doc) {
+		return ids.getLong(doc);
+	}
+
+	@Override
+	public float getDocLengthEncoded(int doc) {
+		return lengthsEncoded.getFloat(doc);
+	}
+
+	@Override
+	public int getTermCount(int doc) {
+		return (int) (offsets.getLong(doc + 1) - offsets.getLong(doc));
+	}
+
+	@Override
+	public int getMaxTermCount() {
+		return maxTermCount;
+	}
+
+	@Override
+	public int read(int doc, int[] docTerms, int[] docTf) {
+		long start = offsets.getLong(doc);
+		int n = (int) (offsets.getLong(doc + 1) - start);
+		for (int j = 0; j < n; j ++) {
+			docTerms[j] = terms.getInt(start + j);
+			docTf[j] = tf.getInt(start + j);
+		}
+		return n;
+	}
+
+	/**
+	 * Reads the text statistics written by GenerateStatistics into off-heap columns, sorting the
+	 * postings of each doc by term id on the way.
+	 */
+	public static OffHeapForwardIndex readText(String statsPath) throws IOException {
+		BufferedReader brStats = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/stats.txt")));
+		int numDoc = Integer.parseInt(brStats.readLine());
+		brStats.readLine();
+		long numPostings = Long.parseLong(brStats.readLine());
+		brStats.close();
+
+		MappedColumn ids = MappedColumn.allocate(numDoc, 8);
+		MappedColumn lengthsEncoded = MappedColumn.allocate(numDoc, 4);
+		MappedColumn offsets = MappedColumn.allocate(numDoc + 1, 8);
+		MappedColumn terms = MappedColumn.allocate(numPostings, 4);
+		MappedColumn tf = MappedColumn.allocate(numPostings, 4);
+
+		BufferedReader brId = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/doc_id.txt")));
+		BufferedReader brLengthEncoded = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/doc_length_encoded.txt")));
+		BufferedReader brLengthOrdered = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/doc_length_ordered.txt")));
+		BufferedReader brTerms = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/all_terms_ordered.txt")));
+		BufferedReader brTf = new BufferedReader(new InputStreamReader(new FileInputStream(statsPath + "/all_terms_tf.txt")));
+
+		int[] docTerms = new int[64];
+		int[] docTf = new int[64];
+		long posting = 0;
+		offsets.putLong(0, 0);
+		for (int i = 0; i < numDoc; i ++) {
+			ids.putLong(i, Long.parseLong(brId.readLine()));
+			lengthsEncoded.putFloat(i, Float.parseFloat(brLengthEncoded.readLine()));
+			int n = Integer.parseInt(brLengthOrdered.readLine());
+			if (n > docTerms.length) {
+				docTerms = new int[n];
+				docTf = new int[n];
+			}
+			for (int j = 0; j < n; j ++) {
+				docTerms[j] = Integer.parseInt(brTerms.readLine());
+				docTf[j] = Integer.parseInt(brTf.readLine());
+			}
+			BinaryStatistics.sortPostings(docTerms, docTf, n);
+			for (int j = 0; j < n; j ++) {
+				terms.putInt(posting, docTerms[j]);
+				tf.putInt(posting, docTf[j]);
+				posting ++;
+			}
+			offsets.putLong(i + 1, posting);
+			if ((i + 1) % 10000000 == 0) {
+				LOG.info((i + 1) + " docs read");
+			}
+		}
+
+		brId.close();
+		brLengthEncoded.close();
+		brLengthOrdered.close();
+		brTerms.close();
+		brTf.close();
+		return new OffHeapForwardIndex(ids, lengthsEncoded, offsets, terms, tf);
+	}
+}
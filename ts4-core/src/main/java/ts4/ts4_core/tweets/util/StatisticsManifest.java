@@ -0,0 +1,196 @@
+package ts4.ts4_core.tweets.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Records which corpus blocks a statistics directory was generated from, the vocabulary size of
+ * the index its term ids come from, and the length of every appendable output file with a CRC32
+ * of each BLOCK_BYTES of it. Appending checks the files against it first, so new blocks are never
+ * added to statistics that were truncated, modified or built from another index: their lengths
+ * and the checksums of their first and last two blocks, or with verify all of them. Only those
+ * blocks are summed again when the manifest is rewritten, as appending rewrites no more than a
+ * header in the first block and less than a block at the old end.
+ */
+public class StatisticsManifest {
+	public static final String MANIFEST = "manifest.txt";
+	public static final int BLOCK_BYTES = 1 << 20;
+
+	private final List<String> blocks = new ArrayList<String>();
+	// Length, then the checksum of each block
+	private final Map<String, long[]> files = new LinkedHashMap<String, long[]>();
+	private int vocabSize;
+	private int blockBytes = 0;
+
+	public StatisticsManifest(int vocabSize) {
+		this.vocabSize = vocabSize;
+	}
+
+	public static boolean exists(String path) {
+		return new File(path, MANIFEST).exists();
+	}
+
+	public static StatisticsManifest read(String path) throws IOException {
+		StatisticsManifest manifest = new StatisticsManifest(0);
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(new File(path, MANIFEST))));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				String[] tokens = line.split(" ");
+				if (tokens[0].equals("vocab")) {
+					manifest.vocabSize = Integer.parseInt(tokens[1]);
+				} else if (tokens[0].equals("blocksize")) {
+					manifest.blockBytes = Integer.parseInt(tokens[1]);
+				} else if (tokens[0].equals("block")) {
+					manifest.blocks.add(tokens[1]);
+				} else if (tokens[0].equals("file")) {
+					long[] values = new long[tokens.length - 2];
+					for (int i = 0; i < values.length; i ++) {
+						values[i] = Long.parseLong(tokens[i + 2]);
+					}
+					manifest.files.put(tokens[1], values);
+				} else {
+					throw new IOException("Unexpected manifest line: " + line);
+				}
+			}
+		} finally {
+			br.close();
+		}
+		if (manifest.blockBytes <= 0) {
+			throw new IOException("Manifest in " + path + " has no block size");
+		}
+		return manifest;
+	}
+
+	public int getVocabSize() {
+		return vocabSize;
+	}
+
+	public List<String> getBlocks() {
+		return blocks;
+	}
+
+	public String getLastBlock() {
+		return blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+	}
+
+	public void addBlock(String block) {
+		blocks.add(block);
+	}
+
+	/**
+	 * Checks that every recorded file still has its recorded length and the checksums of its first
+	 * and last two blocks, or with verify of all its blocks.
+	 */
+	public void validate(String path, boolean verify) throws IOException {
+		byte[] buf = new byte[blockBytes];
+		for (Map.Entry<String, long[]> entry : files.entrySet()) {
+			File file = new File(path, entry.getKey());
+			long[] values = entry.getValue();
+			if (!file.exists()) {
+				throw new IOException(file + " is missing");
+			}
+			if (file.length() != values[0]) {
+				throw new IOException(file + " has length " + file.length() + ", manifest has " + values[0]);
+			}
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				int numBlocks = values.length - 1;
+				if (numBlocks != numBlocks(values[0], blockBytes)) {
+					throw new IOException(file + " has " + numBlocks + " block checksums in the manifest for " + values[0] + " bytes");
+				}
+				for (int b = 0; b < numBlocks; b ++) {
+					if (!verify && b > 0 && b < numBlocks - 2) {
+						continue;
+					}
+					if (checksum(raf, (long) b * blockBytes, Math.min(blockBytes, values[0] - (long) b * blockBytes), buf) != values[b + 1]) {
+						throw new IOException(file + " does not match the checksum of block " + b + " in the manifest");
+					}
+				}
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Records the current length and block checksums of each named file and writes the manifest.
+	 * Checksums of blocks between the first and the last two of a file as last recorded are kept.
+	 */
+	public void write(String path, List<String> fileNames) throws IOException {
+		byte[] buf = new byte[BLOCK_BYTES];
+		Map<String, long[]> recorded = new LinkedHashMap<String, long[]>(files);
+		boolean summed = blockBytes == BLOCK_BYTES;
+		files.clear();
+		for (String name : fileNames) {
+			File file = new File(path, name);
+			long length = file.length();
+			long[] values = new long[1 + numBlocks(length, BLOCK_BYTES)];
+			values[0] = length;
+			long[] old = summed ? recorded.get(name) : null;
+			int kept = old == null ? 1 : Math.max(1, Math.min(old.length - 1 - 2, values.length - 1));
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				for (int b = 0; b < values.length - 1; b ++) {
+					if (b > 0 && b < kept) {
+						values[b + 1] = old[b + 1];
+					} else {
+						values[b + 1] = checksum(raf, (long) b * BLOCK_BYTES, Math.min(BLOCK_BYTES, length - (long) b * BLOCK_BYTES), buf);
+					}
+				}
+			} finally {
+				raf.close();
+			}
+			files.put(name, values);
+		}
+		blockBytes = BLOCK_BYTES;
+		BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(path, MANIFEST))));
+		bw.write("vocab " + vocabSize);
+		bw.newLine();
+		bw.write("blocksize " + blockBytes);
+		bw.newLine();
+		for (String block : blocks) {
+			bw.write("block " + block);
+			bw.newLine();
+		}
+		for (Map.Entry<String, long[]> entry : files.entrySet()) {
+			bw.write("file " + entry.getKey());
+			for (long value : entry.getValue()) {
+				bw.write(" " + value);
+			}
+			bw.newLine();
+		}
+		bw.close();
+	}
+
+	private static int numBlocks(long length, int blockBytes) {
+		return (int) ((length + blockBytes - 1) / blockBytes);
+	}
+
+	/**
+	 * CRC32 of length bytes of a file from offset.
+	 */
+	private static long checksum(RandomAccessFile raf, long offset, long length, byte[] buf) throws IOException {
+		CRC32 crc = new CRC32();
+		raf.seek(offset);
+		while (length > 0) {
+			int len = (int) Math.min(buf.length, length);
+			raf.readFully(buf, 0, len);
+			crc.update(buf, 0, len);
+			length -= len;
+		}
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,141 @@
+package ts4.ts4_core.tweets.search;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * route against ranking every center of a slice by its cosine to the query, computed one pair at a
+ * time in the same float arithmetic: the same clusters in the same order, ties to the lower
+ * cluster, and 0 past the clusters of a slice. Slices may be null or empty, have duplicate centers,
+ * or span several blocks of topics and centers.
+ */
+public class CentroidRouterTest extends TestCase {
+	private Random random;
+
+	@Override
+	protected void setUp() {
+		random = new Random(1);
+	}
+
+	public void testRoute() {
+		for (int k = 0; k < 200; k ++) {
+			int dimension = 1 + random.nextInt(60);
+			double[][][] centers = randomCenters(dimension);
+			double[][] queries = randomVectors(1 + random.nextInt(70), dimension);
+			int top = 1 + random.nextInt(120);
+			CentroidRouter router = new CentroidRouter(centers, dimension);
+			int[][][] routes = router.route(queries, top);
+			assertEquals(centers.length, routes.length);
+			for (int s = 0; s < centers.length; s ++) {
+				assertEquals(queries.length, routes[s].length);
+				for (int q = 0; q < queries.length; q ++) {
+					int[] expected = rank(centers[s], queries[q], dimension, top);
+					assertTrue("slice " + s + " query " + q, Arrays.equals(expected, routes[s][q]));
+					assertTrue("slice " + s + " query " + q + " alone", Arrays.equals(expected, router.route(s, queries[q], top)));
+				}
+			}
+		}
+	}
+
+	public void testCloseToDoublePrecision() {
+		for (int k = 0; k < 100; k ++) {
+			int dimension = 1 + random.nextInt(200);
+			double[][][] centers = {randomVectors(1 + random.nextInt(100), dimension)};
+			double[] query = randomVectors(1, dimension)[0];
+			int[] route = new CentroidRouter(centers, dimension).route(0, query, 1);
+			double best = Double.NEGATIVE_INFINITY;
+			for (double[] center : centers[0]) {
+				best = Math.max(best, cosine(center, query));
+			}
+			assertEquals(best, cosine(centers[0][route[0]], query), 1e-5);
+		}
+	}
+
+	/**
+	 * The top best of centers by float cosine to query, ties to the lower cluster, padded with 0.
+	 */
+	private static int[] rank(double[][] centers, double[] query, int dimension, int top) {
+		int n = centers == null ? 0 : centers.length;
+		final float[] scores = new float[n];
+		Integer[] order = new Integer[n];
+		float[] q = unit(query, dimension);
+		for (int c = 0; c < n; c ++) {
+			float[] center = unit(centers[c], dimension);
+			float sum = 0;
+			for (int j = 0; j < dimension; j ++) {
+				sum += q[j] * center[j];
+			}
+			scores[c] = sum;
+			order[c] = c;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return scores[a] != scores[b] ? (scores[a] > scores[b] ? -1 : 1) : a.compareTo(b);
+			}
+		});
+		int[] result = new int[top];
+		for (int i = 0; i < top && i < n; i ++) {
+			result[i] = order[i];
+		}
+		return result;
+	}
+
+	private static float[] unit(double[] vector, int dimension) {
+		double length = 0;
+		for (int j = 0; j < dimension; j ++) {
+			length += vector[j] * vector[j];
+		}
+		length = Math.sqrt(length);
+		float[] unit = new float[dimension];
+		for (int j = 0; j < dimension && length > 0; j ++) {
+			unit[j] = (float) (vector[j] / length);
+		}
+		return unit;
+	}
+
+	private static double cosine(double[] a, double[] b) {
+		double dot = 0;
+		double aLength = 0;
+		double bLength = 0;
+		for (int j = 0; j < a.length; j ++) {
+			dot += a[j] * b[j];
+			aLength += a[j] * a[j];
+			bLength += b[j] * b[j];
+		}
+		return dot / (Math.sqrt(aLength) * Math.sqrt(bLength));
+	}
+
+	/**
+	 * Up to five slices, some null or empty, with duplicate and zero centers.
+	 */
+	private double[][][] randomCenters(int dimension) {
+		double[][][] centers = new double[1 + random.nextInt(5)][][];
+		for (int s = 0; s < centers.length; s ++) {
+			if (random.nextInt(6) == 0) {
+				continue;
+			}
+			centers[s] = randomVectors(random.nextInt(100), dimension);
+			for (int c = 1; c < centers[s].length; c ++) {
+				if (random.nextInt(8) == 0) {
+					centers[s][c] = centers[s][random.nextInt(c)].clone();
+				} else if (random.nextInt(30) == 0) {
+					centers[s][c] = new double[dimension];
+				}
+			}
+		}
+		return centers;
+	}
+
+	private double[][] randomVectors(int n, int dimension) {
+		double[][] vectors = new double[n][dimension];
+		for (double[] vector : vectors) {
+			for (int j = 0; j < dimension; j ++) {
+				vector[j] = random.nextGaussian();
+			}
+		}
+		return vectors;
+	}
+}
@@ -0,0 +1,211 @@
+package ts4.ts4_core.tweets.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * route against ranking the clusters of each slice searched by sorting them all: first those under
+ * the probe best super-centers overlapping the slices searched, by their own cosine, then the
+ * others by the cosine of their super-center, ties to the lower cluster, padded with 0. Probing
+ * every super-center must rank as CentroidRouter does, and a router read back from its file as
+ * the one built. Coarse vectors make many cosines equal.
+ */
+public class HierarchicalRouterTest extends TestCase {
+	private Random random;
+	private File file;
+
+	@Override
+	protected void setUp() throws IOException {
+		random = new Random(1);
+		file = File.createTempFile("ts4-supercenters", "");
+		file.delete();
+	}
+
+	@Override
+	protected void tearDown() {
+		file.delete();
+	}
+
+	public void testRoute() {
+		for (int k = 0; k < 300; k ++) {
+			int dimension = 2 + random.nextInt(6);
+			boolean coarse = random.nextBoolean();
+			double[][][] centers = randomCenters(dimension, coarse);
+			double[][] queries = randomVectors(6, dimension, coarse);
+			int[] from = new int[queries.length];
+			int[] to = new int[queries.length];
+			for (int q = 0; q < queries.length; q ++) {
+				from[q] = random.nextInt(centers.length);
+				to[q] = from[q] + 1 + random.nextInt(centers.length - from[q]);
+			}
+			int groups = 1 + random.nextInt(12);
+			int probe = 1 + random.nextInt(groups + 2);
+			int top = 1 + random.nextInt(20);
+			HierarchicalRouter router = HierarchicalRouter.build(centers, dimension, groups);
+			int[][][] routes = router.route(queries, from, to, probe, top);
+			assertEquals(centers.length, routes.length);
+			for (int s = 0; s < centers.length; s ++) {
+				for (int q = 0; q < queries.length; q ++) {
+					if (s < from[q] || s >= to[q]) {
+						assertNull(routes[s][q]);
+					} else {
+						int[] expected = rank(router, centers, queries[q], dimension, from[q], to[q], s, probe, top);
+						assertTrue("slice " + s + " query " + q, Arrays.equals(expected, routes[s][q]));
+					}
+				}
+			}
+		}
+	}
+
+	public void testProbeAll() {
+		for (int k = 0; k < 100; k ++) {
+			int dimension = 2 + random.nextInt(6);
+			boolean coarse = random.nextBoolean();
+			double[][][] centers = randomCenters(dimension, coarse);
+			double[][] queries = randomVectors(6, dimension, coarse);
+			int[] from = new int[queries.length];
+			int[] to = new int[queries.length];
+			Arrays.fill(to, centers.length);
+			int groups = 1 + random.nextInt(12);
+			int top = 1 + random.nextInt(20);
+			int[][][] routes = HierarchicalRouter.build(centers, dimension, groups).route(queries, from, to, groups, top);
+			assertTrue(Arrays.deepEquals(new CentroidRouter(centers, dimension).route(queries, top), routes));
+		}
+	}
+
+	public void testOpen() {
+		for (int k = 0; k < 50; k ++) {
+			int dimension = 2 + random.nextInt(6);
+			double[][][] centers = randomCenters(dimension, false);
+			double[][] queries = randomVectors(6, dimension, false);
+			int[] from = new int[queries.length];
+			int[] to = new int[queries.length];
+			Arrays.fill(to, centers.length);
+			int groups = 1 + random.nextInt(12);
+			int probe = 1 + random.nextInt(groups);
+			int[][][] expected = HierarchicalRouter.build(centers, dimension, groups).route(queries, from, to, probe, 10);
+			file.delete();
+			// Built and written, then read back
+			for (int i = 0; i < 2; i ++) {
+				int[][][] routes = HierarchicalRouter.open(file, centers, dimension, groups).route(queries, from, to, probe, 10);
+				assertTrue(Arrays.deepEquals(expected, routes));
+			}
+		}
+	}
+
+	/**
+	 * The top best clusters of slice s for a query searching the slices from to to - 1.
+	 */
+	private static int[] rank(HierarchicalRouter router, double[][][] centers, double[] query, int dimension, int from, int to, int s, int probe, int top) {
+		float[] q = unit(query, dimension);
+		final float[] groupScores = new float[router.getNumGroups()];
+		for (int g = 0; g < groupScores.length; g ++) {
+			groupScores[g] = dot(q, router.getGroupCenter(g));
+		}
+
+		// Probed super-centers: the best of those with clusters in the slices searched
+		boolean[] overlaps = new boolean[groupScores.length];
+		for (int t = from; t < to; t ++) {
+			for (int c = 0; centers[t] != null && c < centers[t].length; c ++) {
+				overlaps[router.getGroup(t, c)] = true;
+			}
+		}
+		List<Integer> groups = new ArrayList<Integer>();
+		for (int g = 0; g < groupScores.length; g ++) {
+			if (overlaps[g]) {
+				groups.add(g);
+			}
+		}
+		Collections.sort(groups, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return groupScores[a] != groupScores[b] ? (groupScores[a] > groupScores[b] ? -1 : 1) : a.compareTo(b);
+			}
+		});
+		boolean[] probed = new boolean[groupScores.length];
+		for (int i = 0; i < probe && i < groups.size(); i ++) {
+			probed[groups.get(i)] = true;
+		}
+
+		int n = centers[s] == null ? 0 : centers[s].length;
+		final boolean[] inProbed = new boolean[n];
+		final float[] scores = new float[n];
+		final float[] clusterGroupScores = new float[n];
+		List<Integer> clusters = new ArrayList<Integer>();
+		for (int c = 0; c < n; c ++) {
+			int g = router.getGroup(s, c);
+			inProbed[c] = probed[g];
+			scores[c] = dot(q, unit(centers[s][c], dimension));
+			clusterGroupScores[c] = groupScores[g];
+			clusters.add(c);
+		}
+		Collections.sort(clusters, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				if (inProbed[a] != inProbed[b]) {
+					return inProbed[a] ? -1 : 1;
+				}
+				float[] by = inProbed[a] ? scores : clusterGroupScores;
+				return by[a] != by[b] ? (by[a] > by[b] ? -1 : 1) : a.compareTo(b);
+			}
+		});
+		int[] result = new int[top];
+		for (int i = 0; i < top && i < n; i ++) {
+			result[i] = clusters.get(i);
+		}
+		return result;
+	}
+
+	private static float dot(float[] a, float[] b) {
+		float sum = 0;
+		for (int j = 0; j < a.length; j ++) {
+			sum += a[j] * b[j];
+		}
+		return sum;
+	}
+
+	private static float[] unit(double[] vector, int dimension) {
+		double length = 0;
+		for (int j = 0; j < dimension; j ++) {
+			length += vector[j] * vector[j];
+		}
+		length = Math.sqrt(length);
+		float[] unit = new float[dimension];
+		for (int j = 0; j < dimension && length > 0; j ++) {
+			unit[j] = (float) (vector[j] / length);
+		}
+		return unit;
+	}
+
+	/**
+	 * Up to thirty slices of up to fifteen clusters, some null.
+	 */
+	private double[][][] randomCenters(int dimension, boolean coarse) {
+		double[][][] centers = new double[1 + random.nextInt(30)][][];
+		for (int s = 0; s < centers.length; s ++) {
+			if (random.nextInt(8) != 0) {
+				centers[s] = randomVectors(random.nextInt(15), dimension, coarse);
+			}
+		}
+		return centers;
+	}
+
+	/**
+	 * Gaussian vectors, or coarse ones with entries -1, 0 and 1, the zero vector among them.
+	 */
+	private double[][] randomVectors(int n, int dimension, boolean coarse) {
+		double[][] vectors = new double[n][dimension];
+		for (double[] vector : vectors) {
+			for (int j = 0; j < dimension; j ++) {
+				vector[j] = coarse ? random.nextInt(3) - 1 : random.nextGaussian();
+			}
+		}
+		return vectors;
+	}
+}
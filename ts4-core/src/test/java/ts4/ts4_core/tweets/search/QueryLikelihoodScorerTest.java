@@ -0,0 +1,198 @@
+package ts4.ts4_core.tweets.search;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import ts4.ts4_core.tweets.util.ArrayForwardIndex;
+import ts4.ts4_core.tweets.util.ClusterMembers;
+import ts4.ts4_core.tweets.util.ForwardIndex;
+
+/**
+ * collect against scoring every member of a cluster, which MaxScore pruning must not change: the
+ * same hits with bit-identical scores, within a range, up to a query time, above a minimum score,
+ * and with a running top N raising the bar as hits are found. Docs have few distinct terms, tfs
+ * and lengths, so many score the same as the threshold.
+ */
+public class QueryLikelihoodScorerTest extends TestCase {
+	private static final int VOCAB = 25;
+	private static final int CLUSTERS = 3;
+
+	private ForwardIndex index;
+	private ClusterIndex[] clusters;
+	private Random random;
+
+	@Override
+	protected void setUp() {
+		random = new Random(1);
+		int numDocs = 3000;
+		long[] ids = new long[numDocs];
+		for (int d = 0; d < numDocs; d ++) {
+			ids[d] = 1000L * d + random.nextInt(1000);
+		}
+		index = ArrayForwardIndex.random(random, ids, 6, VOCAB, false);
+
+		ClusterMembers.Builder builder = new ClusterMembers.Builder(CLUSTERS);
+		for (int d = numDocs - 1; d >= 0; d --) {
+			builder.add(d, random.nextInt(CLUSTERS));
+		}
+		ClusterMembers members = builder.build();
+		members.sortById(index);
+		clusters = new ClusterIndex[CLUSTERS];
+		for (int c = 0; c < CLUSTERS; c ++) {
+			clusters[c] = ClusterIndex.build(index, members, c);
+		}
+	}
+
+	public void testCollect() {
+		for (int k = 0; k < 3000; k ++) {
+			QueryLikelihoodScorer scorer = randomQuery();
+			ClusterIndex cluster = clusters[random.nextInt(CLUSTERS)];
+			int lo = random.nextInt(4) == 0 ? random.nextInt(cluster.size()) : 0;
+			int hi = random.nextInt(4) == 0 ? lo + random.nextInt(cluster.size() - lo + 1) : cluster.size();
+			long maxId = random.nextInt(4) == 0 ? cluster.getId(random.nextInt(cluster.size())) : Long.MAX_VALUE;
+			List<Hit> all = exhaustive(scorer, cluster, lo, hi, maxId, Float.NEGATIVE_INFINITY);
+			float minScore = randomMinScore(all);
+
+			int count = scorer.collect(cluster, maxId, lo, hi, minScore);
+			assertEquals(cluster.countUpTo(maxId, lo, hi), count);
+			List<Hit> expected = exhaustive(scorer, cluster, lo, hi, maxId, minScore);
+			assertEquals("hits above " + minScore, expected.size(), scorer.getNumHits());
+			for (int h = 0; h < expected.size(); h ++) {
+				assertEquals(expected.get(h).id, scorer.getHitId(h));
+				assertEquals(expected.get(h).score, scorer.getHitScore(h), 0.0f);
+			}
+		}
+	}
+
+	public void testCollectWithRunningTopN() {
+		for (int k = 0; k < 3000; k ++) {
+			QueryLikelihoodScorer scorer = randomQuery();
+			ClusterIndex cluster = clusters[random.nextInt(CLUSTERS)];
+			int n = 1 + random.nextInt(30);
+			List<Hit> all = exhaustive(scorer, cluster, 0, cluster.size(), Long.MAX_VALUE, Float.NEGATIVE_INFINITY);
+			float minScore = randomMinScore(all);
+
+			// Top N already holding hits of other shards, as from earlier slices
+			TopNScoredLongs running = new TopNScoredLongs(n);
+			TopNScoredLongs expected = new TopNScoredLongs(n);
+			for (int i = random.nextInt(n + 1); i > 0; i --) {
+				float score = all.isEmpty() ? 1.0f : all.get(random.nextInt(all.size())).score;
+				running.add(-i, score);
+				expected.add(-i, score);
+			}
+			scorer.collect(cluster, Long.MAX_VALUE, 0, cluster.size(), minScore, running);
+			List<Hit> hits = new ArrayList<Hit>();
+			for (Hit hit : exhaustive(scorer, cluster, 0, cluster.size(), Long.MAX_VALUE, minScore)) {
+				expected.add(hit.id, hit.score);
+			}
+
+			// Hits are exhaustive hits in member order, and include all that end in the top N
+			int next = 0;
+			for (int h = 0; h < scorer.getNumHits(); h ++) {
+				while (next < all.size() && all.get(next).id != scorer.getHitId(h)) {
+					next ++;
+				}
+				assertTrue("hit " + scorer.getHitId(h) + " not found in order", next < all.size());
+				assertEquals(all.get(next).score, scorer.getHitScore(h), 0.0f);
+				hits.add(all.get(next));
+			}
+			PairOfLongFloat[] top = expected.extractAll();
+			PairOfLongFloat[] actual = running.extractAll();
+			assertEquals(top.length, actual.length);
+			for (int i = 0; i < top.length; i ++) {
+				assertEquals(top[i].getKey(), actual[i].getKey());
+				assertEquals(top[i].getValue(), actual[i].getValue(), 0.0f);
+				if (top[i].getKey() >= 0) {
+					boolean found = false;
+					for (Hit hit : hits) {
+						found |= hit.id == top[i].getKey();
+					}
+					assertTrue("top hit " + top[i].getKey() + " not collected", found);
+				}
+			}
+		}
+	}
+
+	public void testScore() {
+		for (int k = 0; k < 1000; k ++) {
+			QueryLikelihoodScorer scorer = randomQuery();
+			int n = 1 + random.nextInt(30);
+			TopNScoredLongs topN = new TopNScoredLongs(n);
+			TopNScoredLongs expected = new TopNScoredLongs(n);
+			long maxId = random.nextBoolean() ? Long.MAX_VALUE : index.getId(random.nextInt(index.getNumDocs()));
+			for (ClusterIndex cluster : clusters) {
+				assertEquals(cluster.countUpTo(maxId), scorer.score(cluster, maxId, topN));
+				for (Hit hit : exhaustive(scorer, cluster, 0, cluster.size(), maxId, Float.NEGATIVE_INFINITY)) {
+					expected.add(hit.id, hit.score);
+				}
+			}
+			PairOfLongFloat[] top = expected.extractAll();
+			PairOfLongFloat[] actual = topN.extractAll();
+			assertEquals(top.length, actual.length);
+			for (int i = 0; i < top.length; i ++) {
+				assertEquals(top[i].getKey(), actual[i].getKey());
+				assertEquals(top[i].getValue(), actual[i].getValue(), 0.0f);
+			}
+		}
+	}
+
+	/**
+	 * One to six terms, possibly repeated, with cf from none to most of the collection.
+	 */
+	private QueryLikelihoodScorer randomQuery() {
+		int[] termIds = new int[1 + random.nextInt(6)];
+		long[] cf = new long[termIds.length];
+		for (int t = 0; t < termIds.length; t ++) {
+			termIds[t] = 1 + random.nextInt(VOCAB + 2);
+			cf[t] = random.nextInt(3) == 0 ? random.nextInt(3) : random.nextInt(3) == 0 ? 5000 + random.nextInt(5000) : random.nextInt(300);
+		}
+		QueryLikelihoodScorer scorer = new QueryLikelihoodScorer(2500.0f);
+		scorer.setQuery(termIds, cf, 10000);
+		return scorer;
+	}
+
+	/**
+	 * No minimum, 0, the score of one of the hits, or just below or above it.
+	 */
+	private float randomMinScore(List<Hit> hits) {
+		int choice = random.nextInt(5);
+		if (choice == 0 || hits.isEmpty()) {
+			return Float.NEGATIVE_INFINITY;
+		}
+		if (choice == 1) {
+			return 0.0f;
+		}
+		float score = hits.get(random.nextInt(hits.size())).score;
+		return choice == 2 ? score : choice == 3 ? Math.nextAfter(score, Double.NEGATIVE_INFINITY) : Math.nextUp(score);
+	}
+
+	/**
+	 * Members at positions lo to hi - 1 with tweet id at most maxId scoring above 0 and minScore,
+	 * each scored on its own.
+	 */
+	private List<Hit> exhaustive(QueryLikelihoodScorer scorer, ClusterIndex cluster, int lo, int hi, long maxId, float minScore) {
+		List<Hit> hits = new ArrayList<Hit>();
+		int[] docTerms = new int[index.getMaxTermCount()];
+		int[] docTf = new int[index.getMaxTermCount()];
+		for (int d = lo; d < hi && cluster.getId(d) <= maxId; d ++) {
+			int n = index.read(cluster.getDoc(d), docTerms, docTf);
+			float score = scorer.score(docTerms, docTf, n, cluster.getNorm(d));
+			if (score > 0 && score > minScore) {
+				hits.add(new Hit(cluster.getId(d), score));
+			}
+		}
+		return hits;
+	}
+
+	private static class Hit {
+		private final long id;
+		private final float score;
+
+		private Hit(long id, float score) {
+			this.id = id;
+			this.score = score;
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package ts4.ts4_core.tweets.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+import ts4.ts4_core.tweets.util.ArrayForwardIndex;
+import ts4.ts4_core.tweets.util.ClusterMembers;
+import ts4.ts4_core.tweets.util.ForwardIndex;
+
+/**
+ * search, chunked search on a pool and batch search against the loop they replaced, which scores
+ * every member of the selected shards of each cutoff separately: the same top N of every cutoff,
+ * with bit-identical scores, and the same selected sizes. Query times fall in or just before the
+ * final hour, so some of its clusters start after the query.
+ */
+public class SelectiveSearcherTest extends TestCase {
+	private static final int VOCAB = 40;
+	private static final int DAYS = 2;
+	private static final int CLUSTERS = 8;
+	private static final int DOCS_PER_HOUR = 120;
+	private static final int[] NUM_RESULTS = {1, 3, 10, 50};
+
+	private ForwardIndex index;
+	private ClusterMembers[] days;
+	private ClusterMembers[] hours;
+	private Random random;
+
+	@Override
+	protected void setUp() {
+		random = new Random(1);
+		int numDocs = DAYS * 24 * DOCS_PER_HOUR;
+		long[] ids = new long[numDocs];
+		for (int d = 0; d < numDocs; d ++) {
+			ids[d] = 10L * d + random.nextInt(30);
+		}
+		index = ArrayForwardIndex.random(random, ids, 5, VOCAB, false);
+
+		days = new ClusterMembers[DAYS];
+		hours = new ClusterMembers[DAYS * 24];
+		for (int s = 0; s < DAYS + DAYS * 24; s ++) {
+			int docsPerSlice = s < DAYS ? 24 * DOCS_PER_HOUR : DOCS_PER_HOUR;
+			int first = (s < DAYS ? s : s - DAYS) * docsPerSlice;
+			ClusterMembers.Builder builder = new ClusterMembers.Builder(CLUSTERS);
+			for (int d = first + docsPerSlice - 1; d >= first; d --) {
+				builder.add(d, random.nextInt(CLUSTERS));
+			}
+			ClusterMembers members = builder.build();
+			members.sortById(index);
+			if (s < DAYS) {
+				days[s] = members;
+			} else {
+				hours[s - DAYS] = members;
+			}
+		}
+	}
+
+	public void testSearch() {
+		for (int numResults : NUM_RESULTS) {
+			SelectiveSearcher searcher = new SelectiveSearcher(index, days, hours, numResults);
+			// Cluster indexes dropped and built again between cutoffs and topics
+			SelectiveSearcher budgeted = new SelectiveSearcher(index, ShardCache.of(days), ShardCache.of(hours), numResults, 0, 4096);
+			for (int k = 0; k < 40; k ++) {
+				Query query = randomQuery();
+				int[] expectedSizes = new int[query.top];
+				PairOfLongFloat[][] expected = baseline(query, numResults, expectedSizes);
+				int[] selectedSizes = new int[query.top];
+				assertResults(expected, expectedSizes, searcher.search(query.scorer, query.queryTime, query.days, query.hours, query.partitions, query.top, selectedSizes), selectedSizes);
+				selectedSizes = new int[query.top];
+				assertResults(expected, expectedSizes, budgeted.search(query.scorer, query.queryTime, query.days, query.hours, query.partitions, query.top, selectedSizes), selectedSizes);
+			}
+		}
+	}
+
+	public void testChunkedSearch() throws InterruptedException, ExecutionException {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (int numResults : NUM_RESULTS) {
+				SelectiveSearcher searcher = new SelectiveSearcher(index, days, hours, numResults, 7);
+				List<Query> queries = new ArrayList<Query>();
+				List<int[]> selectedSizes = new ArrayList<int[]>();
+				List<Future<PairOfLongFloat[][]>> results = new ArrayList<Future<PairOfLongFloat[][]>>();
+				for (int k = 0; k < 40; k ++) {
+					Query query = randomQuery();
+					queries.add(query);
+					selectedSizes.add(new int[query.top]);
+					results.add(pool.submit(searcher.task(query.scorer, query.queryTime, query.days, query.hours, query.partitions, query.top, selectedSizes.get(k))));
+				}
+				for (int k = 0; k < queries.size(); k ++) {
+					int[] expectedSizes = new int[queries.get(k).top];
+					PairOfLongFloat[][] expected = baseline(queries.get(k), numResults, expectedSizes);
+					assertResults(expected, expectedSizes, results.get(k).get(), selectedSizes.get(k));
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public void testSearchBatch() throws InterruptedException, ExecutionException {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (int numResults : NUM_RESULTS) {
+				SelectiveSearcher searcher = new SelectiveSearcher(index, days, hours, numResults);
+				for (int b = 0; b < 8; b ++) {
+					// Topics of a batch share one cutoff and overlap in the shards they select
+					int top = 1 + random.nextInt(CLUSTERS);
+					List<Query> queries = new ArrayList<Query>();
+					List<SelectiveSearcher.Topic> serial = new ArrayList<SelectiveSearcher.Topic>();
+					List<SelectiveSearcher.Topic> pooled = new ArrayList<SelectiveSearcher.Topic>();
+					List<int[]> serialSizes = new ArrayList<int[]>();
+					List<int[]> pooledSizes = new ArrayList<int[]>();
+					for (int k = 1 + random.nextInt(6); k > 0; k --) {
+						Query query = randomQuery(top);
+						queries.add(query);
+						serialSizes.add(new int[top]);
+						pooledSizes.add(new int[top]);
+						serial.add(new SelectiveSearcher.Topic(query.scorer, query.queryTime, query.days, query.hours, query.partitions, serialSizes.get(serialSizes.size() - 1)));
+						pooled.add(new SelectiveSearcher.Topic(new QueryLikelihoodScorer(query.scorer), query.queryTime, query.days, query.hours, query.partitions, pooledSizes.get(pooledSizes.size() - 1)));
+					}
+					PairOfLongFloat[][][] serialResults = searcher.searchBatch(serial, top);
+					PairOfLongFloat[][][] pooledResults = pool.submit(searcher.batchTask(pooled, top)).get();
+					assertEquals(queries.size(), serialResults.length);
+					assertEquals(queries.size(), pooledResults.length);
+					for (int q = 0; q < queries.size(); q ++) {
+						int[] expectedSizes = new int[top];
+						PairOfLongFloat[][] expected = baseline(queries.get(q), numResults, expectedSizes);
+						assertResults(expected, expectedSizes, serialResults[q], serialSizes.get(q));
+						assertResults(expected, expectedSizes, pooledResults[q], pooledSizes.get(q));
+					}
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * The cutoffs of one topic as RunQueries_Kmeans searched them: the docs of the clusters of
+	 * rank k of every day and hour before the final hour go into a top N carried over from the
+	 * cutoffs before, which is then merged with every cluster of the final hour.
+	 */
+	private PairOfLongFloat[][] baseline(Query query, int numResults, int[] selectedSizes) {
+		PairOfLongFloat[][] results = new PairOfLongFloat[query.top][];
+		int selectedSize = 0;
+		TopNScoredLongs prevTopN = new TopNScoredLongs(numResults);
+		for (int topIdx = 1; topIdx <= query.top; topIdx ++) {
+			int partitionInd = 0;
+			for (int day = 1; day <= query.days; day ++) {
+				selectedSize += score(query, days[day - 1], query.partitions[partitionInd ++][topIdx - 1], prevTopN);
+			}
+			for (int hour = 24 * query.days + 1; hour <= 24 * query.days + query.hours - 1; hour ++) {
+				selectedSize += score(query, hours[hour - 1], query.partitions[partitionInd ++][topIdx - 1], prevTopN);
+			}
+			TopNScoredLongs tempTopN = new TopNScoredLongs(numResults);
+			TopNScoredLongs topN = new TopNScoredLongs(numResults);
+			for (PairOfLongFloat pair : prevTopN.extractAll()) {
+				tempTopN.add(pair.getKey(), pair.getValue());
+				topN.add(pair.getKey(), pair.getValue());
+			}
+			int finalHour = 24 * query.days + query.hours;
+			for (int partition = 0; partition < CLUSTERS; partition ++) {
+				selectedSize += score(query, hours[finalHour - 1], partition, topN);
+			}
+			selectedSizes[topIdx - 1] = selectedSize;
+			results[topIdx - 1] = topN.extractAll();
+			prevTopN = tempTopN;
+		}
+		return results;
+	}
+
+	/**
+	 * Scores every member of a cluster up to the query time into topN, returning how many.
+	 */
+	private int score(Query query, ClusterMembers members, int cluster, TopNScoredLongs topN) {
+		int[] docTerms = new int[index.getMaxTermCount()];
+		int[] docTf = new int[index.getMaxTermCount()];
+		int count = 0;
+		for (int i = 0; i < members.size(cluster); i ++) {
+			int doc = members.get(cluster, i);
+			if (index.getId(doc) > query.queryTime) {
+				continue;
+			}
+			count ++;
+			int n = index.read(doc, docTerms, docTf);
+			float score = query.scorer.score(docTerms, docTf, n, index.getNorm(doc));
+			if (score > 0) {
+				topN.add(index.getId(doc), score);
+			}
+		}
+		return count;
+	}
+
+	private static void assertResults(PairOfLongFloat[][] expected, int[] expectedSizes, PairOfLongFloat[][] actual, int[] selectedSizes) {
+		assertEquals(expected.length, actual.length);
+		for (int k = 0; k < expected.length; k ++) {
+			assertEquals("selected size of cutoff " + (k + 1), expectedSizes[k], selectedSizes[k]);
+			assertEquals("hits of cutoff " + (k + 1), expected[k].length, actual[k].length);
+			for (int i = 0; i < expected[k].length; i ++) {
+				assertEquals(expected[k][i].getKey(), actual[k][i].getKey());
+				assertEquals(expected[k][i].getValue(), actual[k][i].getValue(), 0.0f);
+			}
+		}
+	}
+
+	private Query randomQuery() {
+		return randomQuery(1 + random.nextInt(CLUSTERS));
+	}
+
+	/**
+	 * One to three terms searched over up to a day and a day's hours, with the clusters of every
+	 * slice ranked at random.
+	 */
+	private Query randomQuery(int top) {
+		int[] termIds = new int[1 + random.nextInt(3)];
+		long[] cf = new long[termIds.length];
+		for (int t = 0; t < termIds.length; t ++) {
+			termIds[t] = 1 + random.nextInt(VOCAB);
+			cf[t] = random.nextInt(500);
+		}
+		QueryLikelihoodScorer scorer = new QueryLikelihoodScorer(2500.0f);
+		scorer.setQuery(termIds, cf, 100000);
+
+		int days = random.nextInt(DAYS);
+		int hours = 1 + random.nextInt(23);
+		int finalHour = 24 * days + hours;
+		long queryTime = index.getId(Math.max(0, finalHour * DOCS_PER_HOUR - 1 - random.nextInt(DOCS_PER_HOUR + DOCS_PER_HOUR / 4)));
+		int[][] partitions = new int[days + hours][CLUSTERS];
+		List<Integer> ranks = new ArrayList<Integer>();
+		for (int c = 0; c < CLUSTERS; c ++) {
+			ranks.add(c);
+		}
+		for (int[] ranked : partitions) {
+			Collections.shuffle(ranks, random);
+			for (int c = 0; c < CLUSTERS; c ++) {
+				ranked[c] = ranks.get(c);
+			}
+		}
+		return new Query(scorer, queryTime, days, hours, partitions, top);
+	}
+
+	private static class Query {
+		private final QueryLikelihoodScorer scorer;
+		private final long queryTime;
+		private final int days;
+		private final int hours;
+		private final int[][] partitions;
+		private final int top;
+
+		private Query(QueryLikelihoodScorer scorer, long queryTime, int days, int hours, int[][] partitions, int top) {
+			this.scorer = scorer;
+			this.queryTime = queryTime;
+			this.days = days;
+			this.hours = hours;
+			this.partitions = partitions;
+			this.top = top;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package ts4.ts4_core.tweets.search;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * TopNScoredLongs against the java.util.PriorityQueue it replaced, on random streams with
+ * repeated ids and tied scores, so that ids are evicted and re-added and the open-addressing set
+ * shifts entries back over its holes.
+ */
+public class TopNScoredLongsTest extends TestCase {
+	public void testSmallIdRanges() {
+		Random random = new Random(1);
+		for (int run = 0; run < 2000; run ++) {
+			compare(random, random.nextInt(9), 1 + random.nextInt(40), 1 + random.nextInt(5), 200);
+		}
+	}
+
+	public void testLargeIds() {
+		Random random = new Random(2);
+		for (int run = 0; run < 100; run ++) {
+			compare(random, 1 + random.nextInt(1000), 1 + random.nextInt(5000), 1 + random.nextInt(50), 10000);
+		}
+	}
+
+	public void testEmpty() {
+		TopNScoredLongs topN = new TopNScoredLongs(0);
+		topN.add(1, 1.0f);
+		assertEquals(0, topN.size());
+		assertEquals(Float.NEGATIVE_INFINITY, topN.threshold(), 0.0f);
+		assertEquals(0, topN.extractAll().length);
+	}
+
+	/**
+	 * Adds a stream of ids out of numIds, spread over the long range, with one of numScores
+	 * scores, comparing the threshold after each add and the pairs extracted every so often.
+	 */
+	private static void compare(Random random, int n, int numIds, int numScores, int numAdds) {
+		TopNScoredLongs topN = new TopNScoredLongs(n);
+		Reference reference = new Reference(n);
+		long[] ids = new long[numIds];
+		for (int i = 0; i < numIds; i ++) {
+			ids[i] = random.nextBoolean() ? i : random.nextLong();
+		}
+		for (int k = 0; k < numAdds; k ++) {
+			long id = ids[random.nextInt(numIds)];
+			float score = random.nextInt(numScores) - numScores / 2;
+			topN.add(id, score);
+			reference.add(id, score);
+			assertEquals(reference.size(), topN.size());
+			assertEquals(reference.threshold(), topN.threshold(), 0.0f);
+			if (random.nextInt(100) == 0) {
+				assertPairs(reference.extractAll(), topN.extractAll());
+				assertEquals(0, topN.size());
+			}
+		}
+		assertPairs(reference.extractAll(), topN.extractAll());
+	}
+
+	private static void assertPairs(PairOfLongFloat[] expected, PairOfLongFloat[] actual) {
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i ++) {
+			assertEquals("id " + i, expected[i].getKey(), actual[i].getKey());
+			assertEquals("score " + i, expected[i].getValue(), actual[i].getValue(), 0.0f);
+		}
+	}
+
+	/**
+	 * The former TopNScoredLongs: a PriorityQueue of pairs ordered by score, with ids already
+	 * held found by a scan of the queue.
+	 */
+	private static class Reference {
+		private final int maxSize;
+		private final PriorityQueue<PairOfLongFloat> queue = new PriorityQueue<PairOfLongFloat>(11, new Comparator<PairOfLongFloat>() {
+			public int compare(PairOfLongFloat a, PairOfLongFloat b) {
+				return a.getValue() < b.getValue() ? -1 : a.getValue() > b.getValue() ? 1 : 0;
+			}
+		});
+
+		private Reference(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		private void add(long id, float score) {
+			for (Iterator<PairOfLongFloat> it = queue.iterator(); it.hasNext(); ) {
+				if (it.next().getKey() == id) {
+					return;
+				}
+			}
+			if (queue.size() < maxSize) {
+				queue.offer(new PairOfLongFloat(id, score));
+			} else if (maxSize > 0 && queue.peek().getValue() < score) {
+				queue.poll();
+				queue.offer(new PairOfLongFloat(id, score));
+			}
+		}
+
+		private int size() {
+			return queue.size();
+		}
+
+		private float threshold() {
+			return queue.size() < maxSize || maxSize == 0 ? Float.NEGATIVE_INFINITY : queue.peek().getValue();
+		}
+
+		private PairOfLongFloat[] extractAll() {
+			PairOfLongFloat[] arr = new PairOfLongFloat[queue.size()];
+			for (int i = arr.length - 1; i >= 0; i --) {
+				arr[i] = queue.poll();
+			}
+			return arr;
+		}
+	}
+}
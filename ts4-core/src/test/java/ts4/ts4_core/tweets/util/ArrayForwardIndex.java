@@ -0,0 +1,98 @@
+package ts4.ts4_core.tweets.util;
+
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Forward index over arrays built by a test. Postings of each doc must be sorted by term id; doc
+ * lengths are the sums of their tfs.
+ */
+public class ArrayForwardIndex extends ForwardIndex {
+	private final long[] ids;
+	private final int[][] terms;
+	private final int[][] tf;
+	private final float[] lengthsEncoded;
+	private final int maxTermCount;
+
+	public ArrayForwardIndex(long[] ids, int[][] terms, int[][] tf) {
+		this.ids = ids;
+		this.terms = terms;
+		this.tf = tf;
+		lengthsEncoded = new float[ids.length];
+		int max = 0;
+		for (int d = 0; d < ids.length; d ++) {
+			int length = 0;
+			for (int j = 0; j < tf[d].length; j ++) {
+				length += tf[d][j];
+			}
+			lengthsEncoded[d] = GenerateStatistics.decodeNormValue(GenerateStatistics.encodeNormValue(1.0f, Math.max(length, 1)));
+			max = Math.max(max, terms[d].length);
+		}
+		maxTermCount = max;
+	}
+
+	/**
+	 * Docs with the given ids, each of up to maxTokens random tokens. Terms are 1 to vocab, low ids
+	 * the frequent ones; with outOfVocabulary, a quarter of the tokens are term 0 instead.
+	 */
+	public static ArrayForwardIndex random(Random random, long[] ids, int maxTokens, int vocab, boolean outOfVocabulary) {
+		int[][] terms = new int[ids.length][];
+		int[][] tf = new int[ids.length][];
+		for (int d = 0; d < ids.length; d ++) {
+			TreeMap<Integer, Integer> postings = new TreeMap<Integer, Integer>();
+			int n = random.nextInt(maxTokens + 1);
+			for (int j = 0; j < n; j ++) {
+				int term = outOfVocabulary && random.nextInt(4) == 0 ? 0 : 1 + random.nextInt(1 + random.nextInt(vocab));
+				postings.put(term, postings.containsKey(term) ? postings.get(term) + 1 : 1 + random.nextInt(2));
+			}
+			terms[d] = new int[postings.size()];
+			tf[d] = new int[postings.size()];
+			int j = 0;
+			for (Integer term : postings.keySet()) {
+				terms[d][j] = term;
+				tf[d][j ++] = postings.get(term);
+			}
+		}
+		return new ArrayForwardIndex(ids, terms, tf);
+	}
+
+	public int[] getTerms(int doc) {
+		return terms[doc];
+	}
+
+	public int[] getTf(int doc) {
+		return tf[doc];
+	}
+
+	@Override
+	public int getNumDocs() {
+		return ids.length;
+	}
+
+	@Override
+	public long getId(int doc) {
+		return ids[doc];
+	}
+
+	@Override
+	public float getDocLengthEncoded(int doc) {
+		return lengthsEncoded[doc];
+	}
+
+	@Override
+	public int getTermCount(int doc) {
+		return terms[doc].length;
+	}
+
+	@Override
+	public int getMaxTermCount() {
+		return maxTermCount;
+	}
+
+	@Override
+	public int read(int doc, int[] docTerms, int[] docTf) {
+		System.arraycopy(terms[doc], 0, docTerms, 0, terms[doc].length);
+		System.arraycopy(tf[doc], 0, docTf, 0, tf[doc].length);
+		return terms[doc].length;
+	}
+}
@@ -0,0 +1,120 @@
+package ts4.ts4_core.tweets.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * getCf against counting the postings of every doc up till the query tweet, as GenerateStatistics
+ * does, over a stream spanning a few hundred hourly slices. Frequent terms occur in far more than
+ * 16 slices, so their cf goes through the checkpoints.
+ */
+public class CollectionFrequencyIndexTest extends TestCase {
+	private static final long TWEPOCH = 1288834974657L;
+	private static final long HOUR_MILLIS = 3600000L;
+	private static final int VOCAB = 60;
+
+	private File dir;
+	private long[] ids;
+	private ArrayForwardIndex index;
+	private CollectionFrequencyIndex cfIndex;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("ts4-cf", "");
+		dir.delete();
+		dir.mkdir();
+
+		// Tweets about ten an hour, with gaps of a few hours, some swapped with the one before
+		Random random = new Random(1);
+		int numDocs = 4000;
+		ids = new long[numDocs];
+		long time = 1356998400000L;
+		for (int d = 0; d < numDocs; d ++) {
+			time += random.nextInt(50) == 0 ? 4 * HOUR_MILLIS : random.nextInt((int) (HOUR_MILLIS / 5));
+			ids[d] = ((time - TWEPOCH) << 22) | random.nextInt(1 << 22);
+		}
+		for (int d = 1; d < numDocs; d ++) {
+			if (random.nextInt(10) == 0) {
+				long id = ids[d];
+				ids[d] = ids[d - 1];
+				ids[d - 1] = id;
+			}
+		}
+
+		// Term 0 stands for out-of-vocabulary tokens; low term ids are the frequent ones
+		index = ArrayForwardIndex.random(random, ids, 7, VOCAB, true);
+		CollectionFrequencyIndex.build(dir.getPath(), index);
+		cfIndex = CollectionFrequencyIndex.open(dir.getPath(), index);
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testSlices() {
+		assertTrue(cfIndex.getNumSlices() > 200);
+	}
+
+	public void testCfUpTillEveryTweet() {
+		int[] queryTerms = new int[VOCAB + 1];
+		for (int t = 0; t <= VOCAB; t ++) {
+			queryTerms[t] = t;
+		}
+		long[] expected = new long[VOCAB + 2];
+		for (int d = 0; d < ids.length; d ++) {
+			int[] terms = index.getTerms(d);
+			int[] tf = index.getTf(d);
+			for (int j = 0; j < terms.length; j ++) {
+				if (terms[j] != 0) {
+					expected[terms[j]] += tf[j];
+				}
+				expected[VOCAB + 1] += tf[j];
+			}
+			long[] cf = cfIndex.getCf(ids[d], queryTerms);
+			assertEquals(expected.length, cf.length);
+			for (int t = 0; t < expected.length; t ++) {
+				assertEquals("cf of term " + t + " up till doc " + d, expected[t], cf[t]);
+			}
+		}
+	}
+
+	public void testQueryTermsInAnyOrder() {
+		Random random = new Random(2);
+		for (int k = 0; k < 500; k ++) {
+			int d = random.nextInt(ids.length);
+			// Repeated terms, out-of-vocabulary term 0, and ids past the vocabulary
+			int[] queryTerms = new int[1 + random.nextInt(5)];
+			for (int t = 0; t < queryTerms.length; t ++) {
+				queryTerms[t] = random.nextInt(VOCAB + 10);
+			}
+			long[] cf = cfIndex.getCf(ids[d], queryTerms);
+			for (int t = 0; t < queryTerms.length; t ++) {
+				assertEquals(count(d, queryTerms[t]), cf[t]);
+			}
+		}
+	}
+
+	/**
+	 * Occurrences of a term in docs 0 to d, 0 for out-of-vocabulary tokens.
+	 */
+	private long count(int d, int term) {
+		long cf = 0;
+		for (int i = 0; i <= d && term != 0; i ++) {
+			int[] terms = index.getTerms(i);
+			int[] tf = index.getTf(i);
+			for (int j = 0; j < terms.length; j ++) {
+				if (terms[j] == term) {
+					cf += tf[j];
+				}
+			}
+		}
+		return cf;
+	}
+}
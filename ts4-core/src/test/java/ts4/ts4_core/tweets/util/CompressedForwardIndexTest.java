@@ -0,0 +1,163 @@
+package ts4.ts4_core.tweets.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+/**
+ * Round trip of the varint postings codec through Writer and CompressedForwardIndex, and the
+ * offsets kept per block of 16 docs.
+ */
+public class CompressedForwardIndexTest extends TestCase {
+	private File dir;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("ts4-compressed", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testRoundTrip() throws IOException {
+		Docs docs = new Docs(new Random(1), 16 * 9 + 7);
+		write(docs, 0, docs.size(), false);
+		check(docs);
+	}
+
+	public void testRoundTripAtBlockSizes() throws IOException {
+		for (int numDocs : new int[] { 0, 1, 15, 16, 17, 32 }) {
+			tearDown();
+			setUp();
+			Docs docs = new Docs(new Random(numDocs), numDocs);
+			write(docs, 0, docs.size(), false);
+			check(docs);
+		}
+	}
+
+	public void testAppend() throws IOException {
+		Docs docs = new Docs(new Random(2), 100);
+		// Appends end inside a block, at a block boundary, and one doc past it
+		write(docs, 0, 21, false);
+		write(docs, 21, 32, true);
+		write(docs, 32, 33, true);
+		write(docs, 33, docs.size(), true);
+		check(docs);
+	}
+
+	private void write(Docs docs, int from, int to, boolean append) throws IOException {
+		BinaryStatistics.Writer binaryWriter = new BinaryStatistics.Writer(dir.getPath(), append);
+		CompressedForwardIndex.Writer writer = new CompressedForwardIndex.Writer(dir.getPath(), append);
+		for (int d = from; d < to; d ++) {
+			float lengthEncoded = GenerateStatistics.decodeNormValue(docs.norms[d]);
+			binaryWriter.add(docs.ids[d], docs.lengths[d], lengthEncoded, docs.terms[d], docs.tf[d], docs.terms[d].length);
+			writer.add(docs.norms[d], docs.terms[d], docs.tf[d], docs.terms[d].length);
+		}
+		binaryWriter.close();
+		writer.close();
+	}
+
+	private void check(Docs docs) throws IOException {
+		CompressedForwardIndex index = CompressedForwardIndex.open(dir.getPath());
+		assertEquals(docs.size(), index.getNumDocs());
+		int maxTermCount = 0;
+		for (int d = 0; d < docs.size(); d ++) {
+			maxTermCount = Math.max(maxTermCount, docs.terms[d].length);
+		}
+		assertEquals(maxTermCount, index.getMaxTermCount());
+
+		// Docs read out of order, so that each is reached from its block offset
+		int[] terms = new int[maxTermCount];
+		int[] tf = new int[maxTermCount];
+		Random random = new Random(3);
+		for (int k = 0; k < 3 * docs.size(); k ++) {
+			int d = k < docs.size() ? docs.size() - 1 - k : random.nextInt(docs.size());
+			assertEquals(docs.ids[d], index.getId(d));
+			assertEquals(docs.norms[d], index.getNorm(d));
+			assertEquals(GenerateStatistics.decodeNormValue(docs.norms[d]), index.getDocLengthEncoded(d), 0.0f);
+			assertEquals("term count of doc " + d, docs.terms[d].length, index.getTermCount(d));
+			int n = index.read(d, terms, tf);
+			assertEquals(docs.terms[d].length, n);
+			for (int j = 0; j < n; j ++) {
+				assertEquals("term " + j + " of doc " + d, docs.terms[d][j], terms[j]);
+				assertEquals("tf " + j + " of doc " + d, docs.tf[d][j], tf[j]);
+			}
+		}
+
+		// Block b starts at the length prefix of doc 16b, and the last offset closes the stream
+		MappedColumn blocks = MappedColumn.map(new File(dir, CompressedForwardIndex.BLOCKS), 8);
+		MappedColumn postings = MappedColumn.map(new File(dir, CompressedForwardIndex.POSTINGS), 1);
+		assertEquals((docs.size() + 15) / 16 + 1, blocks.size());
+		long p = 0;
+		for (int d = 0; d < docs.size(); d ++) {
+			if (d % 16 == 0) {
+				assertEquals("offset of block " + d / 16, p, blocks.getLong(d / 16));
+			}
+			int len = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = postings.getByte(p ++);
+				len |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			p += len;
+		}
+		assertEquals(postings.size(), p);
+		assertEquals(p, blocks.getLong(blocks.size() - 1));
+	}
+
+	/**
+	 * Docs with postings sorted by term id, with term gaps and tfs of one to five varint bytes.
+	 */
+	private static class Docs {
+		private final long[] ids;
+		private final int[] lengths;
+		private final byte[] norms;
+		private final int[][] terms;
+		private final int[][] tf;
+
+		private Docs(Random random, int numDocs) {
+			ids = new long[numDocs];
+			lengths = new int[numDocs];
+			norms = new byte[numDocs];
+			terms = new int[numDocs][];
+			tf = new int[numDocs][];
+			for (int d = 0; d < numDocs; d ++) {
+				ids[d] = 300000000000000000L + 1000L * d + random.nextInt(1000);
+				int n = d % 23 == 0 ? 0 : d % 37 == 0 ? 300 : 1 + random.nextInt(20);
+				TreeMap<Integer, Integer> postings = new TreeMap<Integer, Integer>();
+				while (postings.size() < n) {
+					int bits = 1 + random.nextInt(30);
+					int term = random.nextInt(1 << bits);
+					int freq = random.nextInt(4) > 0 ? 1 : random.nextInt(3) > 0 ? 2 + random.nextInt(200) : 1 + random.nextInt(Integer.MAX_VALUE - 1);
+					postings.put(term, freq);
+				}
+				terms[d] = new int[n];
+				tf[d] = new int[n];
+				int j = 0;
+				for (Integer term : postings.keySet()) {
+					terms[d][j] = term;
+					tf[d][j] = postings.get(term);
+					lengths[d] += Math.min(tf[d][j], 1000);
+					j ++;
+				}
+				norms[d] = GenerateStatistics.encodeNormValue(1.0f, Math.max(lengths[d], 1));
+			}
+		}
+
+		private int size() {
+			return ids.length;
+		}
+	}
+}